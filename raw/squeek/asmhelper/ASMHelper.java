@@ -2,13 +2,11 @@ package squeek.asmhelper;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import net.minecraft.launchwrapper.LaunchClassLoader;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
@@ -19,13 +17,14 @@ import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodNode;
-import org.objectweb.asm.util.Printer;
-import org.objectweb.asm.util.Textifier;
-import org.objectweb.asm.util.TraceMethodVisitor;
 
 public class ASMHelper
 {
-	private static Boolean isCauldron = null;
+	/**
+	 * The comparator used by {@link TransformContext#getDefault()} until {@link TransformContext#setInsnComparator} is called on it.
+	 * @deprecated Use {@code TransformContext.getDefault().getInsnComparator()}, and {@link TransformContext#setInsnComparator} to change it.
+	 */
+	@Deprecated
 	public static InsnComparator insnComparator = new InsnComparator();
 
 	/**
@@ -35,20 +34,7 @@ public class ASMHelper
 	 */
 	public static boolean isCauldron()
 	{
-		if (ASMHelper.isCauldron == null)
-		{
-			try
-			{
-				byte[] bytes = ((LaunchClassLoader) ASMHelper.class.getClassLoader()).getClassBytes("net.minecraftforge.cauldron.api.Cauldron");
-				ASMHelper.isCauldron = bytes != null;
-			}
-			catch (IOException e)
-			{
-				ASMHelper.isCauldron = false;
-			}
-		}
-
-		return ASMHelper.isCauldron;
+		return TransformContext.getDefault().isCauldron();
 	}
 
 	/**
@@ -61,13 +47,76 @@ public class ASMHelper
 
 	/**
 	 * Overload of {@link #readClassFromBytes(byte[])} with a flags parameter.
+	 * Names and descriptors are shared with other classes through the {@link StringPool}.
 	 */
 	public static ClassNode readClassFromBytes(byte[] bytes, int flags)
 	{
-		ClassNode classNode = new ClassNode();
-		ClassReader classReader = new ClassReader(bytes);
-		classReader.accept(classNode, flags);
-		return classNode;
+		return readClassFromBytes(bytes, 0, bytes.length, flags);
+	}
+
+	/**
+	 * Convert {@code length} bytes of {@code bytes}, starting at {@code offset}, into a ClassNode
+	 * without copying them into a new array first.
+	 */
+	public static ClassNode readClassFromBytes(byte[] bytes, int offset, int length)
+	{
+		return readClassFromBytes(bytes, offset, length, 0);
+	}
+
+	/**
+	 * Overload of {@link #readClassFromBytes(byte[], int, int)} with a flags parameter.
+	 */
+	public static ClassNode readClassFromBytes(byte[] bytes, int offset, int length, int flags)
+	{
+		return TransformContext.getDefault().readClassFromBytes(bytes, offset, length, flags);
+	}
+
+	/**
+	 * Convert the remaining bytes of {@code buffer} into a ClassNode. The position of {@code buffer} is not changed.<br>
+	 * <br>
+	 * Buffers backed by an accessible array are read in place; other buffers (like direct or memory-mapped buffers) are copied once.
+	 */
+	public static ClassNode readClassFromBuffer(ByteBuffer buffer)
+	{
+		return readClassFromBuffer(buffer, 0);
+	}
+
+	/**
+	 * Overload of {@link #readClassFromBuffer(ByteBuffer)} with a flags parameter.
+	 */
+	public static ClassNode readClassFromBuffer(ByteBuffer buffer, int flags)
+	{
+		if (buffer.hasArray())
+			return readClassFromBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), flags);
+
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return readClassFromBytes(bytes, flags);
+	}
+
+	/**
+	 * Convert a byte array into a {@link LazyClassNode}, which only reads the code of methods once they are needed.
+	 */
+	public static LazyClassNode readLazyClassFromBytes(byte[] bytes)
+	{
+		return readLazyClassFromBytes(bytes, 0);
+	}
+
+	/**
+	 * Overload of {@link #readLazyClassFromBytes(byte[])} with a flags parameter.
+	 */
+	public static LazyClassNode readLazyClassFromBytes(byte[] bytes, int flags)
+	{
+		return readLazyClassFromBytes(bytes, 0, bytes.length, flags);
+	}
+
+	/**
+	 * Overload of {@link #readLazyClassFromBytes(byte[], int)} that reads {@code length} bytes starting at {@code offset}.
+	 * The bytes must not be modified while the {@link LazyClassNode} is in use.
+	 */
+	public static LazyClassNode readLazyClassFromBytes(byte[] bytes, int offset, int length, int flags)
+	{
+		return new LazyClassNode(new InterningClassReader(bytes, offset, length), flags);
 	}
 
 	/**
@@ -85,9 +134,7 @@ public class ASMHelper
 	 */
 	public static byte[] writeClassToBytes(ClassNode classNode, int flags)
 	{
-		ClassWriter writer = new ObfRemappingClassWriter(flags);
-		classNode.accept(writer);
-		return writer.toByteArray();
+		return TransformContext.getDefault().writeClassToBytes(classNode, flags);
 	}
 
 	/**
@@ -121,12 +168,26 @@ public class ASMHelper
 		return classLoader.getResourceAsStream(className.replace('.', '/') + ".class");
 	}
 
+	/**
+	 * @return A copy of the bytes of the specified class, read through {@link ClassBytesProvider#getDefault()}.
+	 * If the class can not be found, returns {@code null}.
+	 */
+	public static byte[] getClassBytes(String className) throws IOException
+	{
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(className);
+		return bytes != null ? bytes.clone() : null;
+	}
+
 	/**
 	 * @return A ClassReader instance for the specified class name.
 	 */
 	public static ClassReader getClassReaderForClassName(String className) throws IOException
 	{
-		return new ClassReader(getClassAsStreamFromClassLoader(className, ASMHelper.class.getClassLoader()));
+		// ClassReader does not modify the bytes, so the cached array does not need to be copied
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(className);
+		if (bytes == null)
+			throw new IOException("Class not found: " + className);
+		return new ClassReader(bytes);
 	}
 
 	/**
@@ -149,14 +210,17 @@ public class ASMHelper
 				return true;
 		}
 
-		try
-		{
-			if (classHasSuper(classReader))
-				return doesClassImplement(getClassReaderForClassName(ObfHelper.getInternalClassName(classReader.getSuperName())), targetInterfaceInternalClassName);
-		}
-		catch (IOException e)
+		ClassHierarchy classHierarchy = TransformContext.getDefault().getClassHierarchy();
+		String superName = classReader.getSuperName();
+		while (superName != null && !superName.equals("java/lang/Object"))
 		{
-			throw new RuntimeException("raw = " + classReader.getSuperName() + ", obf = " + ObfHelper.getInternalClassName(classReader.getSuperName()), e);
+			ClassHierarchy.ClassInfo superInfo = getSuperClassInfo(classHierarchy, superName);
+			for (String superInterface : superInfo.interfaces)
+			{
+				if (ObfHelper.getInternalClassName(superInterface).equals(targetInterfaceInternalClassName))
+					return true;
+			}
+			superName = superInfo.superName;
 		}
 		return false;
 	}
@@ -166,21 +230,24 @@ public class ASMHelper
 	 */
 	public static boolean doesClassExtend(ClassReader classReader, String targetSuperInternalClassName)
 	{
-		if (!classHasSuper(classReader))
-			return false;
-
-		String immediateSuperName = ObfHelper.getInternalClassName(classReader.getSuperName());
-		if (immediateSuperName.equals(targetSuperInternalClassName))
-			return true;
-
-		try
+		ClassHierarchy classHierarchy = TransformContext.getDefault().getClassHierarchy();
+		String superName = classReader.getSuperName();
+		while (superName != null && !superName.equals("java/lang/Object"))
 		{
-			return doesClassExtend(getClassReaderForClassName(immediateSuperName), targetSuperInternalClassName);
-		}
-		catch (IOException e)
-		{
-			throw new RuntimeException("raw = " + classReader.getSuperName() + ", obf = " + immediateSuperName, e);
+			if (ObfHelper.getInternalClassName(superName).equals(targetSuperInternalClassName))
+				return true;
+			superName = getSuperClassInfo(classHierarchy, superName).superName;
 		}
+		return false;
+	}
+
+	private static ClassHierarchy.ClassInfo getSuperClassInfo(ClassHierarchy classHierarchy, String rawSuperName)
+	{
+		String superName = ObfHelper.getInternalClassName(rawSuperName);
+		ClassHierarchy.ClassInfo superInfo = classHierarchy.getClassInfo(superName);
+		if (superInfo == null)
+			throw new RuntimeException("raw = " + rawSuperName + ", obf = " + superName, new IOException("Class not found: " + superName));
+		return superInfo;
 	}
 
 	/**
@@ -377,6 +444,7 @@ public class ASMHelper
 	/**
 	 * @return The method of the class that has both a matching {@code methodName} and {@code methodDesc}.
 	 * If no matching method is found, returns {@code null}.
+	 * If {@code classNode} is a {@link LazyClassNode}, the method is materialized.
 	 */
 	public static MethodNode findMethodNodeOfClass(ClassNode classNode, String methodName, String methodDesc)
 	{
@@ -384,7 +452,7 @@ public class ASMHelper
 		{
 			if (method.name.equals(methodName) && (methodDesc == null || method.desc.equals(methodDesc)))
 			{
-				return method;
+				return materializeIfLazy(classNode, method);
 			}
 		}
 		return null;
@@ -396,12 +464,17 @@ public class ASMHelper
 		{
 			if ((method.name.equals(methodName) || method.name.equals(methodName2)) && (methodDesc == null || method.desc.equals(methodDesc)))
 			{
-				return method;
+				return materializeIfLazy(classNode, method);
 			}
 		}
 		return null;
 	}
 
+	private static MethodNode materializeIfLazy(ClassNode classNode, MethodNode method)
+	{
+		return classNode instanceof LazyClassNode ? ((LazyClassNode) classNode).materialize(method) : method;
+	}
+
 	/**
 	 * Useful for defining the end label for ASM-inserted local variables.
 	 * 
@@ -446,6 +519,7 @@ public class ASMHelper
 	 *
 	 * This is achieved by inserting a GOTO instruction before {@code startInclusive} which is branched to a
 	 * LabelNode that is inserted before {@code endNotInclusive}.
+	 * The skipped instructions are left in place; see {@link DeadCodeEliminator} to remove them afterwards.
 	 */
 	public static void skipInstructions(InsnList insnList, AbstractInsnNode startInclusive, AbstractInsnNode endNotInclusive)
     	{
@@ -484,11 +558,11 @@ public class ASMHelper
 	}
 
 	/**
-	 * Convenience method for accessing {@link InsnComparator#areInsnsEqual}
+	 * Convenience method for accessing {@link InsnComparator#areInsnsEqual} through {@link TransformContext#getDefault()}
 	 */
 	public static boolean instructionsMatch(AbstractInsnNode first, AbstractInsnNode second)
 	{
-		return insnComparator.areInsnsEqual(first, second);
+		return TransformContext.getDefault().instructionsMatch(first, second);
 	}
 
 	/**
@@ -496,7 +570,7 @@ public class ASMHelper
 	 */
 	public static boolean patternMatches(InsnList checkFor, AbstractInsnNode checkAgainst)
 	{
-		return checkForPatternAt(checkFor, checkAgainst).getFirst() != null;
+		return TransformContext.getDefault().checkForPatternAt(checkFor, checkAgainst).getFirst() != null;
 	}
 
 	/**
@@ -508,6 +582,23 @@ public class ASMHelper
 	 * Note: If the pattern was matched, the size of the returned {@link InsnList} will be >= {@code checkFor}.size().
 	 */
 	public static InsnList checkForPatternAt(InsnList checkFor, AbstractInsnNode checkAgainst)
+	{
+		return TransformContext.getDefault().checkForPatternAt(checkFor, checkAgainst);
+	}
+
+	/**
+	 * Overload of {@link #checkForPatternAt(InsnList, AbstractInsnNode)} that compares instructions using {@code insnComparator}.
+	 */
+	public static InsnList checkForPatternAt(InsnList checkFor, AbstractInsnNode checkAgainst, InsnComparator insnComparator)
+	{
+		return checkForPatternAt(checkFor, checkAgainst, insnComparator, null);
+	}
+
+	/**
+	 * Overload of {@link #checkForPatternAt(InsnList, AbstractInsnNode, InsnComparator)} that adds the number of instructions
+	 * compared to {@code counts[0]} (if {@code counts} is not {@code null}).
+	 */
+	static InsnList checkForPatternAt(InsnList checkFor, AbstractInsnNode checkAgainst, InsnComparator insnComparator, int[] counts)
 	{
 		InsnList foundInsnList = new InsnList();
 		boolean firstNeedleFound = false;
@@ -530,7 +621,9 @@ public class ASMHelper
 				continue;
 			}
 
-			if (!instructionsMatch(lookFor, checkAgainst))
+			if (counts != null)
+				counts[0]++;
+			if (!insnComparator.areInsnsEqual(lookFor, checkAgainst))
 				return new InsnList();
 
 			foundInsnList.add(checkAgainst);
@@ -541,6 +634,45 @@ public class ASMHelper
 		return foundInsnList;
 	}
 
+	/**
+	 * The same matching rules as {@link #checkForPatternAt}, without adding the matched instructions to a new list,
+	 * so that the instructions are not modified in any way (and can be searched from multiple threads at once).
+	 * Adds the number of instructions compared to {@code counts[0]} (if {@code counts} is not {@code null}).
+	 *
+	 * @return The last matched instruction, or {@code null} if the pattern does not match at {@code checkAgainst}.
+	 */
+	static AbstractInsnNode getLastMatchedInsn(InsnList checkFor, AbstractInsnNode checkAgainst, InsnComparator insnComparator, int[] counts)
+	{
+		AbstractInsnNode lastMatched = null;
+		for (AbstractInsnNode lookFor = checkFor.getFirst(); lookFor != null;)
+		{
+			if (checkAgainst == null)
+				return null;
+
+			if (isLabelOrLineNumber(lookFor))
+			{
+				lookFor = lookFor.getNext();
+				continue;
+			}
+
+			if (isLabelOrLineNumber(checkAgainst))
+			{
+				checkAgainst = checkAgainst.getNext();
+				continue;
+			}
+
+			if (counts != null)
+				counts[0]++;
+			if (!insnComparator.areInsnsEqual(lookFor, checkAgainst))
+				return null;
+
+			lastMatched = checkAgainst;
+			lookFor = lookFor.getNext();
+			checkAgainst = checkAgainst.getNext();
+		}
+		return lastMatched;
+	}
+
 	/**
 	 * Searches for the pattern in {@code needle}, starting at {@code haystackStart}.
 	 * 
@@ -551,20 +683,72 @@ public class ASMHelper
 	 */
 	public static InsnList findAndGetFoundInsnList(AbstractInsnNode haystackStart, InsnList needle)
 	{
+		return TransformContext.getDefault().findAndGetFoundInsnList(haystackStart, needle);
+	}
+
+	/**
+	 * Overload of {@link #findAndGetFoundInsnList(AbstractInsnNode, InsnList)} that compares instructions using {@code insnComparator}.
+	 * The search is not recorded by any {@link PatternProfiler}.
+	 */
+	public static InsnList findAndGetFoundInsnList(AbstractInsnNode haystackStart, InsnList needle, InsnComparator insnComparator)
+	{
+		return findAndGetFoundInsnList(haystackStart, needle, insnComparator, null, null);
+	}
+
+	/**
+	 * See {@link #findAndGetFoundInsnList(AbstractInsnNode, InsnList, InsnComparator)}. The search is recorded by {@code profiler}, if not {@code null}.
+	 * If {@code counts} is not {@code null}, it is filled with {instructions compared, candidates tried, offset of the match},
+	 * where the offset is the number of instructions between {@code haystackStart} and the match, or -1 if the pattern was not found.
+	 */
+	static InsnList findAndGetFoundInsnList(AbstractInsnNode haystackStart, InsnList needle, InsnComparator insnComparator, PatternProfiler profiler, int[] counts)
+	{
+		long startNanos = profiler != null ? System.nanoTime() : 0;
+		if (counts == null && profiler != null)
+			counts = new int[3];
+
 		int needleStartOpcode = needle.getFirst().getOpcode();
-		AbstractInsnNode checkAgainstStart = getOrFindInstructionWithOpcode(haystackStart, needleStartOpcode);
-		while (checkAgainstStart != null)
+		int offset = 0;
+		for (AbstractInsnNode checkAgainstStart = haystackStart; checkAgainstStart != null; checkAgainstStart = checkAgainstStart.getNext(), offset++)
 		{
-			InsnList found = checkForPatternAt(needle, checkAgainstStart);
+			if (checkAgainstStart.getOpcode() != needleStartOpcode)
+				continue;
+
+			if (counts != null)
+				counts[1]++;
+			InsnList found = checkForPatternAt(needle, checkAgainstStart, insnComparator, counts);
 
 			if (found.getFirst() != null)
+			{
+				if (counts != null)
+					counts[2] = offset;
+				if (profiler != null)
+					profiler.record(needle, counts[1], counts[0], true, startNanos);
 				return found;
-
-			checkAgainstStart = findNextInstructionWithOpcode(checkAgainstStart, needleStartOpcode);
+			}
 		}
+		if (counts != null)
+			counts[2] = -1;
+		if (profiler != null)
+			profiler.record(needle, counts[1], counts[0], false, startNanos);
 		return new InsnList();
 	}
 
+	/**
+	 * Searches for the pattern in {@code needle} starting at {@code haystackStart} using the comparator and profiler of {@code context},
+	 * and records the search with {@link TransformTrace}.
+	 */
+	static InsnList findAndGetFoundInsnList(TransformTrace.EventType type, AbstractInsnNode haystackStart, InsnList needle, TransformContext context)
+	{
+		if (!TransformTrace.isEnabled())
+			return findAndGetFoundInsnList(haystackStart, needle, context.getInsnComparator(), context.getPatternProfiler(), null);
+
+		long startNanos = System.nanoTime();
+		int[] counts = new int[3];
+		InsnList found = findAndGetFoundInsnList(haystackStart, needle, context.getInsnComparator(), context.getPatternProfiler(), counts);
+		TransformTrace.recordMatch(type, needle, counts[2], startNanos);
+		return found;
+	}
+
 	/**
 	 * Searches for the pattern in {@code needle} within {@code haystack}.
 	 * 
@@ -584,11 +768,7 @@ public class ASMHelper
 	 */
 	public static AbstractInsnNode find(AbstractInsnNode haystackStart, InsnList needle)
 	{
-		if (needle.getFirst() == null)
-			return null;
-
-		InsnList found = findAndGetFoundInsnList(haystackStart, needle);
-		return found.getFirst();
+		return TransformContext.getDefault().find(haystackStart, needle);
 	}
 
 	/**
@@ -635,15 +815,7 @@ public class ASMHelper
 	 */
 	public static AbstractInsnNode findAndReplace(InsnList haystack, InsnList needle, InsnList replacement, AbstractInsnNode haystackStart)
 	{
-		InsnList found = findAndGetFoundInsnList(haystackStart, needle);
-		if (found.getFirst() != null)
-		{
-			haystack.insertBefore(found.getFirst(), replacement);
-			AbstractInsnNode afterNeedle = found.getLast().getNext();
-			removeFromInsnListUntil(haystack, found.getFirst(), afterNeedle);
-			return afterNeedle;
-		}
-		return null;
+		return TransformContext.getDefault().findAndReplace(haystack, needle, replacement, haystackStart);
 	}
 
 	/**
@@ -665,12 +837,7 @@ public class ASMHelper
 	 */
 	public static int findAndReplaceAll(InsnList haystack, InsnList needle, InsnList replacement, AbstractInsnNode haystackStart)
 	{
-		int numReplaced = 0;
-		while ((haystackStart = findAndReplace(haystack, needle, replacement, haystackStart)) != null)
-		{
-			numReplaced++;
-		}
-		return numReplaced;
+		return TransformContext.getDefault().findAndReplaceAll(haystack, needle, replacement, haystackStart);
 	}
 
 	/**
@@ -718,9 +885,6 @@ public class ASMHelper
 		return null;
 	}
 
-	private static Printer printer = new Textifier();
-	private static TraceMethodVisitor methodprinter = new TraceMethodVisitor(printer);
-
 	/**
 	 * @return {@code insnList} as a string.<br>
 	 * <br>
@@ -734,11 +898,7 @@ public class ASMHelper
 	 */
 	public static String getInsnListAsString(InsnList insnList)
 	{
-		insnList.accept(methodprinter);
-		StringWriter sw = new StringWriter();
-		printer.print(new PrintWriter(sw));
-		printer.getText().clear();
-		return sw.toString();
+		return TransformContext.getDefault().getInsnListAsString(insnList);
 	}
 
 	/**
@@ -746,10 +906,6 @@ public class ASMHelper
 	 */
 	public static String getMethodAsString(MethodNode method)
 	{
-		method.accept(methodprinter);
-		StringWriter sw = new StringWriter();
-		printer.print(new PrintWriter(sw));
-		printer.getText().clear();
-		return sw.toString();
+		return TransformContext.getDefault().getMethodAsString(method);
 	}
 }
@@ -0,0 +1,488 @@
+package squeek.asmhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Provides the raw bytes of classes on the class path without going through
+ * {@link ClassLoader#getResourceAsStream} for every lookup.<br>
+ * <br>
+ * The jars on the class path are indexed once (by reading their central directory) and then read through
+ * memory-mapped buffers. Decompressed class bytes are kept in a size-bounded LRU cache.
+ * Classes that are not found in any indexed jar or directory are read from the class loader as before.<br>
+ * <br>
+ * Note: The returned byte arrays are shared with the cache and must not be modified.
+ */
+public class ClassBytesProvider
+{
+	public static final long DEFAULT_MAX_CACHE_SIZE = 32L * 1024 * 1024;
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int MAX_ZIP_COMMENT_SIZE = 0xFFFF;
+
+	private static ClassBytesProvider defaultProvider = null;
+
+	private final ClassLoader classLoader;
+	private final List<File> classPathEntries = new ArrayList<File>();
+	private boolean indexed = false;
+
+	private final List<ByteBuffer> jarBuffers = new ArrayList<ByteBuffer>();
+	/** The position in {@link #classPathEntries} of each jar in {@link #jarBuffers} */
+	private final List<Integer> jarOrders = new ArrayList<Integer>();
+	private final List<File> directories = new ArrayList<File>();
+	/** The position in {@link #classPathEntries} of each directory in {@link #directories} */
+	private final List<Integer> directoryOrders = new ArrayList<Integer>();
+	/** The location of each class in the first jar that contains it */
+	private final Map<String, JarEntryLocation> jarEntries = new HashMap<String, JarEntryLocation>();
+
+	private final long maxCacheSize;
+	private long cacheSize = 0;
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+
+	private static class JarEntryLocation
+	{
+		final int jar;
+		final int localHeaderOffset;
+		final int compressedSize;
+		final int uncompressedSize;
+		final boolean deflated;
+
+		JarEntryLocation(int jar, int localHeaderOffset, int compressedSize, int uncompressedSize, boolean deflated)
+		{
+			this.jar = jar;
+			this.localHeaderOffset = localHeaderOffset;
+			this.compressedSize = compressedSize;
+			this.uncompressedSize = uncompressedSize;
+			this.deflated = deflated;
+		}
+	}
+
+	/**
+	 * @return The provider used by {@link ASMHelper}, which indexes the class path of the class loader that loaded ASMHelper.
+	 */
+	public static synchronized ClassBytesProvider getDefault()
+	{
+		if (defaultProvider == null)
+			defaultProvider = new ClassBytesProvider(ASMHelper.class.getClassLoader(), DEFAULT_MAX_CACHE_SIZE);
+		return defaultProvider;
+	}
+
+	/**
+	 * @param classLoader Used to find the class path to index (if it is a {@link URLClassLoader})
+	 * and to read classes that can not be found in the index.
+	 * @param maxCacheSize The maximum total size (in bytes) of cached class bytes.
+	 */
+	public ClassBytesProvider(ClassLoader classLoader, long maxCacheSize)
+	{
+		this.classLoader = classLoader;
+		this.maxCacheSize = maxCacheSize;
+
+		if (classLoader instanceof URLClassLoader)
+		{
+			for (URL url : ((URLClassLoader) classLoader).getURLs())
+			{
+				File file = toFile(url);
+				if (file != null)
+					classPathEntries.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Add a jar or directory to be indexed. Entries added earlier take precedence.
+	 * If the index has already been built, the entry is indexed immediately.
+	 */
+	public synchronized void addClassPathEntry(File jarOrDirectory)
+	{
+		classPathEntries.add(jarOrDirectory);
+		if (indexed)
+			index(jarOrDirectory, classPathEntries.size() - 1);
+	}
+
+	/**
+	 * @return The bytes of the class with the specified name, or {@code null} if it can not be found.
+	 * The array is shared with the cache and must not be modified.
+	 */
+	public byte[] getClassBytes(String className) throws IOException
+	{
+		String internalName = className.replace('.', '/');
+		byte[] bytes = getCached(internalName);
+		if (bytes == null)
+		{
+			bytes = readClassBytes(internalName);
+			if (bytes != null)
+				putCached(internalName, bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The internal names of all classes in the indexed jars and directories (not including classes only
+	 * available through the class loader fallback).
+	 */
+	public synchronized List<String> getIndexedClassNames()
+	{
+		ensureIndexed();
+		List<String> classNames = new ArrayList<String>(jarEntries.size());
+		for (String path : jarEntries.keySet())
+		{
+			classNames.add(path.substring(0, path.length() - ".class".length()));
+		}
+		for (File directory : directories)
+		{
+			addClassNames(classNames, directory, "");
+		}
+		return classNames;
+	}
+
+	private static void addClassNames(List<String> classNames, File directory, String pathPrefix)
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+		{
+			if (file.isDirectory())
+				addClassNames(classNames, file, pathPrefix + file.getName() + "/");
+			else if (file.getName().endsWith(".class"))
+				classNames.add(pathPrefix + file.getName().substring(0, file.getName().length() - ".class".length()));
+		}
+	}
+
+	/**
+	 * Remove the cached bytes of the class with the specified name, if any.
+	 */
+	public synchronized void invalidate(String className)
+	{
+		byte[] removed = cache.remove(className.replace('.', '/'));
+		if (removed != null)
+			cacheSize -= removed.length;
+	}
+
+	public synchronized void clearCache()
+	{
+		cache.clear();
+		cacheSize = 0;
+	}
+
+	private synchronized byte[] getCached(String internalName)
+	{
+		return cache.get(internalName);
+	}
+
+	private synchronized void putCached(String internalName, byte[] bytes)
+	{
+		if (bytes.length > maxCacheSize)
+			return;
+
+		byte[] replaced = cache.put(internalName, bytes);
+		cacheSize += bytes.length - (replaced != null ? replaced.length : 0);
+
+		Iterator<byte[]> eldest = cache.values().iterator();
+		while (cacheSize > maxCacheSize && eldest.hasNext())
+		{
+			cacheSize -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	private byte[] readClassBytes(String internalName) throws IOException
+	{
+		String path = internalName + ".class";
+		JarEntryLocation location;
+		ByteBuffer jarBuffer = null;
+		int jarOrder = Integer.MAX_VALUE;
+		List<File> directoriesToSearch = new ArrayList<File>();
+		synchronized (this)
+		{
+			ensureIndexed();
+			location = jarEntries.get(path);
+			if (location != null)
+			{
+				jarBuffer = jarBuffers.get(location.jar);
+				jarOrder = jarOrders.get(location.jar);
+			}
+			// only directories that come before the jar can take precedence over it
+			for (int i = 0; i < directories.size() && directoryOrders.get(i) < jarOrder; i++)
+			{
+				directoriesToSearch.add(directories.get(i));
+			}
+		}
+
+		for (File directory : directoriesToSearch)
+		{
+			File classFile = new File(directory, path);
+			if (classFile.isFile())
+				return readFully(new FileInputStream(classFile));
+		}
+
+		if (location != null)
+			return readJarEntry(jarBuffer, location);
+
+		if (classLoader == null)
+			return null;
+		InputStream classStream = ASMHelper.getClassAsStreamFromClassLoader(internalName, classLoader);
+		return classStream != null ? readFully(classStream) : null;
+	}
+
+	private void ensureIndexed()
+	{
+		if (!indexed)
+		{
+			for (int i = 0; i < classPathEntries.size(); i++)
+			{
+				index(classPathEntries.get(i), i);
+			}
+			indexed = true;
+		}
+	}
+
+	/**
+	 * @param order The position of the entry in {@link #classPathEntries}; entries are always indexed in order.
+	 */
+	private void index(File classPathEntry, int order)
+	{
+		if (classPathEntry.isDirectory())
+		{
+			directories.add(classPathEntry);
+			directoryOrders.add(order);
+			return;
+		}
+		if (!classPathEntry.isFile())
+			return;
+
+		try
+		{
+			ByteBuffer jarBuffer = map(classPathEntry);
+			int jar = jarBuffers.size();
+			if (indexCentralDirectory(jarBuffer, jar))
+			{
+				jarBuffers.add(jarBuffer);
+				jarOrders.add(order);
+			}
+		}
+		catch (IOException e)
+		{
+			// not a readable jar, the class loader fallback will still find its classes
+		}
+	}
+
+	/**
+	 * @return A read-only, little-endian, memory-mapped buffer of the entire file.
+	 */
+	public static ByteBuffer map(File file) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * @return The offset of the end of central directory record of the zip file in {@code zipBuffer}, or -1 if it can not be found.
+	 */
+	public static int findEndOfCentralDirectory(ByteBuffer zipBuffer)
+	{
+		int minOffset = Math.max(0, zipBuffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_ZIP_COMMENT_SIZE);
+		for (int offset = zipBuffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; offset >= minOffset; offset--)
+		{
+			if (zipBuffer.getInt(offset) == END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+				return offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return A checksum of the contents of a jar, computed from its central directory (which contains
+	 * the CRC of every entry) and its length, so that the entries themselves do not need to be read.
+	 */
+	public static long getJarChecksum(File jar) throws IOException
+	{
+		ByteBuffer jarBuffer = map(jar);
+		int endOfCentralDirectory = findEndOfCentralDirectory(jarBuffer);
+		if (endOfCentralDirectory < 0)
+			throw new IOException("Not a jar: " + jar);
+
+		int centralDirectoryOffset = jarBuffer.getInt(endOfCentralDirectory + 16);
+		if (centralDirectoryOffset < 0 || centralDirectoryOffset > endOfCentralDirectory)
+			centralDirectoryOffset = endOfCentralDirectory;
+
+		byte[] centralDirectory = new byte[jarBuffer.limit() - centralDirectoryOffset];
+		ByteBuffer slice = jarBuffer.duplicate();
+		slice.position(centralDirectoryOffset);
+		slice.get(centralDirectory);
+
+		CRC32 crc = new CRC32();
+		crc.update(centralDirectory);
+		return (crc.getValue() << 32) ^ jarBuffer.limit();
+	}
+
+	/**
+	 * @return Whether or not the jar could be indexed (ZIP64 jars are not supported).
+	 */
+	private boolean indexCentralDirectory(ByteBuffer jarBuffer, int jar)
+	{
+		int endOfCentralDirectory = findEndOfCentralDirectory(jarBuffer);
+		if (endOfCentralDirectory < 0)
+			return false;
+
+		int numEntries = jarBuffer.getShort(endOfCentralDirectory + 10) & 0xFFFF;
+		long centralDirectoryOffset = jarBuffer.getInt(endOfCentralDirectory + 16) & 0xFFFFFFFFL;
+		if (numEntries == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL || centralDirectoryOffset >= jarBuffer.limit())
+			return false;
+
+		int offset = (int) centralDirectoryOffset;
+		byte[] nameBuffer = new byte[256];
+		Map<String, JarEntryLocation> entries = new HashMap<String, JarEntryLocation>();
+		for (int i = 0; i < numEntries; i++)
+		{
+			if (jarBuffer.getInt(offset) != CENTRAL_HEADER_SIGNATURE)
+				return false;
+
+			int method = jarBuffer.getShort(offset + 10) & 0xFFFF;
+			int compressedSize = jarBuffer.getInt(offset + 20);
+			int uncompressedSize = jarBuffer.getInt(offset + 24);
+			int nameLength = jarBuffer.getShort(offset + 28) & 0xFFFF;
+			int extraLength = jarBuffer.getShort(offset + 30) & 0xFFFF;
+			int commentLength = jarBuffer.getShort(offset + 32) & 0xFFFF;
+			int localHeaderOffset = jarBuffer.getInt(offset + 42);
+
+			if (nameBuffer.length < nameLength)
+				nameBuffer = new byte[nameLength];
+			ByteBuffer nameSlice = jarBuffer.duplicate();
+			nameSlice.position(offset + 46);
+			nameSlice.get(nameBuffer, 0, nameLength);
+			String name = decodeName(nameBuffer, nameLength);
+
+			if (name.endsWith(".class") && !jarEntries.containsKey(name) && (method == 0 || method == 8) && compressedSize >= 0 && uncompressedSize >= 0 && localHeaderOffset >= 0)
+				entries.put(name, new JarEntryLocation(jar, localHeaderOffset, compressedSize, uncompressedSize, method == 8));
+
+			offset += 46 + nameLength + extraLength + commentLength;
+		}
+		jarEntries.putAll(entries);
+		return true;
+	}
+
+	private static String decodeName(byte[] nameBuffer, int nameLength)
+	{
+		try
+		{
+			return new String(nameBuffer, 0, nameLength, "UTF-8");
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] readJarEntry(ByteBuffer jarBuffer, JarEntryLocation location) throws IOException
+	{
+		if (jarBuffer.getInt(location.localHeaderOffset) != LOCAL_HEADER_SIGNATURE)
+			throw new IOException("Invalid local header at offset " + location.localHeaderOffset);
+
+		int nameLength = jarBuffer.getShort(location.localHeaderOffset + 26) & 0xFFFF;
+		int extraLength = jarBuffer.getShort(location.localHeaderOffset + 28) & 0xFFFF;
+		ByteBuffer data = jarBuffer.duplicate();
+		data.position(location.localHeaderOffset + 30 + nameLength + extraLength);
+
+		if (!location.deflated)
+		{
+			byte[] bytes = new byte[location.uncompressedSize];
+			data.get(bytes);
+			return bytes;
+		}
+
+		// the extra byte is required by Inflater when using the 'nowrap' option
+		byte[] compressed = new byte[location.compressedSize + 1];
+		data.get(compressed, 0, location.compressedSize);
+		byte[] bytes = new byte[location.uncompressedSize];
+		Inflater inflater = new Inflater(true);
+		try
+		{
+			inflater.setInput(compressed);
+			int numInflated = 0;
+			while (numInflated < bytes.length && !inflater.finished())
+			{
+				int inflated = inflater.inflate(bytes, numInflated, bytes.length - numInflated);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				numInflated += inflated;
+			}
+			if (numInflated != bytes.length)
+				throw new IOException("Unexpected end of deflated jar entry");
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(e.toString());
+		}
+		finally
+		{
+			inflater.end();
+		}
+		return bytes;
+	}
+
+	private static byte[] readFully(InputStream inputStream) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream(4096);
+			byte[] buffer = new byte[4096];
+			int numRead;
+			while ((numRead = inputStream.read(buffer)) != -1)
+			{
+				outputStream.write(buffer, 0, numRead);
+			}
+			return outputStream.toByteArray();
+		}
+		finally
+		{
+			inputStream.close();
+		}
+	}
+
+	private static File toFile(URL url)
+	{
+		if (!"file".equals(url.getProtocol()))
+			return null;
+		try
+		{
+			return new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package squeek.asmhelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Answers subtype and common super class queries without loading any classes.<br>
+ * <br>
+ * Class names are internal names as they appear in the class bytes (i.e. obfuscated names in an obfuscated environment).
+ * Classes are looked up in a {@link ClassHierarchySnapshot} first (if one has been set), then read from a
+ * {@link ClassBytesProvider}. Either way, the result is cached.
+ */
+public class ClassHierarchy
+{
+	private static ClassHierarchy defaultHierarchy = null;
+	private static final ClassInfo MISSING = new ClassInfo(null, null, new String[0], 0);
+
+	private final ClassBytesProvider classBytesProvider;
+	private volatile ClassHierarchySnapshot snapshot = null;
+	private final ConcurrentHashMap<String, ClassInfo> cache = new ConcurrentHashMap<String, ClassInfo>();
+
+	/**
+	 * The super class, interfaces and access flags of a class.
+	 */
+	public static class ClassInfo
+	{
+		public final String name;
+		/** The internal name of the super class, or {@code null} for java/lang/Object */
+		public final String superName;
+		public final String[] interfaces;
+		public final int access;
+
+		public ClassInfo(String name, String superName, String[] interfaces, int access)
+		{
+			this.name = name;
+			this.superName = superName;
+			this.interfaces = interfaces;
+			this.access = access;
+		}
+
+		public boolean isInterface()
+		{
+			return (access & Opcodes.ACC_INTERFACE) != 0;
+		}
+	}
+
+	/**
+	 * @return The hierarchy used by {@link ASMHelper} and {@link ObfRemappingClassWriter}, which reads classes using {@link ClassBytesProvider#getDefault()}.
+	 */
+	public static synchronized ClassHierarchy getDefault()
+	{
+		if (defaultHierarchy == null)
+			defaultHierarchy = new ClassHierarchy(ClassBytesProvider.getDefault());
+		return defaultHierarchy;
+	}
+
+	/**
+	 * Replace the hierarchy used by {@link ASMHelper} and {@link ObfRemappingClassWriter}.
+	 */
+	public static synchronized void setDefault(ClassHierarchy classHierarchy)
+	{
+		defaultHierarchy = classHierarchy;
+	}
+
+	public ClassHierarchy(ClassBytesProvider classBytesProvider)
+	{
+		this.classBytesProvider = classBytesProvider;
+	}
+
+	/**
+	 * Set a prebuilt snapshot to answer queries from before falling back to reading classes.
+	 * Can be {@code null} to stop using a snapshot.
+	 */
+	public void setSnapshot(ClassHierarchySnapshot snapshot)
+	{
+		this.snapshot = snapshot;
+		cache.clear();
+	}
+
+	/**
+	 * @return The {@link ClassInfo} of the class with the specified internal name, or {@code null} if it can not be found.
+	 */
+	public ClassInfo getClassInfo(String internalName)
+	{
+		ClassInfo classInfo = cache.get(internalName);
+		if (classInfo == null)
+		{
+			classInfo = readClassInfo(internalName);
+			cache.put(internalName, classInfo != null ? classInfo : MISSING);
+		}
+		return classInfo != MISSING ? classInfo : null;
+	}
+
+	private ClassInfo readClassInfo(String internalName)
+	{
+		ClassHierarchySnapshot snapshot = this.snapshot;
+		if (snapshot != null)
+		{
+			ClassInfo classInfo = snapshot.getClassInfo(internalName);
+			if (classInfo != null)
+				return classInfo;
+		}
+
+		try
+		{
+			byte[] bytes = classBytesProvider.getClassBytes(internalName);
+			return bytes != null ? readClassInfo(new ClassReader(bytes)) : null;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return The {@link ClassInfo} of the class read by the ClassReader (only its header is read).
+	 */
+	public static ClassInfo readClassInfo(ClassReader classReader)
+	{
+		return new ClassInfo(classReader.getClassName(), classReader.getSuperName(), classReader.getInterfaces(), classReader.getAccess());
+	}
+
+	/**
+	 * Remove the cached information of the class with the specified internal name, if any.
+	 */
+	public void invalidate(String internalName)
+	{
+		cache.remove(internalName);
+	}
+
+	/**
+	 * @return The internal name of the super class of the specified class, or {@code null} if it has none or can not be found.
+	 */
+	public String getSuperName(String internalName)
+	{
+		ClassInfo classInfo = getClassInfo(internalName);
+		return classInfo != null ? classInfo.superName : null;
+	}
+
+	/**
+	 * @return The internal names of the interfaces directly implemented by the specified class, or {@code null} if it can not be found.
+	 */
+	public String[] getInterfaces(String internalName)
+	{
+		ClassInfo classInfo = getClassInfo(internalName);
+		return classInfo != null ? classInfo.interfaces : null;
+	}
+
+	/**
+	 * @return Whether or not the specified class is an interface ({@code false} if it can not be found).
+	 */
+	public boolean isInterface(String internalName)
+	{
+		ClassInfo classInfo = getClassInfo(internalName);
+		return classInfo != null && classInfo.isInterface();
+	}
+
+	/**
+	 * @return Whether or not {@code type} is the same as, extends, or implements {@code superType}.
+	 * Classes that can not be found are treated as having no supertypes.
+	 */
+	public boolean isAssignableFrom(String superType, String type)
+	{
+		if (superType.equals(type) || superType.equals("java/lang/Object"))
+			return true;
+
+		List<String> toVisit = new ArrayList<String>();
+		Set<String> visited = new HashSet<String>();
+		toVisit.add(type);
+		while (!toVisit.isEmpty())
+		{
+			String current = toVisit.remove(toVisit.size() - 1);
+			if (!visited.add(current))
+				continue;
+			if (current.equals(superType))
+				return true;
+
+			ClassInfo classInfo = getClassInfo(current);
+			if (classInfo == null)
+				continue;
+			if (classInfo.superName != null)
+				toVisit.add(classInfo.superName);
+			for (String interfaceName : classInfo.interfaces)
+			{
+				toVisit.add(interfaceName);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The equivalent of {@link org.objectweb.asm.ClassWriter#getCommonSuperClass} without loading any classes.
+	 *
+	 * @return The internal name of the closest common super class of both types, or {@code null} if any class in their hierarchies can not be found.
+	 */
+	public String getCommonSuperClass(String type1, String type2)
+	{
+		if (!isSuperClassChainComplete(type1) || !isSuperClassChainComplete(type2))
+			return null;
+
+		if (isAssignableFrom(type1, type2))
+			return type1;
+		if (isAssignableFrom(type2, type1))
+			return type2;
+		if (isInterface(type1) || isInterface(type2))
+			return "java/lang/Object";
+
+		String superName = getSuperName(type1);
+		while (!isAssignableFrom(superName, type2))
+		{
+			superName = getSuperName(superName);
+		}
+		return superName;
+	}
+
+	private boolean isSuperClassChainComplete(String internalName)
+	{
+		for (String className = internalName; className != null && !className.equals("java/lang/Object"); )
+		{
+			ClassInfo classInfo = getClassInfo(className);
+			if (classInfo == null)
+				return false;
+			className = classInfo.superName;
+		}
+		return true;
+	}
+}
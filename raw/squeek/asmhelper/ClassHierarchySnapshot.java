@@ -0,0 +1,324 @@
+package squeek.asmhelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * A prebuilt, memory-mapped snapshot of the class hierarchy (super class, interfaces and access flags of every class)
+ * of a set of jars, so that {@link ClassHierarchy} queries can be answered without reading any classes.<br>
+ * <br>
+ * The snapshot is built ahead of time, either with {@link #build} or from the command line:
+ * <pre>
+ * java -cp asmhelper.jar:asm.jar squeek.asmhelper.ClassHierarchySnapshot hierarchy.bin minecraft.jar mods/*.jar
+ * </pre>
+ * and loaded at startup with {@link #load}, which only succeeds if the checksums
+ * (see {@link ClassBytesProvider#getJarChecksum}) of the jars still match the ones it was built from.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * ClassHierarchySnapshot snapshot = ClassHierarchySnapshot.load(new File("hierarchy.bin"), jars);
+ * if (snapshot != null)
+ *     ClassHierarchy.getDefault().setSnapshot(snapshot);
+ * }
+ * </pre>
+ */
+public class ClassHierarchySnapshot
+{
+	private static final int FILE_MAGIC = 0x41534D48; // "ASMH"
+	private static final int FILE_VERSION = 2;
+	private static final int CLASS_RECORD_SIZE = 20;
+	private static final int NO_SUPER = -1;
+
+	/**
+	 * The order of the class records: the unsigned byte order of the UTF-8 encoded names,
+	 * so that a name can be compared with a record without decoding it.
+	 */
+	private static final Comparator<String> UTF8_ORDER = new Comparator<String>()
+	{
+		@Override
+		public int compare(String first, String second)
+		{
+			byte[] firstBytes = toBytes(first);
+			byte[] secondBytes = toBytes(second);
+			int length = Math.min(firstBytes.length, secondBytes.length);
+			for (int i = 0; i < length; i++)
+			{
+				if (firstBytes[i] != secondBytes[i])
+					return (firstBytes[i] & 0xFF) - (secondBytes[i] & 0xFF);
+			}
+			return firstBytes.length - secondBytes.length;
+		}
+	};
+
+	private final ByteBuffer buffer;
+	private final int numClasses;
+	private final int classesOffset;
+	private final int interfacesOffset;
+	private final int stringOffsetsOffset;
+
+	private ClassHierarchySnapshot(ByteBuffer buffer, int numClasses, int classesOffset, int interfacesOffset, int stringOffsetsOffset)
+	{
+		this.buffer = buffer;
+		this.numClasses = numClasses;
+		this.classesOffset = classesOffset;
+		this.interfacesOffset = interfacesOffset;
+		this.stringOffsetsOffset = stringOffsetsOffset;
+	}
+
+	/**
+	 * @return The number of classes in the snapshot.
+	 */
+	public int size()
+	{
+		return numClasses;
+	}
+
+	/**
+	 * @return The {@link ClassHierarchy.ClassInfo} of the class with the specified internal name, or {@code null} if it is not in the snapshot.
+	 */
+	public ClassHierarchy.ClassInfo getClassInfo(String internalName)
+	{
+		byte[] nameBytes = toBytes(internalName);
+		int low = 0, high = numClasses - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int record = classesOffset + mid * CLASS_RECORD_SIZE;
+			int compared = compareString(buffer.getInt(record), nameBytes);
+			if (compared < 0)
+				low = mid + 1;
+			else if (compared > 0)
+				high = mid - 1;
+			else
+				return readClassInfo(record, internalName);
+		}
+		return null;
+	}
+
+	private ClassHierarchy.ClassInfo readClassInfo(int record, String internalName)
+	{
+		int superName = buffer.getInt(record + 4);
+		int access = buffer.getInt(record + 8);
+		int firstInterface = buffer.getInt(record + 12);
+		String[] interfaces = new String[buffer.getInt(record + 16)];
+		for (int i = 0; i < interfaces.length; i++)
+		{
+			interfaces[i] = readString(buffer.getInt(interfacesOffset + (firstInterface + i) * 4));
+		}
+		return new ClassHierarchy.ClassInfo(internalName, superName != NO_SUPER ? readString(superName) : null, interfaces, access);
+	}
+
+	/**
+	 * Compares the stored string with the given UTF-8 bytes in place, in {@link #UTF8_ORDER}.
+	 */
+	private int compareString(int stringId, byte[] bytes)
+	{
+		int offset = buffer.getInt(stringOffsetsOffset + stringId * 4);
+		int storedLength = buffer.getShort(offset) & 0xFFFF;
+		int length = Math.min(storedLength, bytes.length);
+		offset += 2;
+		for (int i = 0; i < length; i++)
+		{
+			int stored = buffer.get(offset + i) & 0xFF;
+			int compared = bytes[i] & 0xFF;
+			if (stored != compared)
+				return stored - compared;
+		}
+		return storedLength - bytes.length;
+	}
+
+	private String readString(int stringId)
+	{
+		int offset = buffer.getInt(stringOffsetsOffset + stringId * 4);
+		byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+		ByteBuffer slice = buffer.duplicate();
+		slice.position(offset + 2);
+		slice.get(bytes);
+		return toString(bytes);
+	}
+
+	/**
+	 * Reads a snapshot from {@code file} by memory-mapping it.
+	 *
+	 * @return The snapshot, or {@code null} if it was not built from {@code jars} or any of their checksums have changed.
+	 */
+	public static ClassHierarchySnapshot load(File file, List<File> jars) throws IOException
+	{
+		ByteBuffer buffer = ClassBytesProvider.map(file);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		if (buffer.limit() < 12 || buffer.getInt(0) != FILE_MAGIC || buffer.getInt(4) != FILE_VERSION || buffer.getInt(8) != jars.size())
+			return null;
+
+		int offset = 12;
+		for (File jar : jars)
+		{
+			if (buffer.getLong(offset) != ClassBytesProvider.getJarChecksum(jar))
+				return null;
+			offset += 8;
+		}
+
+		int numClasses = buffer.getInt(offset);
+		int classesOffset = offset + 4;
+		offset = classesOffset + numClasses * CLASS_RECORD_SIZE;
+		int numInterfaces = buffer.getInt(offset);
+		int interfacesOffset = offset + 4;
+		offset = interfacesOffset + numInterfaces * 4;
+		int stringOffsetsOffset = offset + 4;
+		return new ClassHierarchySnapshot(buffer, numClasses, classesOffset, interfacesOffset, stringOffsetsOffset);
+	}
+
+	/**
+	 * Reads the header of every class in {@code jars} and writes the resulting snapshot to {@code file}.
+	 * If a class is in more than one jar, the first one takes precedence.
+	 */
+	public static void build(List<File> jars, File file) throws IOException
+	{
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(null, 0);
+		for (File jar : jars)
+		{
+			classBytesProvider.addClassPathEntry(jar);
+		}
+
+		TreeMap<String, ClassHierarchy.ClassInfo> classes = new TreeMap<String, ClassHierarchy.ClassInfo>(UTF8_ORDER);
+		for (String className : classBytesProvider.getIndexedClassNames())
+		{
+			// module descriptors are not part of the hierarchy, and cannot be read by older ASM versions
+			if (className.endsWith("module-info") || classes.containsKey(className))
+				continue;
+			byte[] bytes = classBytesProvider.getClassBytes(className);
+			if (bytes != null)
+				classes.put(className, ClassHierarchy.readClassInfo(new ClassReader(bytes)));
+		}
+
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		List<Integer> interfaces = new ArrayList<Integer>();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(jars.size());
+			for (File jar : jars)
+			{
+				out.writeLong(ClassBytesProvider.getJarChecksum(jar));
+			}
+
+			// class records, sorted by the bytes of their names so that they can be binary searched
+			out.writeInt(classes.size());
+			for (Map.Entry<String, ClassHierarchy.ClassInfo> entry : classes.entrySet())
+			{
+				ClassHierarchy.ClassInfo classInfo = entry.getValue();
+				out.writeInt(getStringId(entry.getKey(), stringIds, strings));
+				out.writeInt(classInfo.superName != null ? getStringId(classInfo.superName, stringIds, strings) : NO_SUPER);
+				out.writeInt(classInfo.access);
+				out.writeInt(interfaces.size());
+				out.writeInt(classInfo.interfaces.length);
+				for (String interfaceName : classInfo.interfaces)
+				{
+					interfaces.add(getStringId(interfaceName, stringIds, strings));
+				}
+			}
+
+			out.writeInt(interfaces.size());
+			for (int interfaceName : interfaces)
+			{
+				out.writeInt(interfaceName);
+			}
+
+			// string offsets, followed by the strings themselves
+			int stringsOffset = out.size() + 4 + strings.size() * 4;
+			ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+			DataOutputStream stringOut = new DataOutputStream(stringData);
+			out.writeInt(strings.size());
+			for (String string : strings)
+			{
+				out.writeInt(stringsOffset + stringData.size());
+				byte[] bytes = toBytes(string);
+				stringOut.writeShort(bytes.length);
+				stringOut.write(bytes);
+			}
+			stringData.writeTo(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static int getStringId(String string, Map<String, Integer> stringIds, List<String> strings)
+	{
+		Integer stringId = stringIds.get(string);
+		if (stringId == null)
+		{
+			stringId = strings.size();
+			stringIds.put(string, stringId);
+			strings.add(string);
+		}
+		return stringId;
+	}
+
+	private static byte[] toBytes(String string)
+	{
+		try
+		{
+			return string.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toString(byte[] bytes)
+	{
+		try
+		{
+			return new String(bytes, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Builds a snapshot from the command line.<br>
+	 * <br>
+	 * Usage: {@code ClassHierarchySnapshot <output file> <jar>...}
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: ClassHierarchySnapshot <output file> <jar>...");
+			System.exit(1);
+		}
+
+		List<File> jars = new ArrayList<File>();
+		for (String jar : Arrays.asList(args).subList(1, args.length))
+		{
+			jars.add(new File(jar));
+		}
+		File file = new File(args[0]);
+		build(jars, file);
+		System.out.println("Wrote the hierarchy of " + load(file, jars).size() + " classes to " + file);
+	}
+}
@@ -0,0 +1,161 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Searches every method of a class for a pattern, using multiple threads for large classes.<br>
+ * <br>
+ * The search does not modify the instructions in any way (unlike {@link ASMHelper#checkForPatternAt}, which adds them to a new list),
+ * so methods can safely be searched in parallel. Classes with at least {@link TransformContext#getParallelSearchThreshold()} instructions
+ * are split into one task per method and searched using {@link TransformContext#getSearchExecutor()}; smaller classes are searched
+ * on the current thread.<br>
+ * <br>
+ * Note: The comparator of the context is used from multiple threads at once, so it must be thread-safe.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * for (Map.Entry<MethodNode, List<AbstractInsnNode>> entry : ClassSearch.findAll(classNode, needle).entrySet())
+ * {
+ *     for (AbstractInsnNode match : entry.getValue())
+ *         entry.getKey().instructions.insertBefore(match, hook);
+ * }
+ * }
+ * </pre>
+ */
+public class ClassSearch
+{
+	/** The number of instructions a class must have to be searched using multiple threads, unless set otherwise with {@link TransformContext#setParallelSearchThreshold} */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+
+	/**
+	 * Searches every method of {@code classNode} for every match of {@code needle}.
+	 * As with {@link ASMHelper#findAndReplaceAll}, each search within a method continues after the end of the previous match.
+	 *
+	 * @return The first instruction of every match, for each method that contains at least one match (in the order of {@code classNode.methods}).
+	 */
+	public static Map<MethodNode, List<AbstractInsnNode>> findAll(ClassNode classNode, InsnList needle)
+	{
+		return findAll(classNode, needle, TransformContext.getDefault());
+	}
+
+	/**
+	 * Overload of {@link #findAll(ClassNode, InsnList)} that uses the comparator, threshold and executor of {@code context}.
+	 */
+	public static Map<MethodNode, List<AbstractInsnNode>> findAll(ClassNode classNode, final InsnList needle, TransformContext context)
+	{
+		final InsnComparator insnComparator = context.getInsnComparator();
+		Map<MethodNode, List<AbstractInsnNode>> matches = new LinkedHashMap<MethodNode, List<AbstractInsnNode>>();
+		if (needle.getFirst() == null)
+			return matches;
+
+		// materializing modifies the class, so it can only be done on this thread
+		if (classNode instanceof LazyClassNode)
+			((LazyClassNode) classNode).materializeAll();
+
+		int totalInsns = 0;
+		for (MethodNode method : classNode.methods)
+		{
+			totalInsns += method.instructions.size();
+		}
+
+		if (totalInsns < context.getParallelSearchThreshold() || classNode.methods.size() < 2)
+		{
+			for (MethodNode method : classNode.methods)
+			{
+				addMatches(matches, method, findAll(method.instructions, needle, insnComparator));
+			}
+			return matches;
+		}
+
+		ExecutorService executor = context.getSearchExecutor();
+		List<Future<List<AbstractInsnNode>>> futures = new ArrayList<Future<List<AbstractInsnNode>>>(classNode.methods.size());
+		for (final MethodNode method : classNode.methods)
+		{
+			futures.add(executor.submit(new Callable<List<AbstractInsnNode>>()
+			{
+				@Override
+				public List<AbstractInsnNode> call()
+				{
+					return findAll(method.instructions, needle, insnComparator);
+				}
+			}));
+		}
+
+		try
+		{
+			for (int i = 0; i < futures.size(); i++)
+			{
+				addMatches(matches, classNode.methods.get(i), futures.get(i).get());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while searching " + classNode.name, e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			for (Future<List<AbstractInsnNode>> future : futures)
+			{
+				future.cancel(true);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Searches {@code haystack} for every match of {@code needle} on the current thread, without modifying it.
+	 *
+	 * @return The first instruction of every match.
+	 */
+	public static List<AbstractInsnNode> findAll(InsnList haystack, InsnList needle)
+	{
+		return findAll(haystack, needle, TransformContext.getDefault().getInsnComparator());
+	}
+
+	/**
+	 * Overload of {@link #findAll(InsnList, InsnList)} that compares instructions using {@code insnComparator}.
+	 */
+	public static List<AbstractInsnNode> findAll(InsnList haystack, InsnList needle, InsnComparator insnComparator)
+	{
+		List<AbstractInsnNode> matches = new ArrayList<AbstractInsnNode>();
+		int needleStartOpcode = needle.getFirst().getOpcode();
+		AbstractInsnNode candidate = ASMHelper.getOrFindInstructionWithOpcode(haystack.getFirst(), needleStartOpcode);
+		while (candidate != null)
+		{
+			AbstractInsnNode last = ASMHelper.getLastMatchedInsn(needle, candidate, insnComparator, null);
+			if (last != null)
+			{
+				matches.add(candidate);
+				candidate = ASMHelper.getOrFindInstructionWithOpcode(last.getNext(), needleStartOpcode);
+			}
+			else
+				candidate = ASMHelper.findNextInstructionWithOpcode(candidate, needleStartOpcode);
+		}
+		return matches;
+	}
+
+	private static void addMatches(Map<MethodNode, List<AbstractInsnNode>> matches, MethodNode method, List<AbstractInsnNode> methodMatches)
+	{
+		if (!methodMatches.isEmpty())
+			matches.put(method, methodMatches);
+	}
+}
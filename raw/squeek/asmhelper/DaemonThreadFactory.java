@@ -0,0 +1,30 @@
+package squeek.asmhelper;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of ASMHelper's thread pools, named "ASMHelper {@code name} n",
+ * so that they never keep the game from exiting.
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+	private final String name;
+	private final int priority;
+	private final AtomicInteger threadNumber = new AtomicInteger();
+
+	DaemonThreadFactory(String name, int priority)
+	{
+		this.name = name;
+		this.priority = priority;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable)
+	{
+		Thread thread = new Thread(runnable, "ASMHelper " + name + " " + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		thread.setPriority(priority);
+		return thread;
+	}
+}
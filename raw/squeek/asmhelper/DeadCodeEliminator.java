@@ -0,0 +1,542 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableAnnotationNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Removes instructions that can never be executed, such as the instructions left behind by
+ * {@link ASMHelper#skipInstructions}, along with the labels, line numbers, frames, try-catch blocks
+ * and local variables that only covered them.<br>
+ * <br>
+ * Labels that are not referenced by anything are removed as well, so any {@link LabelNode}s that are
+ * being held onto for later edits should be referenced (or the pass run after those edits).<br>
+ * <br>
+ * Compressed frames (F_SAME, F_APPEND, etc.) are relative to the previous frame, so a frame that follows removed frames
+ * is re-encoded relative to the last frame that is kept. This keeps the frames valid when they are written as-is
+ * (e.g. by {@link ASMHelper#writeClassToBytesNoDeobfSkipFrames}). Re-encoding may need the implicit first frame of the method,
+ * which includes the type of {@code this}, so instance methods should be passed along with the name of their owner
+ * (see {@link #eliminate(String, MethodNode)}).<br>
+ * <br>
+ * Methods containing JSR/RET instructions are left untouched.
+ */
+public class DeadCodeEliminator
+{
+	/**
+	 * What was removed by a call to {@link DeadCodeEliminator#eliminate}.
+	 */
+	public static class Result
+	{
+		public int instructionsRemoved = 0;
+		public int labelsRemoved = 0;
+		public int tryCatchBlocksRemoved = 0;
+		public int localVariablesRemoved = 0;
+		/**
+		 * An estimate of the number of bytes of bytecode saved (see {@link DeadCodeEliminator#estimateInsnSize}).
+		 */
+		public int bytesSaved = 0;
+
+		public boolean isEmpty()
+		{
+			return instructionsRemoved == 0 && labelsRemoved == 0 && tryCatchBlocksRemoved == 0 && localVariablesRemoved == 0;
+		}
+
+		public void add(Result other)
+		{
+			instructionsRemoved += other.instructionsRemoved;
+			labelsRemoved += other.labelsRemoved;
+			tryCatchBlocksRemoved += other.tryCatchBlocksRemoved;
+			localVariablesRemoved += other.localVariablesRemoved;
+			bytesSaved += other.bytesSaved;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "removed " + instructionsRemoved + " instructions, " + labelsRemoved + " labels, " + tryCatchBlocksRemoved + " try-catch blocks, " + localVariablesRemoved + " local variables (~" + bytesSaved + " bytes)";
+		}
+	}
+
+	/**
+	 * Runs {@link #eliminate(MethodNode)} on every method of {@code classNode}.
+	 *
+	 * @return The combined result for all methods.
+	 */
+	public static Result eliminate(ClassNode classNode)
+	{
+		Result result = new Result();
+		for (MethodNode method : classNode.methods)
+		{
+			result.add(eliminate(classNode.name, method));
+		}
+		return result;
+	}
+
+	/**
+	 * Removes unreachable code and unused labels from {@code method}.
+	 *
+	 * @return What was removed.
+	 * @throws IllegalArgumentException If {@code method} is an instance method with a compressed frame that needs to be re-encoded
+	 * as a full frame that includes {@code this}; use {@link #eliminate(String, MethodNode)} instead.
+	 */
+	public static Result eliminate(MethodNode method)
+	{
+		return eliminate(null, method);
+	}
+
+	/**
+	 * Removes unreachable code and unused labels from {@code method}.
+	 *
+	 * @param owner The internal name of the class that declares {@code method}, or {@code null} if it is not known.
+	 * @return What was removed.
+	 */
+	public static Result eliminate(String owner, MethodNode method)
+	{
+		Result result = new Result();
+		InsnList instructions = method.instructions;
+		if (instructions.size() == 0)
+			return result;
+
+		AbstractInsnNode[] insns = instructions.toArray();
+		Map<LabelNode, Integer> labelIndexes = new HashMap<LabelNode, Integer>();
+		for (int i = 0; i < insns.length; i++)
+		{
+			if (insns[i].getOpcode() == Opcodes.JSR || insns[i].getOpcode() == Opcodes.RET)
+				return result;
+			if (insns[i] instanceof LabelNode)
+				labelIndexes.put((LabelNode) insns[i], i);
+		}
+
+		boolean[] reachable = findReachable(insns, labelIndexes, method.tryCatchBlocks);
+
+		// try-catch blocks and local variables that no longer cover any instructions
+		if (method.tryCatchBlocks != null)
+		{
+			for (Iterator<TryCatchBlockNode> it = method.tryCatchBlocks.iterator(); it.hasNext();)
+			{
+				TryCatchBlockNode tryCatchBlock = it.next();
+				if (!coversReachableInstruction(insns, reachable, labelIndexes.get(tryCatchBlock.start), labelIndexes.get(tryCatchBlock.end)))
+				{
+					it.remove();
+					result.tryCatchBlocksRemoved++;
+				}
+			}
+		}
+		if (method.localVariables != null)
+		{
+			for (Iterator<LocalVariableNode> it = method.localVariables.iterator(); it.hasNext();)
+			{
+				LocalVariableNode localVar = it.next();
+				int start = labelIndexes.get(localVar.start);
+				int end = labelIndexes.get(localVar.end);
+				if (coversInstruction(insns, start, end) && !coversReachableInstruction(insns, reachable, start, end))
+				{
+					it.remove();
+					result.localVariablesRemoved++;
+				}
+			}
+		}
+
+		reencodeFramesAfterRemovedFrames(owner, method, insns, reachable);
+
+		for (int i = 0; i < insns.length; i++)
+		{
+			if (reachable[i] || insns[i] instanceof LabelNode)
+				continue;
+
+			if (insns[i].getOpcode() >= 0)
+			{
+				result.instructionsRemoved++;
+				result.bytesSaved += estimateInsnSize(insns[i]);
+			}
+			instructions.remove(insns[i]);
+		}
+
+		Set<LabelNode> referencedLabels = findReferencedLabels(method);
+		for (AbstractInsnNode insn : insns)
+		{
+			if (insn instanceof LabelNode && !referencedLabels.contains(insn))
+			{
+				instructions.remove(insn);
+				result.labelsRemoved++;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Stands in for the type of {@code this} in the implicit first frame when the owner of the method is not known.
+	 */
+	private static final Object UNKNOWN_THIS = new Object();
+
+	/**
+	 * Re-encodes every kept compressed frame that follows a removed frame, so that it is relative to the previous kept frame.
+	 */
+	private static void reencodeFramesAfterRemovedFrames(String owner, MethodNode method, AbstractInsnNode[] insns, boolean[] reachable)
+	{
+		List<Object> locals = getImplicitFrameLocals(owner, method);
+		List<Object> keptLocals = locals;
+		boolean removedFrame = false;
+		for (int i = 0; i < insns.length; i++)
+		{
+			if (!(insns[i] instanceof FrameNode))
+				continue;
+			FrameNode frame = (FrameNode) insns[i];
+			if (frame.type == Opcodes.F_NEW)
+				return;
+			locals = applyFrame(locals, frame);
+			if (!reachable[i])
+			{
+				removedFrame = true;
+				continue;
+			}
+
+			if (removedFrame && frame.type != Opcodes.F_FULL)
+				reencodeFrame(frame, keptLocals, locals);
+			removedFrame = false;
+			keptLocals = locals;
+		}
+	}
+
+	/**
+	 * @return The locals of the implicit first frame of {@code method}, in the compressed format of {@link FrameNode#local}.
+	 */
+	private static List<Object> getImplicitFrameLocals(String owner, MethodNode method)
+	{
+		List<Object> locals = new ArrayList<Object>();
+		if ((method.access & Opcodes.ACC_STATIC) == 0)
+		{
+			if ("<init>".equals(method.name))
+				locals.add(Opcodes.UNINITIALIZED_THIS);
+			else
+				locals.add(owner != null ? owner : UNKNOWN_THIS);
+		}
+		for (Type argumentType : Type.getArgumentTypes(method.desc))
+		{
+			switch (argumentType.getSort())
+			{
+				case Type.BOOLEAN:
+				case Type.CHAR:
+				case Type.BYTE:
+				case Type.SHORT:
+				case Type.INT:
+					locals.add(Opcodes.INTEGER);
+					break;
+				case Type.FLOAT:
+					locals.add(Opcodes.FLOAT);
+					break;
+				case Type.LONG:
+					locals.add(Opcodes.LONG);
+					break;
+				case Type.DOUBLE:
+					locals.add(Opcodes.DOUBLE);
+					break;
+				case Type.ARRAY:
+					locals.add(argumentType.getDescriptor());
+					break;
+				default:
+					locals.add(argumentType.getInternalName());
+					break;
+			}
+		}
+		return locals;
+	}
+
+	/**
+	 * @return The locals after {@code frame}, given the locals before it.
+	 */
+	private static List<Object> applyFrame(List<Object> locals, FrameNode frame)
+	{
+		switch (frame.type)
+		{
+			case Opcodes.F_FULL:
+				return new ArrayList<Object>(frame.local);
+			case Opcodes.F_APPEND:
+				List<Object> appended = new ArrayList<Object>(locals);
+				appended.addAll(frame.local);
+				return appended;
+			case Opcodes.F_CHOP:
+				return new ArrayList<Object>(locals.subList(0, Math.max(0, locals.size() - frame.local.size())));
+			default:
+				return locals;
+		}
+	}
+
+	/**
+	 * Changes {@code frame} so that it describes {@code locals} relative to a previous frame with {@code previousLocals}.
+	 */
+	private static void reencodeFrame(FrameNode frame, List<Object> previousLocals, List<Object> locals)
+	{
+		List<Object> stack = frame.type == Opcodes.F_SAME1 ? frame.stack : new ArrayList<Object>();
+		int sizeDifference = locals.size() - previousLocals.size();
+		if (locals.equals(previousLocals))
+		{
+			frame.type = stack.isEmpty() ? Opcodes.F_SAME : Opcodes.F_SAME1;
+			frame.local = new ArrayList<Object>();
+		}
+		else if (stack.isEmpty() && sizeDifference > 0 && sizeDifference <= 3 && locals.subList(0, previousLocals.size()).equals(previousLocals))
+		{
+			frame.type = Opcodes.F_APPEND;
+			frame.local = new ArrayList<Object>(locals.subList(previousLocals.size(), locals.size()));
+		}
+		else if (stack.isEmpty() && sizeDifference < 0 && sizeDifference >= -3 && previousLocals.subList(0, locals.size()).equals(locals))
+		{
+			frame.type = Opcodes.F_CHOP;
+			frame.local = new ArrayList<Object>(previousLocals.subList(locals.size(), previousLocals.size()));
+		}
+		else
+		{
+			if (locals.contains(UNKNOWN_THIS))
+				throw new IllegalArgumentException("The owner of an instance method is needed to re-encode its frames as full frames");
+			frame.type = Opcodes.F_FULL;
+			frame.local = new ArrayList<Object>(locals);
+		}
+		frame.stack = stack;
+	}
+
+	private static boolean[] findReachable(AbstractInsnNode[] insns, Map<LabelNode, Integer> labelIndexes, List<TryCatchBlockNode> tryCatchBlocks)
+	{
+		boolean[] reachable = new boolean[insns.length];
+		int[] worklist = new int[insns.length];
+		int worklistSize = 0;
+
+		reachable[0] = true;
+		worklist[worklistSize++] = 0;
+
+		Set<TryCatchBlockNode> reachedHandlers = new HashSet<TryCatchBlockNode>();
+		while (worklistSize > 0)
+		{
+			while (worklistSize > 0)
+			{
+				int i = worklist[--worklistSize];
+				for (int successor : getSuccessors(insns, i, labelIndexes))
+				{
+					if (!reachable[successor])
+					{
+						reachable[successor] = true;
+						worklist[worklistSize++] = successor;
+					}
+				}
+			}
+
+			// a handler is reachable once any of the instructions it protects are
+			if (tryCatchBlocks != null)
+			{
+				for (TryCatchBlockNode tryCatchBlock : tryCatchBlocks)
+				{
+					if (reachedHandlers.contains(tryCatchBlock))
+						continue;
+					if (!coversReachableInstruction(insns, reachable, labelIndexes.get(tryCatchBlock.start), labelIndexes.get(tryCatchBlock.end)))
+						continue;
+
+					reachedHandlers.add(tryCatchBlock);
+					int handler = labelIndexes.get(tryCatchBlock.handler);
+					if (!reachable[handler])
+					{
+						reachable[handler] = true;
+						worklist[worklistSize++] = handler;
+					}
+				}
+			}
+		}
+		return reachable;
+	}
+
+	private static int[] getSuccessors(AbstractInsnNode[] insns, int i, Map<LabelNode, Integer> labelIndexes)
+	{
+		AbstractInsnNode insn = insns[i];
+		boolean hasNext = i + 1 < insns.length;
+		switch (insn.getType())
+		{
+			case AbstractInsnNode.JUMP_INSN:
+				int target = labelIndexes.get(((JumpInsnNode) insn).label);
+				if (insn.getOpcode() == Opcodes.GOTO || !hasNext)
+					return new int[]{target};
+				return new int[]{target, i + 1};
+			case AbstractInsnNode.TABLESWITCH_INSN:
+				TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+				return getSwitchSuccessors(tableSwitch.dflt, tableSwitch.labels, labelIndexes);
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+				return getSwitchSuccessors(lookupSwitch.dflt, lookupSwitch.labels, labelIndexes);
+			default:
+				int opcode = insn.getOpcode();
+				if ((opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) || opcode == Opcodes.ATHROW || !hasNext)
+					return new int[0];
+				return new int[]{i + 1};
+		}
+	}
+
+	private static int[] getSwitchSuccessors(LabelNode dflt, List<LabelNode> labels, Map<LabelNode, Integer> labelIndexes)
+	{
+		int[] successors = new int[labels.size() + 1];
+		successors[0] = labelIndexes.get(dflt);
+		for (int i = 0; i < labels.size(); i++)
+		{
+			successors[i + 1] = labelIndexes.get(labels.get(i));
+		}
+		return successors;
+	}
+
+	private static boolean coversInstruction(AbstractInsnNode[] insns, int startInclusive, int endNotInclusive)
+	{
+		for (int i = startInclusive; i < endNotInclusive; i++)
+		{
+			if (insns[i].getOpcode() >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean coversReachableInstruction(AbstractInsnNode[] insns, boolean[] reachable, int startInclusive, int endNotInclusive)
+	{
+		for (int i = startInclusive; i < endNotInclusive; i++)
+		{
+			if (reachable[i] && insns[i].getOpcode() >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static Set<LabelNode> findReferencedLabels(MethodNode method)
+	{
+		Set<LabelNode> referencedLabels = new HashSet<LabelNode>();
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+		{
+			switch (insn.getType())
+			{
+				case AbstractInsnNode.JUMP_INSN:
+					referencedLabels.add(((JumpInsnNode) insn).label);
+					break;
+				case AbstractInsnNode.TABLESWITCH_INSN:
+					referencedLabels.add(((TableSwitchInsnNode) insn).dflt);
+					referencedLabels.addAll(((TableSwitchInsnNode) insn).labels);
+					break;
+				case AbstractInsnNode.LOOKUPSWITCH_INSN:
+					referencedLabels.add(((LookupSwitchInsnNode) insn).dflt);
+					referencedLabels.addAll(((LookupSwitchInsnNode) insn).labels);
+					break;
+				case AbstractInsnNode.LINE:
+					referencedLabels.add(((LineNumberNode) insn).start);
+					break;
+				case AbstractInsnNode.FRAME:
+					// uninitialized types in frames refer to the label of their NEW instruction
+					addLabels(referencedLabels, ((FrameNode) insn).local);
+					addLabels(referencedLabels, ((FrameNode) insn).stack);
+					break;
+				default:
+					break;
+			}
+		}
+		if (method.tryCatchBlocks != null)
+		{
+			for (TryCatchBlockNode tryCatchBlock : method.tryCatchBlocks)
+			{
+				referencedLabels.add(tryCatchBlock.start);
+				referencedLabels.add(tryCatchBlock.end);
+				referencedLabels.add(tryCatchBlock.handler);
+			}
+		}
+		if (method.localVariables != null)
+		{
+			for (LocalVariableNode localVar : method.localVariables)
+			{
+				referencedLabels.add(localVar.start);
+				referencedLabels.add(localVar.end);
+			}
+		}
+		addLocalVariableAnnotationLabels(referencedLabels, method.visibleLocalVariableAnnotations);
+		addLocalVariableAnnotationLabels(referencedLabels, method.invisibleLocalVariableAnnotations);
+		return referencedLabels;
+	}
+
+	private static void addLabels(Set<LabelNode> labels, List<Object> frameTypes)
+	{
+		if (frameTypes == null)
+			return;
+		for (Object frameType : frameTypes)
+		{
+			if (frameType instanceof LabelNode)
+				labels.add((LabelNode) frameType);
+		}
+	}
+
+	private static void addLocalVariableAnnotationLabels(Set<LabelNode> labels, List<LocalVariableAnnotationNode> annotations)
+	{
+		if (annotations == null)
+			return;
+		for (LocalVariableAnnotationNode annotation : annotations)
+		{
+			labels.addAll(annotation.start);
+			labels.addAll(annotation.end);
+		}
+	}
+
+	/**
+	 * @return The number of bytes {@code insn} will most likely take up once written.
+	 * Switch padding is assumed to be the maximum and LDC is assumed to not need a wide constant pool index.
+	 */
+	public static int estimateInsnSize(AbstractInsnNode insn)
+	{
+		switch (insn.getType())
+		{
+			case AbstractInsnNode.LABEL:
+			case AbstractInsnNode.LINE:
+			case AbstractInsnNode.FRAME:
+				return 0;
+			case AbstractInsnNode.INT_INSN:
+				return insn.getOpcode() == Opcodes.SIPUSH ? 3 : 2;
+			case AbstractInsnNode.VAR_INSN:
+				int var = ((VarInsnNode) insn).var;
+				if (var < 4 && insn.getOpcode() != Opcodes.RET)
+					return 1;
+				return var < 256 ? 2 : 4;
+			case AbstractInsnNode.IINC_INSN:
+				IincInsnNode iinc = (IincInsnNode) insn;
+				return iinc.var < 256 && iinc.incr >= Byte.MIN_VALUE && iinc.incr <= Byte.MAX_VALUE ? 3 : 6;
+			case AbstractInsnNode.LDC_INSN:
+				Object cst = ((LdcInsnNode) insn).cst;
+				return cst instanceof Long || cst instanceof Double ? 3 : 2;
+			case AbstractInsnNode.METHOD_INSN:
+				return insn.getOpcode() == Opcodes.INVOKEINTERFACE ? 5 : 3;
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+				return 5;
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				return 4;
+			case AbstractInsnNode.TABLESWITCH_INSN:
+				return 1 + 3 + 12 + 4 * ((TableSwitchInsnNode) insn).labels.size();
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				return 1 + 3 + 8 + 8 * ((LookupSwitchInsnNode) insn).labels.size();
+			case AbstractInsnNode.TYPE_INSN:
+			case AbstractInsnNode.FIELD_INSN:
+			case AbstractInsnNode.JUMP_INSN:
+				return 3;
+			default:
+				return 1;
+		}
+	}
+}
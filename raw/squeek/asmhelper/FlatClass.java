@@ -0,0 +1,268 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A read-only view of the methods of a class, read directly from its bytes without building
+ * a {@link org.objectweb.asm.tree.ClassNode}.<br>
+ * <br>
+ * Only the method table is parsed up front. The instructions of a method are decoded into a compact
+ * {@link FlatMethod} the first time they are requested, and a full {@link MethodNode} is only built
+ * by {@link #toMethodNode} once an edit is actually needed.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * FlatClass flatClass = new FlatClass(bytes);
+ * for (FlatClass.Method method : flatClass.getMethods())
+ * {
+ *     if (method.getInstructions().find(needle) != -1)
+ *         // ...
+ * }
+ * }
+ * </pre>
+ */
+public class FlatClass
+{
+	private final ClassReader classReader;
+	private final List<Method> methods;
+	private final int bootstrapMethodsOffset;
+	/** Used to decode the strings of the constant pool, shared by every method of the class */
+	private final char[] charBuffer;
+
+	/**
+	 * A method of a {@link FlatClass}, as declared in its method table.
+	 */
+	public class Method
+	{
+		public final int access;
+		public final String name;
+		public final String desc;
+		/**
+		 * The offset of the method's bytecode in the class bytes, or -1 if the method has no Code attribute.
+		 */
+		public final int codeOffset;
+		/**
+		 * The length of the method's bytecode in bytes (0 if the method has no Code attribute).
+		 */
+		public final int codeLength;
+		public final int maxStack;
+		public final int maxLocals;
+		private FlatMethod instructions = null;
+
+		Method(int access, String name, String desc, int codeOffset, int codeLength, int maxStack, int maxLocals)
+		{
+			this.access = access;
+			this.name = name;
+			this.desc = desc;
+			this.codeOffset = codeOffset;
+			this.codeLength = codeLength;
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		/**
+		 * @return The decoded instructions of this method (decoded the first time this is called).
+		 */
+		public synchronized FlatMethod getInstructions()
+		{
+			if (instructions == null)
+				instructions = new FlatMethod(FlatClass.this, codeOffset, codeLength);
+			return instructions;
+		}
+
+		/**
+		 * @return A full {@link MethodNode} of this method, read with the given {@link ClassReader} flags.
+		 */
+		public MethodNode toMethodNode(int flags)
+		{
+			return FlatClass.this.toMethodNode(name, desc, flags);
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + desc;
+		}
+	}
+
+	public FlatClass(byte[] bytes)
+	{
+		this(new ClassReader(bytes));
+	}
+
+	public FlatClass(ClassReader classReader)
+	{
+		this.classReader = classReader;
+		this.charBuffer = new char[classReader.getMaxStringLength()];
+
+		char[] buffer = charBuffer;
+		int offset = classReader.header + 6;
+		offset += 2 + 2 * classReader.readUnsignedShort(offset);
+
+		// fields
+		int numFields = classReader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < numFields; i++)
+		{
+			offset = skipAttributes(offset + 6);
+		}
+
+		// methods
+		int numMethods = classReader.readUnsignedShort(offset);
+		offset += 2;
+		List<Method> methods = new ArrayList<Method>(numMethods);
+		for (int i = 0; i < numMethods; i++)
+		{
+			int access = classReader.readUnsignedShort(offset);
+			String name = classReader.readUTF8(offset + 2, buffer);
+			String desc = classReader.readUTF8(offset + 4, buffer);
+			int codeOffset = -1, codeLength = 0, maxStack = 0, maxLocals = 0;
+
+			int numAttributes = classReader.readUnsignedShort(offset + 6);
+			offset += 8;
+			for (int j = 0; j < numAttributes; j++)
+			{
+				int attributeLength = classReader.readInt(offset + 2);
+				if ("Code".equals(classReader.readUTF8(offset, buffer)))
+				{
+					maxStack = classReader.readUnsignedShort(offset + 6);
+					maxLocals = classReader.readUnsignedShort(offset + 8);
+					codeLength = classReader.readInt(offset + 10);
+					codeOffset = offset + 14;
+				}
+				offset += 6 + attributeLength;
+			}
+			methods.add(new Method(access, name, desc, codeOffset, codeLength, maxStack, maxLocals));
+		}
+		this.methods = Collections.unmodifiableList(methods);
+
+		// class attributes
+		int bootstrapMethodsOffset = -1;
+		int numAttributes = classReader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < numAttributes; i++)
+		{
+			if ("BootstrapMethods".equals(classReader.readUTF8(offset, buffer)))
+				bootstrapMethodsOffset = offset + 6;
+			offset += 6 + classReader.readInt(offset + 2);
+		}
+		this.bootstrapMethodsOffset = bootstrapMethodsOffset;
+	}
+
+	private int skipAttributes(int offset)
+	{
+		int numAttributes = classReader.readUnsignedShort(offset);
+		offset += 2;
+		for (int i = 0; i < numAttributes; i++)
+		{
+			offset += 6 + classReader.readInt(offset + 2);
+		}
+		return offset;
+	}
+
+	public ClassReader getClassReader()
+	{
+		return classReader;
+	}
+
+	/**
+	 * @return The internal name of the class.
+	 */
+	public String getClassName()
+	{
+		return classReader.getClassName();
+	}
+
+	/**
+	 * @return The methods of the class, in the order they are declared.
+	 */
+	public List<Method> getMethods()
+	{
+		return methods;
+	}
+
+	/**
+	 * @return The method with a matching {@code methodName} and {@code methodDesc} (or any descriptor if {@code methodDesc} is {@code null}).
+	 * If no matching method is found, returns {@code null}.
+	 */
+	public Method findMethod(String methodName, String methodDesc)
+	{
+		for (Method method : methods)
+		{
+			if (method.name.equals(methodName) && (methodDesc == null || method.desc.equals(methodDesc)))
+				return method;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The string of the CONSTANT_Utf8 entry referenced at {@code offset}, see {@link ClassReader#readUTF8}.
+	 */
+	synchronized String readUTF8(int offset)
+	{
+		return classReader.readUTF8(offset, charBuffer);
+	}
+
+	/**
+	 * @return The internal name of the CONSTANT_Class entry referenced at {@code offset}, see {@link ClassReader#readClass}.
+	 */
+	synchronized String readClass(int offset)
+	{
+		return classReader.readClass(offset, charBuffer);
+	}
+
+	/**
+	 * @return The value of the constant pool entry with the given index, see {@link ClassReader#readConst}.
+	 */
+	synchronized Object readConst(int item)
+	{
+		return classReader.readConst(item, charBuffer);
+	}
+
+	/**
+	 * @return The offset of the entry of the BootstrapMethods attribute with the given index, or -1 if there is none.
+	 */
+	int getBootstrapMethodOffset(int bootstrapMethodIndex)
+	{
+		if (bootstrapMethodsOffset < 0)
+			return -1;
+
+		int offset = bootstrapMethodsOffset + 2;
+		for (int i = 0; i < bootstrapMethodIndex; i++)
+		{
+			offset += 4 + 2 * classReader.readUnsignedShort(offset + 2);
+		}
+		return offset;
+	}
+
+	/**
+	 * Builds a full {@link MethodNode} of a single method from the class bytes, skipping the code of all other methods.
+	 *
+	 * @return The method with a matching {@code methodName} and {@code methodDesc}, or {@code null} if it does not exist.
+	 */
+	public MethodNode toMethodNode(final String methodName, final String methodDesc, int flags)
+	{
+		final MethodNode[] found = new MethodNode[1];
+		classReader.accept(new ClassVisitor(Opcodes.ASM5)
+		{
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+			{
+				if (found[0] != null || !name.equals(methodName) || !desc.equals(methodDesc))
+					return null;
+
+				found[0] = new MethodNode(access, name, desc, signature, exceptions);
+				return found[0];
+			}
+		}, flags);
+		return found[0];
+	}
+}
@@ -0,0 +1,499 @@
+package squeek.asmhelper;
+
+import java.util.Arrays;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * The instructions of a method stored as flat arrays: one opcode byte and one operand int per instruction.<br>
+ * <br>
+ * Opcodes are normalized the same way ASM normalizes them when building an {@link InsnList}
+ * ({@code ALOAD_0} becomes {@code ALOAD 0}, {@code LDC_W} becomes {@code LDC}, {@code GOTO_W} becomes {@code GOTO}, etc),
+ * so instruction {@code i} of a FlatMethod corresponds to the {@code i}-th instruction (ignoring labels,
+ * line numbers and frames) of the method's {@link InsnList}.<br>
+ * <br>
+ * Operands are:
+ * <ul>
+ * <li>Field, method, type, LDC and invokedynamic instructions: the constant pool index</li>
+ * <li>Var instructions: the local variable index</li>
+ * <li>IINC: the local variable index in the low 16 bits and the increment in the high 16 bits</li>
+ * <li>BIPUSH, SIPUSH and NEWARRAY: the operand value</li>
+ * <li>Jumps: the bytecode offset of the target</li>
+ * <li>Switches: the bytecode offset of the default target</li>
+ * <li>MULTIANEWARRAY: the constant pool index in the low 16 bits and the dimensions in the high 16 bits</li>
+ * </ul>
+ */
+public class FlatMethod
+{
+	private static final byte NOARG = 0, VAR = 1, IMPLICIT_VAR = 2, BYTE = 3, SHORT = 4, CP_BYTE = 5, CP_SHORT = 6, IINC = 7,
+		JUMP = 8, JUMP_WIDE = 9, TABLESWITCH = 10, LOOKUPSWITCH = 11, INVOKEINTERFACE = 12, INVOKEDYNAMIC = 13,
+		MULTIANEWARRAY = 14, WIDE = 15;
+	private static final byte[] OPERAND_KINDS = new byte[256];
+	static
+	{
+		Arrays.fill(OPERAND_KINDS, NOARG);
+		fill(Opcodes.ILOAD, Opcodes.ALOAD, VAR);
+		fill(26, 45, IMPLICIT_VAR); // ILOAD_0 to ALOAD_3
+		fill(Opcodes.ISTORE, Opcodes.ASTORE, VAR);
+		fill(59, 78, IMPLICIT_VAR); // ISTORE_0 to ASTORE_3
+		OPERAND_KINDS[Opcodes.RET] = VAR;
+		OPERAND_KINDS[Opcodes.BIPUSH] = BYTE;
+		OPERAND_KINDS[Opcodes.NEWARRAY] = BYTE;
+		OPERAND_KINDS[Opcodes.SIPUSH] = SHORT;
+		OPERAND_KINDS[Opcodes.LDC] = CP_BYTE;
+		OPERAND_KINDS[19] = CP_SHORT; // LDC_W
+		OPERAND_KINDS[20] = CP_SHORT; // LDC2_W
+		fill(Opcodes.GETSTATIC, Opcodes.INVOKESTATIC, CP_SHORT);
+		OPERAND_KINDS[Opcodes.NEW] = CP_SHORT;
+		OPERAND_KINDS[Opcodes.ANEWARRAY] = CP_SHORT;
+		OPERAND_KINDS[Opcodes.CHECKCAST] = CP_SHORT;
+		OPERAND_KINDS[Opcodes.INSTANCEOF] = CP_SHORT;
+		OPERAND_KINDS[Opcodes.IINC] = IINC;
+		fill(Opcodes.IFEQ, Opcodes.JSR, JUMP);
+		OPERAND_KINDS[Opcodes.IFNULL] = JUMP;
+		OPERAND_KINDS[Opcodes.IFNONNULL] = JUMP;
+		OPERAND_KINDS[200] = JUMP_WIDE; // GOTO_W
+		OPERAND_KINDS[201] = JUMP_WIDE; // JSR_W
+		OPERAND_KINDS[Opcodes.TABLESWITCH] = TABLESWITCH;
+		OPERAND_KINDS[Opcodes.LOOKUPSWITCH] = LOOKUPSWITCH;
+		OPERAND_KINDS[Opcodes.INVOKEINTERFACE] = INVOKEINTERFACE;
+		OPERAND_KINDS[Opcodes.INVOKEDYNAMIC] = INVOKEDYNAMIC;
+		OPERAND_KINDS[Opcodes.MULTIANEWARRAY] = MULTIANEWARRAY;
+		OPERAND_KINDS[196] = WIDE;
+	}
+
+	private static void fill(int fromOpcode, int toOpcode, byte kind)
+	{
+		Arrays.fill(OPERAND_KINDS, fromOpcode, toOpcode + 1, kind);
+	}
+
+	private final FlatClass owner;
+	private final int codeOffset;
+	private final byte[] opcodes;
+	private final int[] operands;
+	private final int[] bytecodeOffsets;
+
+	/**
+	 * Decodes the {@code codeLength} bytes of bytecode starting at {@code codeOffset} of {@code owner}'s class bytes.
+	 */
+	public FlatMethod(FlatClass owner, int codeOffset, int codeLength)
+	{
+		this.owner = owner;
+		this.codeOffset = codeOffset;
+		if (codeOffset < 0 || codeLength <= 0)
+		{
+			this.opcodes = new byte[0];
+			this.operands = new int[0];
+			this.bytecodeOffsets = new int[0];
+			return;
+		}
+
+		ClassReader classReader = owner.getClassReader();
+		byte[] b = classReader.b;
+		byte[] opcodes = new byte[codeLength];
+		int[] operands = new int[codeLength];
+		int[] bytecodeOffsets = new int[codeLength];
+		int size = 0;
+
+		int codeEnd = codeOffset + codeLength;
+		for (int offset = codeOffset; offset < codeEnd;)
+		{
+			int bytecodeOffset = offset - codeOffset;
+			int opcode = b[offset] & 0xFF;
+			int operand = 0;
+			switch (OPERAND_KINDS[opcode])
+			{
+				case VAR:
+					operand = b[offset + 1] & 0xFF;
+					offset += 2;
+					break;
+				case IMPLICIT_VAR:
+					if (opcode > Opcodes.ISTORE)
+					{
+						operand = (opcode - 59) & 0x3;
+						opcode = Opcodes.ISTORE + ((opcode - 59) >> 2);
+					}
+					else
+					{
+						operand = (opcode - 26) & 0x3;
+						opcode = Opcodes.ILOAD + ((opcode - 26) >> 2);
+					}
+					offset += 1;
+					break;
+				case BYTE:
+					operand = opcode == Opcodes.NEWARRAY ? b[offset + 1] & 0xFF : b[offset + 1];
+					offset += 2;
+					break;
+				case SHORT:
+					operand = classReader.readShort(offset + 1);
+					offset += 3;
+					break;
+				case CP_BYTE:
+					operand = b[offset + 1] & 0xFF;
+					offset += 2;
+					break;
+				case CP_SHORT:
+					operand = classReader.readUnsignedShort(offset + 1);
+					if (opcode == 19 || opcode == 20)
+						opcode = Opcodes.LDC;
+					offset += 3;
+					break;
+				case IINC:
+					operand = (b[offset + 1] & 0xFF) | (b[offset + 2] << 16);
+					offset += 3;
+					break;
+				case JUMP:
+					operand = bytecodeOffset + classReader.readShort(offset + 1);
+					offset += 3;
+					break;
+				case JUMP_WIDE:
+					operand = bytecodeOffset + classReader.readInt(offset + 1);
+					opcode = opcode == 200 ? Opcodes.GOTO : Opcodes.JSR;
+					offset += 5;
+					break;
+				case TABLESWITCH:
+				{
+					int padded = codeOffset + getSwitchOperandsOffset(bytecodeOffset);
+					operand = bytecodeOffset + classReader.readInt(padded);
+					int low = classReader.readInt(padded + 4);
+					int high = classReader.readInt(padded + 8);
+					offset = padded + 12 + 4 * (high - low + 1);
+					break;
+				}
+				case LOOKUPSWITCH:
+				{
+					int padded = codeOffset + getSwitchOperandsOffset(bytecodeOffset);
+					operand = bytecodeOffset + classReader.readInt(padded);
+					offset = padded + 8 + 8 * classReader.readInt(padded + 4);
+					break;
+				}
+				case INVOKEINTERFACE:
+				case INVOKEDYNAMIC:
+					operand = classReader.readUnsignedShort(offset + 1);
+					offset += 5;
+					break;
+				case MULTIANEWARRAY:
+					operand = classReader.readUnsignedShort(offset + 1) | ((b[offset + 3] & 0xFF) << 16);
+					offset += 4;
+					break;
+				case WIDE:
+					opcode = b[offset + 1] & 0xFF;
+					if (opcode == Opcodes.IINC)
+					{
+						operand = classReader.readUnsignedShort(offset + 2) | (classReader.readShort(offset + 4) << 16);
+						offset += 6;
+					}
+					else
+					{
+						operand = classReader.readUnsignedShort(offset + 2);
+						offset += 4;
+					}
+					break;
+				default:
+					offset += 1;
+					break;
+			}
+			opcodes[size] = (byte) opcode;
+			operands[size] = operand;
+			bytecodeOffsets[size] = bytecodeOffset;
+			size++;
+		}
+
+		this.opcodes = Arrays.copyOf(opcodes, size);
+		this.operands = Arrays.copyOf(operands, size);
+		this.bytecodeOffsets = Arrays.copyOf(bytecodeOffsets, size);
+	}
+
+	/**
+	 * @return The offset (relative to the start of the bytecode) of the operands of a switch instruction, skipping its padding.
+	 */
+	private static int getSwitchOperandsOffset(int switchBytecodeOffset)
+	{
+		return (switchBytecodeOffset + 4) & ~3;
+	}
+
+	/**
+	 * @return The number of instructions.
+	 */
+	public int size()
+	{
+		return opcodes.length;
+	}
+
+	public int getOpcode(int index)
+	{
+		return opcodes[index] & 0xFF;
+	}
+
+	/**
+	 * @return The raw operand of the instruction (see {@link FlatMethod} for what it contains for each kind of instruction).
+	 */
+	public int getOperand(int index)
+	{
+		return operands[index];
+	}
+
+	/**
+	 * @return The offset of the instruction relative to the start of the method's bytecode.
+	 */
+	public int getBytecodeOffset(int index)
+	{
+		return bytecodeOffsets[index];
+	}
+
+	/**
+	 * @return The index of the first instruction at or after {@code fromIndex} for which {@link #getOpcode} == {@code opcode}.
+	 * If a matching instruction cannot be found, returns -1.
+	 */
+	public int indexOfOpcode(int opcode, int fromIndex)
+	{
+		byte opcodeByte = (byte) opcode;
+		for (int i = fromIndex; i < opcodes.length; i++)
+		{
+			if (opcodes[i] == opcodeByte)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Whether or not the method contains an instruction with the given opcode.
+	 */
+	public boolean containsOpcode(int opcode)
+	{
+		return indexOfOpcode(opcode, 0) != -1;
+	}
+
+	/**
+	 * @return The owner of the field or method referenced by a field/method instruction.
+	 */
+	public String getOwner(int index)
+	{
+		return owner.readClass(owner.getClassReader().getItem(operands[index]));
+	}
+
+	/**
+	 * @return The name of the field or method referenced by a field/method/invokedynamic instruction.
+	 */
+	public String getName(int index)
+	{
+		return owner.readUTF8(getNameAndTypeOffset(index));
+	}
+
+	/**
+	 * @return The descriptor of the field or method referenced by a field/method/invokedynamic instruction.
+	 */
+	public String getDesc(int index)
+	{
+		return owner.readUTF8(getNameAndTypeOffset(index) + 2);
+	}
+
+	private int getNameAndTypeOffset(int index)
+	{
+		ClassReader classReader = owner.getClassReader();
+		return classReader.getItem(classReader.readUnsignedShort(classReader.getItem(operands[index]) + 2));
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} (ignoring its labels, line numbers and frames),
+	 * using the comparator of {@link TransformContext#getDefault()} to compare instructions.
+	 *
+	 * @return The index of the first instruction of the match, or -1 if the pattern was not found.
+	 */
+	public int find(InsnList needle)
+	{
+		return find(needle, 0);
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} starting at {@code fromIndex}.
+	 *
+	 * @see #find(InsnList)
+	 */
+	public int find(InsnList needle, int fromIndex)
+	{
+		return find(needle, fromIndex, TransformContext.getDefault().getInsnComparator());
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} starting at {@code fromIndex}, using {@code insnComparator} to compare instructions.
+	 *
+	 * @see #find(InsnList)
+	 */
+	public int find(InsnList needle, int fromIndex, InsnComparator insnComparator)
+	{
+		AbstractInsnNode[] needleInsns = getNeedleInstructions(needle);
+		if (needleInsns.length == 0)
+			return -1;
+
+		int lastStart = opcodes.length - needleInsns.length;
+		for (int start = indexOfOpcode(needleInsns[0].getOpcode(), fromIndex); start != -1 && start <= lastStart; start = indexOfOpcode(needleInsns[0].getOpcode(), start + 1))
+		{
+			if (matchesAt(needleInsns, start, insnComparator))
+				return start;
+		}
+		return -1;
+	}
+
+	private boolean matchesAt(AbstractInsnNode[] needleInsns, int start, InsnComparator insnComparator)
+	{
+		// compare all the opcodes first, as that needs no decoding
+		for (int i = 0; i < needleInsns.length; i++)
+		{
+			if (getOpcode(start + i) != needleInsns[i].getOpcode())
+				return false;
+		}
+		for (int i = 0; i < needleInsns.length; i++)
+		{
+			if (needleInsns[i] instanceof InsnNode)
+				continue;
+			if (!insnComparator.areInsnsEqual(needleInsns[i], toInsnNode(start + i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static AbstractInsnNode[] getNeedleInstructions(InsnList needle)
+	{
+		int numInsns = 0;
+		for (AbstractInsnNode insn = needle.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (insn.getOpcode() >= 0)
+				numInsns++;
+		}
+		AbstractInsnNode[] needleInsns = new AbstractInsnNode[numInsns];
+		int i = 0;
+		for (AbstractInsnNode insn = needle.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (insn.getOpcode() >= 0)
+				needleInsns[i++] = insn;
+		}
+		return needleInsns;
+	}
+
+	/**
+	 * Builds a standalone instruction node for the instruction at {@code index}.
+	 * The labels of jump and switch instructions are new, unattached {@link LabelNode}s.
+	 */
+	public AbstractInsnNode toInsnNode(int index)
+	{
+		ClassReader classReader = owner.getClassReader();
+		int opcode = getOpcode(index);
+		int operand = operands[index];
+		switch (OPERAND_KINDS[opcode])
+		{
+			case VAR:
+				return new VarInsnNode(opcode, operand);
+			case BYTE:
+			case SHORT:
+				return new IntInsnNode(opcode, operand);
+			case IINC:
+				return new IincInsnNode(operand & 0xFFFF, operand >> 16);
+			case CP_BYTE:
+				return new LdcInsnNode(owner.readConst(operand));
+			case CP_SHORT:
+			case INVOKEINTERFACE:
+				if (opcode == Opcodes.LDC)
+					return new LdcInsnNode(owner.readConst(operand));
+				if (opcode >= Opcodes.GETSTATIC && opcode <= Opcodes.PUTFIELD)
+					return new FieldInsnNode(opcode, getOwner(index), getName(index), getDesc(index));
+				if (opcode >= Opcodes.INVOKEVIRTUAL && opcode <= Opcodes.INVOKEINTERFACE)
+				{
+					boolean isInterface = classReader.b[classReader.getItem(operand) - 1] == 11; // CONSTANT_InterfaceMethodref
+					return new MethodInsnNode(opcode, getOwner(index), getName(index), getDesc(index), isInterface);
+				}
+				return new TypeInsnNode(opcode, owner.readClass(bytecodePosition(index) + 1));
+			case JUMP:
+				return new JumpInsnNode(opcode, new LabelNode());
+			case TABLESWITCH:
+			{
+				int padded = codeOffset + getSwitchOperandsOffset(bytecodeOffsets[index]);
+				int low = classReader.readInt(padded + 4);
+				int high = classReader.readInt(padded + 8);
+				return new TableSwitchInsnNode(low, high, new LabelNode(), newLabels(high - low + 1));
+			}
+			case LOOKUPSWITCH:
+			{
+				int padded = codeOffset + getSwitchOperandsOffset(bytecodeOffsets[index]);
+				int numPairs = classReader.readInt(padded + 4);
+				int[] keys = new int[numPairs];
+				for (int i = 0; i < numPairs; i++)
+				{
+					keys[i] = classReader.readInt(padded + 8 + 8 * i);
+				}
+				return new LookupSwitchInsnNode(new LabelNode(), keys, newLabels(numPairs));
+			}
+			case INVOKEDYNAMIC:
+				return toInvokeDynamicInsnNode(index);
+			case MULTIANEWARRAY:
+				return new MultiANewArrayInsnNode(owner.readClass(bytecodePosition(index) + 1), operand >> 16);
+			default:
+				return new InsnNode(opcode);
+		}
+	}
+
+	private AbstractInsnNode toInvokeDynamicInsnNode(int index)
+	{
+		ClassReader classReader = owner.getClassReader();
+		int item = classReader.getItem(operands[index]);
+		int bootstrapMethod = owner.getBootstrapMethodOffset(classReader.readUnsignedShort(item));
+		Handle bsm = (Handle) owner.readConst(classReader.readUnsignedShort(bootstrapMethod));
+		Object[] bsmArgs = new Object[classReader.readUnsignedShort(bootstrapMethod + 2)];
+		for (int i = 0; i < bsmArgs.length; i++)
+		{
+			bsmArgs[i] = owner.readConst(classReader.readUnsignedShort(bootstrapMethod + 4 + 2 * i));
+		}
+		return new InvokeDynamicInsnNode(getName(index), getDesc(index), bsm, bsmArgs);
+	}
+
+	/**
+	 * @return The offset of the instruction in the class bytes.
+	 */
+	private int bytecodePosition(int index)
+	{
+		return codeOffset + bytecodeOffsets[index];
+	}
+
+	private static LabelNode[] newLabels(int numLabels)
+	{
+		LabelNode[] labels = new LabelNode[numLabels];
+		for (int i = 0; i < numLabels; i++)
+		{
+			labels[i] = new LabelNode();
+		}
+		return labels;
+	}
+
+	/**
+	 * @return The instruction of {@code method} (a full {@link MethodNode} of the same method, see {@link FlatClass.Method#toMethodNode})
+	 * that corresponds to the instruction at {@code index}.
+	 */
+	public static AbstractInsnNode getInsnNode(MethodNode method, int index)
+	{
+		int i = 0;
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (insn.getOpcode() >= 0 && i++ == index)
+				return insn;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,20 @@
+package squeek.asmhelper;
+
+/**
+ * Maps internal class names between their obfuscated and deobfuscated forms, for a {@link TransformContext}.<br>
+ * <br>
+ * {@link TransformContext#FML_REMAPPER} uses FML's mappings. Other implementations can be used by contexts
+ * that need different mappings, and must be thread-safe if their context is used from multiple threads.
+ */
+public interface IClassNameRemapper
+{
+	/**
+	 * @return The deobfuscated name of the obfuscated internal class name {@code obfName}, or {@code obfName} if it is not mapped.
+	 */
+	String map(String obfName);
+
+	/**
+	 * @return The obfuscated name of the deobfuscated internal class name {@code deobfName}, or {@code deobfName} if it is not mapped.
+	 */
+	String unmap(String deobfName);
+}
@@ -0,0 +1,24 @@
+package squeek.asmhelper;
+
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * A transformer that is registered with a {@link TransformerRegistry} and receives an already-read {@link ClassNode}
+ * instead of the class bytes.
+ */
+public interface IClassNodeTransformer
+{
+	/**
+	 * @return The names of the classes to transform, e.g. {@code net.minecraft.world.World}.
+	 * Obfuscated names are also accepted, and are deobfuscated using {@link ObfHelper#toDeobfClassName} when the registry is frozen.
+	 */
+	String[] getTargetClassNames();
+
+	/**
+	 * Transform the {@link ClassNode} of one of the target classes. The same ClassNode is passed to every
+	 * transformer targeting the class, in the order they were registered.
+	 *
+	 * @return Whether or not {@code classNode} was modified.
+	 */
+	boolean transform(String name, String transformedName, ClassNode classNode);
+}
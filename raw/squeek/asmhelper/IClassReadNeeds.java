@@ -0,0 +1,32 @@
+package squeek.asmhelper;
+
+/**
+ * Can be implemented by an {@link IClassNodeTransformer} to declare which optional parts of a class it needs to be read.
+ * A {@link TransformerRegistry} combines the needs of every transformer targeting a class and skips reading the parts
+ * that none of them need (see {@link TransformerRegistry#getReadFlags}).<br>
+ * <br>
+ * Transformers that do not implement this interface are assumed to need {@link #NEEDS_EVERYTHING}.<br>
+ * <br>
+ * Note: Debug information (line numbers, local variable names and the source file) that is not read is also
+ * not written back, so it would be missing from stack traces. A registry therefore always reads it,
+ * unless it is allowed to strip it with {@link TransformerRegistry#setStripDebugInfo}.
+ */
+public interface IClassReadNeeds
+{
+	int NEEDS_NOTHING = 0;
+	/** Line number instructions */
+	int NEEDS_LINE_NUMBERS = 1;
+	/** Local variable names and types */
+	int NEEDS_LOCAL_VARIABLES = 2;
+	/** Stack map frames, as stored in the class */
+	int NEEDS_FRAMES = 4;
+	/** Stack map frames, expanded so that every frame lists all locals and stack values */
+	int NEEDS_EXPANDED_FRAMES = 8;
+	/** Everything that is read by default, i.e. with flags of 0 */
+	int NEEDS_EVERYTHING = NEEDS_LINE_NUMBERS | NEEDS_LOCAL_VARIABLES | NEEDS_FRAMES;
+
+	/**
+	 * @return A combination of the {@code NEEDS_} constants.
+	 */
+	int getReadNeeds();
+}
@@ -0,0 +1,144 @@
+package squeek.asmhelper;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Builds hook calls as {@code invokedynamic} instructions, so that the method a hook dispatches to can be decided once
+ * (by a bootstrap method supplied by the mod) instead of on every call. The resulting constant call sites can be inlined by the JIT
+ * like a plain {@code INVOKESTATIC}.<br>
+ * <br>
+ * Descriptors passed to these helpers use deobfuscated class names and are converted with {@link ObfHelper#desc}.
+ * Descriptors that are taken from the class being transformed (like the owner and arguments of {@code method}) are used as they are.<br>
+ * <br>
+ * Notes:
+ * <ul>
+ * <li>{@code invokedynamic} requires a class version of at least {@link Opcodes#V1_7}, see {@link #ensureIndyClassVersion}.
+ * Classes of that version must have stack map frames, so they must be written with {@link org.objectweb.asm.ClassWriter#COMPUTE_FRAMES}
+ * (and can not contain {@code JSR}/{@code RET} instructions).</li>
+ * <li>The bootstrap method is resolved by the class being transformed, so its owner must be visible to it.</li>
+ * </ul>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * Handle bootstrap = IndyHooks.getBootstrapHandle("squeek.mymod.Hooks", "bootstrap");
+ * InsnList hook = IndyHooks.createHookCall(classNode, method, "onUpdate", "V", bootstrap);
+ * method.instructions.insertBefore(ASMHelper.findFirstInstruction(method), hook);
+ * IndyHooks.ensureIndyClassVersion(classNode);
+ * }
+ * </pre>
+ */
+public class IndyHooks
+{
+	/** The descriptor of a bootstrap method that takes no static arguments */
+	public static final String BOOTSTRAP_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+	/**
+	 * @return A handle to the static bootstrap method {@code methodName} of {@code className} with the descriptor {@link #BOOTSTRAP_DESC}.
+	 */
+	public static Handle getBootstrapHandle(String className, String methodName)
+	{
+		return getBootstrapHandle(className, methodName, BOOTSTRAP_DESC);
+	}
+
+	/**
+	 * @param className The deobfuscated name of the class that declares the bootstrap method.
+	 * @param bootstrapDesc The deobfuscated descriptor of the bootstrap method, which must start with the parameters of {@link #BOOTSTRAP_DESC}.
+	 * @return A handle to the static bootstrap method {@code methodName} of {@code className}.
+	 */
+	public static Handle getBootstrapHandle(String className, String methodName, String bootstrapDesc)
+	{
+		return new Handle(Opcodes.H_INVOKESTATIC, ObfHelper.getInternalClassName(className), methodName, ObfHelper.desc(bootstrapDesc));
+	}
+
+	/**
+	 * @param hookDesc The deobfuscated descriptor of the call site.
+	 * @return An {@code invokedynamic} instruction named {@code hookName}, bootstrapped by {@code bootstrap} with the static arguments {@code bootstrapArgs}.
+	 */
+	public static InvokeDynamicInsnNode createHookInsn(String hookName, String hookDesc, Handle bootstrap, Object... bootstrapArgs)
+	{
+		return new InvokeDynamicInsnNode(hookName, ObfHelper.desc(hookDesc), bootstrap, bootstrapArgs);
+	}
+
+	/**
+	 * Creates a call to a hook that is passed {@code this} (unless {@code method} is static) followed by all of the arguments of {@code method}.
+	 *
+	 * @param returnDesc The deobfuscated descriptor of the type returned by the hook, which is left on the stack ({@code "V"} for none).
+	 * @return The instructions that load the arguments and call the hook.
+	 */
+	public static InsnList createHookCall(ClassNode classNode, MethodNode method, String hookName, String returnDesc, Handle bootstrap, Object... bootstrapArgs)
+	{
+		InsnList insnList = new InsnList();
+		String argumentsDesc = loadThisAndArguments(classNode, method, insnList);
+		insnList.add(new InvokeDynamicInsnNode(hookName, "(" + argumentsDesc + ")" + ObfHelper.desc(returnDesc), bootstrap, bootstrapArgs));
+		return insnList;
+	}
+
+	/**
+	 * Creates a call to a hook that replaces the value on top of the stack (e.g. the value about to be returned).
+	 * The hook is passed {@code this} (unless {@code method} is static), all of the arguments of {@code method}, and then the value,
+	 * and must return the same type as the value.<br>
+	 * <br>
+	 * The value is moved into a new local variable so that the other arguments can be loaded before it, which increases {@code method.maxLocals}.
+	 *
+	 * @param valueDesc The deobfuscated descriptor of the value on top of the stack.
+	 * @return The instructions that call the hook and leave its result on the stack in place of the value.
+	 */
+	public static InsnList createFilterHookCall(ClassNode classNode, MethodNode method, String valueDesc, String hookName, Handle bootstrap, Object... bootstrapArgs)
+	{
+		Type valueType = Type.getType(ObfHelper.desc(valueDesc));
+		int valueLocal = method.maxLocals;
+		method.maxLocals += valueType.getSize();
+
+		InsnList insnList = new InsnList();
+		insnList.add(new VarInsnNode(valueType.getOpcode(Opcodes.ISTORE), valueLocal));
+		String argumentsDesc = loadThisAndArguments(classNode, method, insnList);
+		insnList.add(new VarInsnNode(valueType.getOpcode(Opcodes.ILOAD), valueLocal));
+		insnList.add(new InvokeDynamicInsnNode(hookName, "(" + argumentsDesc + valueType.getDescriptor() + ")" + valueType.getDescriptor(), bootstrap, bootstrapArgs));
+		return insnList;
+	}
+
+	/**
+	 * Raises the version of {@code classNode} to {@link Opcodes#V1_7} if it is lower, so that it can contain {@code invokedynamic}.
+	 *
+	 * @return Whether or not the version was changed.
+	 */
+	public static boolean ensureIndyClassVersion(ClassNode classNode)
+	{
+		// the major version is stored in the low 16 bits
+		if ((classNode.version & 0xFFFF) >= Opcodes.V1_7)
+			return false;
+		classNode.version = Opcodes.V1_7;
+		return true;
+	}
+
+	/**
+	 * Adds the instructions that load {@code this} (unless {@code method} is static) and all of the arguments of {@code method} to {@code insnList}.
+	 *
+	 * @return The descriptors of the loaded values, concatenated.
+	 */
+	private static String loadThisAndArguments(ClassNode classNode, MethodNode method, InsnList insnList)
+	{
+		StringBuilder argumentsDesc = new StringBuilder();
+		int local = 0;
+		if ((method.access & Opcodes.ACC_STATIC) == 0)
+		{
+			insnList.add(new VarInsnNode(Opcodes.ALOAD, local++));
+			argumentsDesc.append(Type.getObjectType(classNode.name).getDescriptor());
+		}
+		for (Type argumentType : Type.getArgumentTypes(method.desc))
+		{
+			insnList.add(new VarInsnNode(argumentType.getOpcode(Opcodes.ILOAD), local));
+			argumentsDesc.append(argumentType.getDescriptor());
+			local += argumentType.getSize();
+		}
+		return argumentsDesc.toString();
+	}
+}
@@ -2,12 +2,20 @@ package squeek.asmhelper;
 
 import java.io.Serializable;
 import java.util.Comparator;
+import java.util.List;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.IincInsnNode;
 import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
@@ -25,7 +33,11 @@ public class InsnComparator implements Comparator<AbstractInsnNode>, Serializabl
 
 	/**
 	 * Respects {@link #INT_WILDCARD} and {@link #WILDCARD} instruction properties.
-	 * Always returns true if {@code a} and {@code b} are label, line number, or frame instructions.
+	 * Always returns true if {@code a} and {@code b} are label, line number, or frame instructions.<br>
+	 * <br>
+	 * Every operand of every kind of instruction is compared: operands that are ints using {@link #intValuesMatch},
+	 * other operands using {@link #valuesMatch}, and the targets of jumps and switches using {@link #labelsMatch}.
+	 * Subclasses can override those to change how operands are matched.
 	 * 
 	 * @return Whether or not the given instructions are equivalent.
 	 */
@@ -37,14 +49,13 @@ public class InsnComparator implements Comparator<AbstractInsnNode>, Serializabl
 		if (a == null || b == null)
 			return false;
 
-		if (a.equals(b))
-			return true;
-
 		if (a.getOpcode() != b.getOpcode())
 			return false;
 
 		switch (a.getType())
 		{
+			case AbstractInsnNode.INSN:
+				return true;
 			case AbstractInsnNode.VAR_INSN:
 				return areVarInsnsEqual((VarInsnNode) a, (VarInsnNode) b);
 			case AbstractInsnNode.TYPE_INSN:
@@ -59,7 +70,18 @@ public class InsnComparator implements Comparator<AbstractInsnNode>, Serializabl
 				return areIincInsnsEqual((IincInsnNode) a, (IincInsnNode) b);
 			case AbstractInsnNode.INT_INSN:
 				return areIntInsnsEqual((IntInsnNode) a, (IntInsnNode) b);
+			case AbstractInsnNode.JUMP_INSN:
+				return labelsMatch(((JumpInsnNode) a).label, ((JumpInsnNode) b).label);
+			case AbstractInsnNode.TABLESWITCH_INSN:
+				return areTableSwitchInsnsEqual((TableSwitchInsnNode) a, (TableSwitchInsnNode) b);
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				return areLookupSwitchInsnsEqual((LookupSwitchInsnNode) a, (LookupSwitchInsnNode) b);
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+				return areInvokeDynamicInsnsEqual((InvokeDynamicInsnNode) a, (InvokeDynamicInsnNode) b);
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				return areMultiANewArrayInsnsEqual((MultiANewArrayInsnNode) a, (MultiANewArrayInsnNode) b);
 			default:
+				// labels, line numbers and frames
 				return true;
 		}
 	}
@@ -99,13 +121,94 @@ public class InsnComparator implements Comparator<AbstractInsnNode>, Serializabl
 		return valuesMatch(a.cst, b.cst);
 	}
 
-	private boolean intValuesMatch(int a, int b)
+	private boolean areTableSwitchInsnsEqual(TableSwitchInsnNode a, TableSwitchInsnNode b)
+	{
+		if (!intValuesMatch(a.min, b.min) || !intValuesMatch(a.max, b.max) || !labelsMatch(a.dflt, b.dflt))
+			return false;
+		// the number of labels is only allowed to differ if min or max is a wildcard
+		if (a.labels.size() != b.labels.size())
+			return a.min == INT_WILDCARD || a.max == INT_WILDCARD || b.min == INT_WILDCARD || b.max == INT_WILDCARD;
+		return labelListsMatch(a.labels, b.labels);
+	}
+
+	private boolean areLookupSwitchInsnsEqual(LookupSwitchInsnNode a, LookupSwitchInsnNode b)
+	{
+		if (a.keys.size() != b.keys.size() || !labelsMatch(a.dflt, b.dflt))
+			return false;
+		for (int i = 0; i < a.keys.size(); i++)
+		{
+			if (!intValuesMatch(a.keys.get(i), b.keys.get(i)))
+				return false;
+		}
+		return labelListsMatch(a.labels, b.labels);
+	}
+
+	private boolean areInvokeDynamicInsnsEqual(InvokeDynamicInsnNode a, InvokeDynamicInsnNode b)
+	{
+		if (!valuesMatch(a.name, b.name) || !valuesMatch(a.desc, b.desc) || !handlesMatch(a.bsm, b.bsm))
+			return false;
+		if (a.bsmArgs.length != b.bsmArgs.length)
+			return false;
+		for (int i = 0; i < a.bsmArgs.length; i++)
+		{
+			Object argA = a.bsmArgs[i];
+			Object argB = b.bsmArgs[i];
+			if (argA instanceof Handle && argB instanceof Handle ? !handlesMatch((Handle) argA, (Handle) argB) : !valuesMatch(argA, argB))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean areMultiANewArrayInsnsEqual(MultiANewArrayInsnNode a, MultiANewArrayInsnNode b)
+	{
+		return valuesMatch(a.desc, b.desc) && intValuesMatch(a.dims, b.dims);
+	}
+
+	private boolean handlesMatch(Handle a, Handle b)
+	{
+		return a == b || (intValuesMatch(a.getTag(), b.getTag()) && valuesMatch(a.getOwner(), b.getOwner()) && valuesMatch(a.getName(), b.getName()) && valuesMatch(a.getDesc(), b.getDesc()));
+	}
+
+	private boolean labelListsMatch(List<LabelNode> a, List<LabelNode> b)
+	{
+		for (int i = 0; i < a.size(); i++)
+		{
+			if (!labelsMatch(a.get(i), b.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether or not the int operands {@code a} and {@code b} match.
+	 */
+	protected boolean intValuesMatch(int a, int b)
 	{
 		return a == b || a == INT_WILDCARD || b == INT_WILDCARD;
 	}
 
-	private boolean valuesMatch(Object a, Object b)
+	/**
+	 * @return Whether or not the operands {@code a} and {@code b} (names, descriptors, constants, or bootstrap method arguments) match.
+	 */
+	protected boolean valuesMatch(Object a, Object b)
+	{
+		// names and descriptors are usually pooled (see StringPool), and wildcards are usually the WILDCARD constant itself,
+		// so check for the same instance first
+		if (a == b || a == WILDCARD || b == WILDCARD)
+			return true;
+		if (a == null || b == null)
+			return false;
+		return a.equals(b) || WILDCARD.equals(a) || WILDCARD.equals(b);
+	}
+
+	/**
+	 * The targets of jumps and switches can not be compared by identity, because the labels of a pattern are never
+	 * the labels of the instructions it is matched against.
+	 *
+	 * @return Whether or not the labels {@code a} and {@code b} match. Always {@code true} by default.
+	 */
+	protected boolean labelsMatch(LabelNode a, LabelNode b)
 	{
-		return a.equals(b) || a.equals(WILDCARD) || b.equals(WILDCARD);
+		return true;
 	}
 }
@@ -0,0 +1,279 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MultiANewArrayInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Stable structural hashes of instructions and instruction lists, and a Rabin-Karp search built on them.<br>
+ * <br>
+ * The hash of an instruction only depends on the parts of it that {@link InsnComparator} compares, so instructions that
+ * {@link InsnComparator#areInsnsEqual} considers equal always have the same hash. The hash of an {@link InsnList} ignores
+ * labels and line numbers (like {@link ASMHelper#checkForPatternAt}), so it can be used to key, deduplicate or search for
+ * instruction sequences. Hashes do not depend on object identity, so they are the same on every run.<br>
+ * <br>
+ * Operands equal to {@link InsnComparator#WILDCARD} or {@link InsnComparator#INT_WILDCARD} can match anything, so needles containing
+ * them are searched for using only the opcodes of each instruction. Every match found by hash is verified with
+ * {@link ASMHelper#checkForPatternAt}, so the results are the same as {@link ASMHelper#findAndGetFoundInsnList}
+ * (as long as the comparator used only ever considers instructions equal when {@link InsnComparator} does).<br>
+ * <br>
+ * The search is most useful for long needles in large methods, where its cost does not depend on the length of the needle.
+ */
+public class InsnHasher
+{
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	/** The base of the polynomial rolling hash (an arbitrary large odd number) */
+	private static final long BASE = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * @return The structural hash of {@code insn}, combining its opcode and the operands compared by {@link InsnComparator}.
+	 */
+	public static long hash(AbstractInsnNode insn)
+	{
+		long hash = mix(FNV_OFFSET_BASIS, insn.getOpcode());
+		switch (insn.getType())
+		{
+			case AbstractInsnNode.VAR_INSN:
+				return mix(hash, ((VarInsnNode) insn).var);
+			case AbstractInsnNode.TYPE_INSN:
+				return mix(hash, ((TypeInsnNode) insn).desc);
+			case AbstractInsnNode.FIELD_INSN:
+				FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+				return mix(mix(mix(hash, fieldInsn.owner), fieldInsn.name), fieldInsn.desc);
+			case AbstractInsnNode.METHOD_INSN:
+				MethodInsnNode methodInsn = (MethodInsnNode) insn;
+				return mix(mix(mix(hash, methodInsn.owner), methodInsn.name), methodInsn.desc);
+			case AbstractInsnNode.LDC_INSN:
+				return mix(hash, ((LdcInsnNode) insn).cst.hashCode());
+			case AbstractInsnNode.IINC_INSN:
+				IincInsnNode iincInsn = (IincInsnNode) insn;
+				return mix(mix(hash, iincInsn.var), iincInsn.incr);
+			case AbstractInsnNode.INT_INSN:
+				return mix(hash, ((IntInsnNode) insn).operand);
+			case AbstractInsnNode.TABLESWITCH_INSN:
+				TableSwitchInsnNode tableSwitchInsn = (TableSwitchInsnNode) insn;
+				return mix(mix(hash, tableSwitchInsn.min), tableSwitchInsn.max);
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				for (int key : ((LookupSwitchInsnNode) insn).keys)
+				{
+					hash = mix(hash, key);
+				}
+				return hash;
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+				InvokeDynamicInsnNode invokeDynamicInsn = (InvokeDynamicInsnNode) insn;
+				return mix(mix(mix(mix(hash, invokeDynamicInsn.name), invokeDynamicInsn.desc), invokeDynamicInsn.bsm.getOwner()), invokeDynamicInsn.bsm.getName());
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				MultiANewArrayInsnNode multiANewArrayInsn = (MultiANewArrayInsnNode) insn;
+				return mix(mix(hash, multiANewArrayInsn.desc), multiANewArrayInsn.dims);
+			default:
+				return hash;
+		}
+	}
+
+	/**
+	 * @return The hash of only the opcode of {@code insn}.
+	 */
+	public static long hashOpcode(AbstractInsnNode insn)
+	{
+		return mix(FNV_OFFSET_BASIS, insn.getOpcode());
+	}
+
+	/**
+	 * @return The structural hash of the instructions in {@code insnList}, ignoring labels and line numbers.
+	 */
+	public static long hash(InsnList insnList)
+	{
+		long hash = 0;
+		for (AbstractInsnNode insn = insnList.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (!ASMHelper.isLabelOrLineNumber(insn))
+				hash = hash * BASE + hash(insn);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return Whether or not any instruction in {@code insnList} has an operand equal to {@link InsnComparator#WILDCARD} or {@link InsnComparator#INT_WILDCARD}.
+	 */
+	public static boolean hasWildcards(InsnList insnList)
+	{
+		for (AbstractInsnNode insn = insnList.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (hasWildcard(insn))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether or not {@code insn} has an operand equal to {@link InsnComparator#WILDCARD} or {@link InsnComparator#INT_WILDCARD}.
+	 */
+	public static boolean hasWildcard(AbstractInsnNode insn)
+	{
+		switch (insn.getType())
+		{
+			case AbstractInsnNode.VAR_INSN:
+				return ((VarInsnNode) insn).var == InsnComparator.INT_WILDCARD;
+			case AbstractInsnNode.TYPE_INSN:
+				return InsnComparator.WILDCARD.equals(((TypeInsnNode) insn).desc);
+			case AbstractInsnNode.FIELD_INSN:
+				FieldInsnNode fieldInsn = (FieldInsnNode) insn;
+				return InsnComparator.WILDCARD.equals(fieldInsn.owner) || InsnComparator.WILDCARD.equals(fieldInsn.name) || InsnComparator.WILDCARD.equals(fieldInsn.desc);
+			case AbstractInsnNode.METHOD_INSN:
+				MethodInsnNode methodInsn = (MethodInsnNode) insn;
+				return InsnComparator.WILDCARD.equals(methodInsn.owner) || InsnComparator.WILDCARD.equals(methodInsn.name) || InsnComparator.WILDCARD.equals(methodInsn.desc);
+			case AbstractInsnNode.LDC_INSN:
+				return InsnComparator.WILDCARD.equals(((LdcInsnNode) insn).cst);
+			case AbstractInsnNode.IINC_INSN:
+				IincInsnNode iincInsn = (IincInsnNode) insn;
+				return iincInsn.var == InsnComparator.INT_WILDCARD || iincInsn.incr == InsnComparator.INT_WILDCARD;
+			case AbstractInsnNode.INT_INSN:
+				return ((IntInsnNode) insn).operand == InsnComparator.INT_WILDCARD;
+			case AbstractInsnNode.TABLESWITCH_INSN:
+				TableSwitchInsnNode tableSwitchInsn = (TableSwitchInsnNode) insn;
+				return tableSwitchInsn.min == InsnComparator.INT_WILDCARD || tableSwitchInsn.max == InsnComparator.INT_WILDCARD;
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				return ((LookupSwitchInsnNode) insn).keys.contains(InsnComparator.INT_WILDCARD);
+			case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+				InvokeDynamicInsnNode invokeDynamicInsn = (InvokeDynamicInsnNode) insn;
+				if (InsnComparator.WILDCARD.equals(invokeDynamicInsn.name) || InsnComparator.WILDCARD.equals(invokeDynamicInsn.desc) || hasWildcard(invokeDynamicInsn.bsm))
+					return true;
+				for (Object bsmArg : invokeDynamicInsn.bsmArgs)
+				{
+					if (InsnComparator.WILDCARD.equals(bsmArg) || (bsmArg instanceof Handle && hasWildcard((Handle) bsmArg)))
+						return true;
+				}
+				return false;
+			case AbstractInsnNode.MULTIANEWARRAY_INSN:
+				MultiANewArrayInsnNode multiANewArrayInsn = (MultiANewArrayInsnNode) insn;
+				return InsnComparator.WILDCARD.equals(multiANewArrayInsn.desc) || multiANewArrayInsn.dims == InsnComparator.INT_WILDCARD;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean hasWildcard(Handle handle)
+	{
+		return handle.getTag() == InsnComparator.INT_WILDCARD || InsnComparator.WILDCARD.equals(handle.getOwner()) || InsnComparator.WILDCARD.equals(handle.getName()) || InsnComparator.WILDCARD.equals(handle.getDesc());
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} within {@code haystack} using a rolling hash.
+	 *
+	 * @return The first instruction of the matched pattern.
+	 * If the pattern was not found, returns {@code null}.
+	 */
+	public static AbstractInsnNode find(InsnList haystack, InsnList needle)
+	{
+		return findAndGetFoundInsnList(haystack.getFirst(), needle).getFirst();
+	}
+
+	/**
+	 * Overload of {@link #find(InsnList, InsnList)} that verifies matches using {@code insnComparator}.
+	 */
+	public static AbstractInsnNode find(InsnList haystack, InsnList needle, InsnComparator insnComparator)
+	{
+		return findAndGetFoundInsnList(haystack.getFirst(), needle, insnComparator).getFirst();
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle}, starting at {@code haystackStart}, using a rolling hash.
+	 * Equivalent to {@link ASMHelper#findAndGetFoundInsnList}.
+	 *
+	 * @return All of the instructions that were matched by the pattern.
+	 * If the pattern was not found, returns an empty {@link InsnList}.
+	 */
+	public static InsnList findAndGetFoundInsnList(AbstractInsnNode haystackStart, InsnList needle)
+	{
+		return findAndGetFoundInsnList(haystackStart, needle, TransformContext.getDefault().getInsnComparator());
+	}
+
+	/**
+	 * Overload of {@link #findAndGetFoundInsnList(AbstractInsnNode, InsnList)} that verifies matches using {@code insnComparator}.
+	 * Candidates are still found by hash, so {@code insnComparator} can only make the search stricter than {@link InsnComparator}.
+	 */
+	public static InsnList findAndGetFoundInsnList(AbstractInsnNode haystackStart, InsnList needle, InsnComparator insnComparator)
+	{
+		boolean opcodesOnly = hasWildcards(needle);
+		List<AbstractInsnNode> needleInsns = getHashedInsns(needle.getFirst());
+		int length = needleInsns.size();
+		if (length == 0)
+			return new InsnList();
+
+		long needleHash = 0;
+		long highestPower = 1;
+		for (int i = 0; i < length; i++)
+		{
+			needleHash = needleHash * BASE + elementHash(needleInsns.get(i), opcodesOnly);
+			if (i > 0)
+				highestPower *= BASE;
+		}
+
+		List<AbstractInsnNode> haystackInsns = getHashedInsns(haystackStart);
+		long[] haystackHashes = new long[haystackInsns.size()];
+		long windowHash = 0;
+		for (int i = 0; i < haystackInsns.size(); i++)
+		{
+			haystackHashes[i] = elementHash(haystackInsns.get(i), opcodesOnly);
+			if (i >= length)
+				windowHash -= haystackHashes[i - length] * highestPower;
+			windowHash = windowHash * BASE + haystackHashes[i];
+
+			if (i >= length - 1 && windowHash == needleHash)
+			{
+				InsnList found = ASMHelper.checkForPatternAt(needle, haystackInsns.get(i - length + 1), insnComparator);
+				if (found.getFirst() != null)
+					return found;
+			}
+		}
+		return new InsnList();
+	}
+
+	private static long elementHash(AbstractInsnNode insn, boolean opcodesOnly)
+	{
+		return opcodesOnly ? hashOpcode(insn) : hash(insn);
+	}
+
+	/**
+	 * @return The instructions from {@code start} onwards that take part in pattern matching (everything but labels and line numbers).
+	 */
+	private static List<AbstractInsnNode> getHashedInsns(AbstractInsnNode start)
+	{
+		List<AbstractInsnNode> insns = new ArrayList<AbstractInsnNode>();
+		for (AbstractInsnNode insn = start; insn != null; insn = insn.getNext())
+		{
+			if (!ASMHelper.isLabelOrLineNumber(insn))
+				insns.add(insn);
+		}
+		return insns;
+	}
+
+	private static long mix(long hash, int value)
+	{
+		for (int i = 0; i < 4; i++)
+		{
+			hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+			value >>>= 8;
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, String value)
+	{
+		return mix(hash, value != null ? value.hashCode() : 0);
+	}
+}
@@ -0,0 +1,254 @@
+package squeek.asmhelper;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Printer;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+/**
+ * Compares two versions of an instruction list (e.g. a method before and after it was transformed)
+ * and writes only the differences, in the style of a unified diff.<br>
+ * <br>
+ * Instructions are compared using the comparator of {@link TransformContext#getDefault()} (unless another is given), and labels and line numbers are ignored
+ * (like {@link ASMHelper#checkForPatternAt}). The differences are found using Myers' algorithm after removing
+ * the common prefix and suffix, so the cost grows with the size of the lists plus the square of the number of differences,
+ * and only the changed instructions and their context are ever converted to text.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * MethodNode before = ASMHelper.findMethodNodeOfClass(ASMHelper.readClassFromBytes(basicClass), "onUpdate", "()V");
+ * // ... transform the method ...
+ * InsnListDiff.diff(before.instructions, method.instructions, InsnListDiff.DEFAULT_CONTEXT, writer);
+ * }
+ * </pre>
+ */
+public class InsnListDiff
+{
+	public static final int DEFAULT_CONTEXT = 3;
+
+	private static final byte EQUAL = 0;
+	private static final byte DELETE = 1;
+	private static final byte INSERT = 2;
+
+	/**
+	 * @return The differences between the instructions of {@code before} and {@code after},
+	 * or an empty string if they are the same.
+	 */
+	public static String diff(MethodNode before, MethodNode after)
+	{
+		StringWriter sw = new StringWriter();
+		try
+		{
+			sw.write("--- " + before.name + before.desc + "\n");
+			sw.write("+++ " + after.name + after.desc + "\n");
+			if (diff(before.instructions, after.instructions, DEFAULT_CONTEXT, sw) == 0)
+				return "";
+		}
+		catch (IOException e)
+		{
+			// StringWriter does not throw
+			throw new RuntimeException(e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Writes the changed hunks between {@code before} and {@code after} to {@code writer}, each surrounded by
+	 * up to {@code context} unchanged instructions. Nothing is written if the lists are the same.
+	 *
+	 * @return The number of instructions that were removed or added.
+	 */
+	public static int diff(InsnList before, InsnList after, int context, Writer writer) throws IOException
+	{
+		return diff(before, after, context, TransformContext.getDefault().getInsnComparator(), writer);
+	}
+
+	/**
+	 * Overload of {@link #diff(InsnList, InsnList, int, Writer)} that compares instructions using {@code insnComparator}.
+	 */
+	public static int diff(InsnList before, InsnList after, int context, InsnComparator insnComparator, Writer writer) throws IOException
+	{
+		List<AbstractInsnNode> a = getDiffedInsns(before);
+		List<AbstractInsnNode> b = getDiffedInsns(after);
+		byte[] ops = getEditScript(a, b, insnComparator);
+
+		int numChanges = 0;
+		int[] aIndexes = new int[ops.length + 1];
+		int[] bIndexes = new int[ops.length + 1];
+		for (int i = 0; i < ops.length; i++)
+		{
+			aIndexes[i + 1] = aIndexes[i] + (ops[i] != INSERT ? 1 : 0);
+			bIndexes[i + 1] = bIndexes[i] + (ops[i] != DELETE ? 1 : 0);
+			if (ops[i] != EQUAL)
+				numChanges++;
+		}
+		if (numChanges == 0)
+			return 0;
+
+		Printer beforePrinter = new Textifier();
+		TraceMethodVisitor beforeMethodPrinter = new TraceMethodVisitor(beforePrinter);
+		Printer afterPrinter = new Textifier();
+		TraceMethodVisitor afterMethodPrinter = new TraceMethodVisitor(afterPrinter);
+
+		int i = 0;
+		while (i < ops.length)
+		{
+			int firstChange = i;
+			while (firstChange < ops.length && ops[firstChange] == EQUAL)
+			{
+				firstChange++;
+			}
+			if (firstChange == ops.length)
+				break;
+
+			int lastChange = firstChange;
+			for (int j = firstChange; j < ops.length && j - lastChange <= 2 * context; j++)
+			{
+				if (ops[j] != EQUAL)
+					lastChange = j;
+			}
+			int hunkStart = Math.max(i, firstChange - context);
+			int hunkEnd = Math.min(ops.length, lastChange + context + 1);
+
+			writer.write("@@ -" + (aIndexes[hunkStart] + 1) + "," + (aIndexes[hunkEnd] - aIndexes[hunkStart]) + " +" + (bIndexes[hunkStart] + 1) + "," + (bIndexes[hunkEnd] - bIndexes[hunkStart]) + " @@\n");
+			for (int j = hunkStart; j < hunkEnd; j++)
+			{
+				if (ops[j] == INSERT)
+					writeInsn(writer, '+', b.get(bIndexes[j]), afterPrinter, afterMethodPrinter);
+				else
+					writeInsn(writer, ops[j] == DELETE ? '-' : ' ', a.get(aIndexes[j]), beforePrinter, beforeMethodPrinter);
+			}
+			i = hunkEnd;
+		}
+		writer.flush();
+		return numChanges;
+	}
+
+	private static void writeInsn(Writer writer, char prefix, AbstractInsnNode insn, Printer printer, TraceMethodVisitor methodPrinter) throws IOException
+	{
+		insn.accept(methodPrinter);
+		StringWriter sw = new StringWriter();
+		printer.print(new PrintWriter(sw));
+		printer.getText().clear();
+		String text = sw.toString();
+		writer.write(prefix);
+		writer.write(text);
+		if (!text.endsWith("\n"))
+			writer.write('\n');
+	}
+
+	private static List<AbstractInsnNode> getDiffedInsns(InsnList insnList)
+	{
+		List<AbstractInsnNode> insns = new ArrayList<AbstractInsnNode>();
+		for (AbstractInsnNode insn = insnList.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (!ASMHelper.isLabelOrLineNumber(insn))
+				insns.add(insn);
+		}
+		return insns;
+	}
+
+	/**
+	 * @return The shortest sequence of {@link #EQUAL}, {@link #DELETE} and {@link #INSERT} operations that turns {@code a} into {@code b}.
+	 */
+	private static byte[] getEditScript(List<AbstractInsnNode> a, List<AbstractInsnNode> b, InsnComparator insnComparator)
+	{
+		int prefix = 0;
+		while (prefix < a.size() && prefix < b.size() && insnComparator.areInsnsEqual(a.get(prefix), b.get(prefix)))
+		{
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < a.size() - prefix && suffix < b.size() - prefix && insnComparator.areInsnsEqual(a.get(a.size() - 1 - suffix), b.get(b.size() - 1 - suffix)))
+		{
+			suffix++;
+		}
+
+		List<AbstractInsnNode> aMiddle = a.subList(prefix, a.size() - suffix);
+		List<AbstractInsnNode> bMiddle = b.subList(prefix, b.size() - suffix);
+		byte[] middleOps = getMyersEditScript(aMiddle, bMiddle, insnComparator);
+
+		byte[] ops = new byte[prefix + middleOps.length + suffix];
+		System.arraycopy(middleOps, 0, ops, prefix, middleOps.length);
+		return ops;
+	}
+
+	/**
+	 * Myers' O((N+M)D) algorithm. The furthest reaching x of each diagonal k is kept for every d for backtracking,
+	 * but only for the diagonals that d can reach, so the trace takes O(D^2) space.
+	 */
+	private static byte[] getMyersEditScript(List<AbstractInsnNode> a, List<AbstractInsnNode> b, InsnComparator insnComparator)
+	{
+		int n = a.size();
+		int m = b.size();
+		int max = n + m;
+		if (max == 0)
+			return new byte[0];
+
+		// v[offset + k] is the furthest reaching x on diagonal k
+		int offset = max + 1;
+		int[] v = new int[2 * max + 3];
+		List<int[]> trace = new ArrayList<int[]>();
+		outer:
+		for (int d = 0; d <= max; d++)
+		{
+			int[] snapshot = new int[2 * d + 3];
+			System.arraycopy(v, offset - d - 1, snapshot, 0, snapshot.length);
+			trace.add(snapshot);
+
+			for (int k = -d; k <= d; k += 2)
+			{
+				int x = (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) ? v[offset + k + 1] : v[offset + k - 1] + 1;
+				int y = x - k;
+				while (x < n && y < m && insnComparator.areInsnsEqual(a.get(x), b.get(y)))
+				{
+					x++;
+					y++;
+				}
+				v[offset + k] = x;
+				if (x >= n && y >= m)
+					break outer;
+			}
+		}
+
+		byte[] ops = new byte[max];
+		int numOps = 0;
+		int x = n;
+		int y = m;
+		for (int d = trace.size() - 1; d >= 0; d--)
+		{
+			int[] snapshot = trace.get(d);
+			// snapshot[d + 1 + k] is the value of v[offset + k] before step d
+			int k = x - y;
+			int prevK = (k == -d || (k != d && snapshot[d + k] < snapshot[d + k + 2])) ? k + 1 : k - 1;
+			int prevX = snapshot[d + 1 + prevK];
+			int prevY = prevX - prevK;
+			while (x > prevX && y > prevY)
+			{
+				ops[numOps++] = EQUAL;
+				x--;
+				y--;
+			}
+			if (d > 0)
+				ops[numOps++] = x == prevX ? INSERT : DELETE;
+			x = prevX;
+			y = prevY;
+		}
+
+		byte[] script = new byte[numOps];
+		for (int i = 0; i < numOps; i++)
+		{
+			script[i] = ops[numOps - 1 - i];
+		}
+		return script;
+	}
+}
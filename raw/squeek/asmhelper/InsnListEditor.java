@@ -0,0 +1,217 @@
+package squeek.asmhelper;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Records insertions, removals and replacements against anchor instructions of an {@link InsnList}
+ * and applies all of them at once when {@link #commit()} is called.<br>
+ * <br>
+ * Every modification of an {@link InsnList} throws away its index cache, so interleaving edits with
+ * {@link InsnList#get}, {@link InsnList#indexOf} or {@link InsnList#toArray} makes the cache get rebuilt
+ * after each edit. Recording the edits and applying them in a single pass avoids that.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * InsnListEditor editor = new InsnListEditor(method.instructions);
+ * editor.insertBefore(returnInsn, hookInsns);
+ * editor.removeUntil(startInsn, endInsn);
+ * editor.commit();
+ * }
+ * </pre>
+ *
+ * Notes:
+ * <ul>
+ * <li>Anchors must be instructions of the edited {@link InsnList} at the time of {@link #commit()}.</li>
+ * <li>As with {@link InsnList#insertBefore(AbstractInsnNode, InsnList)}, the instructions of an inserted
+ * {@link InsnList} are moved out of it (at the time the insertion is recorded).</li>
+ * <li>All insertions are applied before any removals, so inserting relative to an instruction
+ * that is also being removed is allowed.</li>
+ * </ul>
+ */
+public class InsnListEditor
+{
+	private final InsnList insnList;
+	private final Map<AbstractInsnNode, InsnList> insertionsBefore = new LinkedHashMap<AbstractInsnNode, InsnList>();
+	private final Map<AbstractInsnNode, InsnList> insertionsAfter = new LinkedHashMap<AbstractInsnNode, InsnList>();
+	private final Set<AbstractInsnNode> removals = new LinkedHashSet<AbstractInsnNode>();
+
+	public InsnListEditor(InsnList insnList)
+	{
+		this.insnList = insnList;
+	}
+
+	/**
+	 * @return The {@link InsnList} that this editor modifies.
+	 */
+	public InsnList getInsnList()
+	{
+		return insnList;
+	}
+
+	/**
+	 * Insert {@code insns} before {@code anchor}.
+	 * Multiple insertions before the same anchor are kept in the order they were recorded.
+	 */
+	public InsnListEditor insertBefore(AbstractInsnNode anchor, InsnList insns)
+	{
+		getPendingInsertion(insertionsBefore, anchor).add(insns);
+		return this;
+	}
+
+	/**
+	 * Insert {@code insn} before {@code anchor}.
+	 */
+	public InsnListEditor insertBefore(AbstractInsnNode anchor, AbstractInsnNode insn)
+	{
+		getPendingInsertion(insertionsBefore, anchor).add(insn);
+		return this;
+	}
+
+	/**
+	 * Insert {@code insns} after {@code anchor}.
+	 * Multiple insertions after the same anchor are kept in the order they were recorded.
+	 */
+	public InsnListEditor insertAfter(AbstractInsnNode anchor, InsnList insns)
+	{
+		getPendingInsertion(insertionsAfter, anchor).add(insns);
+		return this;
+	}
+
+	/**
+	 * Insert {@code insn} after {@code anchor}.
+	 */
+	public InsnListEditor insertAfter(AbstractInsnNode anchor, AbstractInsnNode insn)
+	{
+		getPendingInsertion(insertionsAfter, anchor).add(insn);
+		return this;
+	}
+
+	/**
+	 * Remove {@code insn}.
+	 */
+	public InsnListEditor remove(AbstractInsnNode insn)
+	{
+		removals.add(insn);
+		return this;
+	}
+
+	/**
+	 * Remove instructions starting with {@code startInclusive} up until reaching {@code endNotInclusive}
+	 * ({@code endNotInclusive} will not be removed).
+	 *
+	 * @see ASMHelper#removeFromInsnListUntil
+	 */
+	public InsnListEditor removeUntil(AbstractInsnNode startInclusive, AbstractInsnNode endNotInclusive)
+	{
+		for (AbstractInsnNode insn = startInclusive; insn != null && insn != endNotInclusive; insn = insn.getNext())
+		{
+			removals.add(insn);
+		}
+		return this;
+	}
+
+	/**
+	 * Replace {@code insn} with {@code replacement}.
+	 */
+	public InsnListEditor replace(AbstractInsnNode insn, InsnList replacement)
+	{
+		insertBefore(insn, replacement);
+		return remove(insn);
+	}
+
+	/**
+	 * Replace the instructions starting with {@code startInclusive} up until reaching {@code endNotInclusive}
+	 * ({@code endNotInclusive} will not be replaced) with {@code replacement}.
+	 */
+	public InsnListEditor replaceUntil(AbstractInsnNode startInclusive, AbstractInsnNode endNotInclusive, InsnList replacement)
+	{
+		insertBefore(startInclusive, replacement);
+		return removeUntil(startInclusive, endNotInclusive);
+	}
+
+	/**
+	 * Replace all of the instructions in {@code found} (as returned by {@link ASMHelper#findAndGetFoundInsnList})
+	 * with {@code replacement}.
+	 */
+	public InsnListEditor replace(InsnList found, InsnList replacement)
+	{
+		if (found.getFirst() != null)
+			replaceUntil(found.getFirst(), found.getLast().getNext(), replacement);
+		return this;
+	}
+
+	/**
+	 * Batched version of {@link ASMHelper#skipInstructions}.
+	 */
+	public InsnListEditor skip(AbstractInsnNode startInclusive, AbstractInsnNode endNotInclusive)
+	{
+		LabelNode skipLabel = new LabelNode();
+		insertBefore(startInclusive, new JumpInsnNode(Opcodes.GOTO, skipLabel));
+		return insertBefore(endNotInclusive, skipLabel);
+	}
+
+	/**
+	 * @return Whether or not there are any recorded edits that have not been committed.
+	 */
+	public boolean isEmpty()
+	{
+		return insertionsBefore.isEmpty() && insertionsAfter.isEmpty() && removals.isEmpty();
+	}
+
+	/**
+	 * Discard all recorded edits.
+	 */
+	public void clear()
+	{
+		insertionsBefore.clear();
+		insertionsAfter.clear();
+		removals.clear();
+	}
+
+	/**
+	 * Apply all recorded edits to the {@link InsnList} and clear them from this editor.
+	 *
+	 * @return The number of anchors inserted at plus the number of instructions removed.
+	 */
+	public int commit()
+	{
+		int numEdits = 0;
+		for (Map.Entry<AbstractInsnNode, InsnList> insertion : insertionsBefore.entrySet())
+		{
+			insnList.insertBefore(insertion.getKey(), insertion.getValue());
+			numEdits++;
+		}
+		for (Map.Entry<AbstractInsnNode, InsnList> insertion : insertionsAfter.entrySet())
+		{
+			insnList.insert(insertion.getKey(), insertion.getValue());
+			numEdits++;
+		}
+		for (AbstractInsnNode insn : removals)
+		{
+			insnList.remove(insn);
+			numEdits++;
+		}
+		clear();
+		return numEdits;
+	}
+
+	private static InsnList getPendingInsertion(Map<AbstractInsnNode, InsnList> insertions, AbstractInsnNode anchor)
+	{
+		InsnList pending = insertions.get(anchor);
+		if (pending == null)
+		{
+			pending = new InsnList();
+			insertions.put(anchor, pending);
+		}
+		return pending;
+	}
+}
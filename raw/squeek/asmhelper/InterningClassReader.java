@@ -0,0 +1,42 @@
+package squeek.asmhelper;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * A {@link ClassReader} that returns strings from the {@link StringPool}, so that the names and descriptors
+ * of ClassNodes it reads are shared with every other class read this way.
+ */
+public class InterningClassReader extends ClassReader
+{
+	private final String[] interned;
+
+	public InterningClassReader(byte[] bytes)
+	{
+		this(bytes, 0, bytes.length);
+	}
+
+	public InterningClassReader(byte[] bytes, int offset, int length)
+	{
+		super(bytes, offset, length);
+		interned = new String[getItemCount()];
+	}
+
+	@Override
+	public String readUTF8(int index, char[] buf)
+	{
+		int item = readUnsignedShort(index);
+		if (index == 0 || item == 0)
+			return null;
+		// newer versions of ClassReader read strings from the constructor (e.g. for classes with bootstrap methods)
+		if (interned == null)
+			return super.readUTF8(index, buf);
+
+		String string = interned[item];
+		if (string == null)
+		{
+			string = StringPool.intern(super.readUTF8(index, buf));
+			interned[item] = string;
+		}
+		return string;
+	}
+}
@@ -0,0 +1,204 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compares the bytecode size of each method before and after transformation against the size limits of HotSpot's JIT compiler,
+ * and records the methods that a transformation pushed past a limit. Such methods silently stop being inlined
+ * (or, past {@code HugeMethodLimit}, stop being compiled at all), which can make a hot method much slower.<br>
+ * <br>
+ * The sizes are the lengths of the Code attributes of the written class, read with {@link FlatClass}.
+ * Methods added by a transformation are only checked against {@code HugeMethodLimit}.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * JitBudgetReport report = new JitBudgetReport();
+ * registry.setJitBudgetReport(report);
+ * // ...
+ * for (JitBudgetReport.Entry entry : report.getEntries())
+ *     // ...
+ * }
+ * </pre>
+ */
+public class JitBudgetReport
+{
+	/** The default value of {@code -XX:HugeMethodLimit}; larger methods are never compiled */
+	public static final int DEFAULT_HUGE_METHOD_LIMIT = 8000;
+	/** The default value of {@code -XX:FreqInlineSize}; larger methods are not inlined even when called frequently */
+	public static final int DEFAULT_FREQ_INLINE_SIZE = 325;
+	/** The default value of {@code -XX:MaxInlineSize}; larger methods are only inlined when called frequently */
+	public static final int DEFAULT_MAX_INLINE_SIZE = 35;
+
+	private static final Logger log = LogManager.getLogger("ASMHelper");
+
+	public enum Limit
+	{
+		MAX_INLINE_SIZE,
+		FREQ_INLINE_SIZE,
+		HUGE_METHOD_LIMIT
+	}
+
+	/**
+	 * A method that a transformation pushed past a limit.
+	 */
+	public static class Entry
+	{
+		public final String className;
+		public final String methodName;
+		public final String methodDesc;
+		/** The bytecode length before the transformation, or -1 if the method was added by it */
+		public final int originalLength;
+		public final int transformedLength;
+		/** The largest limit that was crossed */
+		public final Limit limit;
+		public final int limitSize;
+
+		public Entry(String className, String methodName, String methodDesc, int originalLength, int transformedLength, Limit limit, int limitSize)
+		{
+			this.className = className;
+			this.methodName = methodName;
+			this.methodDesc = methodDesc;
+			this.originalLength = originalLength;
+			this.transformedLength = transformedLength;
+			this.limit = limit;
+			this.limitSize = limitSize;
+		}
+
+		@Override
+		public String toString()
+		{
+			return className + "." + methodName + methodDesc + " grew from " + (originalLength >= 0 ? originalLength : "nothing") + " to " + transformedLength + " bytes, past " + limit + " (" + limitSize + ")";
+		}
+	}
+
+	private final int[] limitSizes;
+	private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+	private final AtomicInteger checkedMethods = new AtomicInteger();
+
+	public JitBudgetReport()
+	{
+		this(DEFAULT_HUGE_METHOD_LIMIT, DEFAULT_FREQ_INLINE_SIZE, DEFAULT_MAX_INLINE_SIZE);
+	}
+
+	/**
+	 * @param hugeMethodLimit The JVM's {@code HugeMethodLimit}.
+	 * @param freqInlineSize The JVM's {@code FreqInlineSize}.
+	 * @param maxInlineSize The JVM's {@code MaxInlineSize}.
+	 */
+	public JitBudgetReport(int hugeMethodLimit, int freqInlineSize, int maxInlineSize)
+	{
+		limitSizes = new int[Limit.values().length];
+		limitSizes[Limit.MAX_INLINE_SIZE.ordinal()] = maxInlineSize;
+		limitSizes[Limit.FREQ_INLINE_SIZE.ordinal()] = freqInlineSize;
+		limitSizes[Limit.HUGE_METHOD_LIMIT.ordinal()] = hugeMethodLimit;
+	}
+
+	/**
+	 * Compare the methods of {@code transformedClass} with those of {@code originalClass}, and record and log each method that crossed a limit.
+	 * Crossing {@code MaxInlineSize} is logged as info, and crossing the other limits as a warning.
+	 *
+	 * @param className The name of the class, used in the report.
+	 * @return The methods of this class that crossed a limit.
+	 */
+	public List<Entry> check(String className, byte[] originalClass, byte[] transformedClass)
+	{
+		FlatClass original = new FlatClass(originalClass);
+		FlatClass transformed = new FlatClass(transformedClass);
+		List<Entry> classEntries = new ArrayList<Entry>();
+
+		for (FlatClass.Method method : transformed.getMethods())
+		{
+			if (method.codeOffset == -1)
+				continue;
+			checkedMethods.incrementAndGet();
+
+			FlatClass.Method originalMethod = original.findMethod(method.name, method.desc);
+			int originalLength = originalMethod != null ? originalMethod.codeLength : -1;
+			Limit crossed = getCrossedLimit(originalLength, method.codeLength);
+			if (crossed != null)
+			{
+				Entry entry = new Entry(className, method.name, method.desc, originalLength, method.codeLength, crossed, getLimitSize(crossed));
+				if (crossed == Limit.HUGE_METHOD_LIMIT)
+					log.warn(entry + "; it will no longer be compiled");
+				else if (crossed == Limit.FREQ_INLINE_SIZE)
+					log.warn(entry + "; it may no longer be inlined");
+				else
+					log.info(entry + "; it will only be inlined where it is called frequently");
+				classEntries.add(entry);
+			}
+		}
+		entries.addAll(classEntries);
+		return classEntries;
+	}
+
+	/**
+	 * @return The largest limit that a method growing from {@code originalLength} to {@code transformedLength} bytes crosses, or {@code null} if there is none.
+	 */
+	private Limit getCrossedLimit(int originalLength, int transformedLength)
+	{
+		Limit[] limits = Limit.values();
+		for (int i = limits.length - 1; i >= 0; i--)
+		{
+			if (originalLength == -1 && limits[i] != Limit.HUGE_METHOD_LIMIT)
+				break;
+			int limitSize = limitSizes[limits[i].ordinal()];
+			if (originalLength <= limitSize && transformedLength > limitSize)
+				return limits[i];
+		}
+		return null;
+	}
+
+	/**
+	 * @return The size in bytes that {@code limit} is configured to.
+	 */
+	public int getLimitSize(Limit limit)
+	{
+		return limitSizes[limit.ordinal()];
+	}
+
+	/**
+	 * @return Every method that crossed a limit, in the order they were checked.
+	 */
+	public List<Entry> getEntries()
+	{
+		return new ArrayList<Entry>(entries);
+	}
+
+	/**
+	 * @return The number of transformed methods that have been checked.
+	 */
+	public int getCheckedMethodCount()
+	{
+		return checkedMethods.get();
+	}
+
+	/**
+	 * @return A human-readable summary of every method that crossed a limit.
+	 */
+	public String getReport()
+	{
+		StringBuilder report = new StringBuilder();
+		List<Entry> entries = getEntries();
+		report.append(entries.size()).append(" of ").append(getCheckedMethodCount()).append(" transformed methods crossed a JIT size limit");
+		for (Entry entry : entries)
+		{
+			report.append('\n').append("  ").append(entry);
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Discard every recorded entry and reset the number of checked methods, for example before checking a new set of classes.
+	 */
+	public void clear()
+	{
+		entries.clear();
+		checkedMethods.set(0);
+	}
+}
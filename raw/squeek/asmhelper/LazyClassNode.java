@@ -0,0 +1,273 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A {@link ClassNode} that only reads the code of a method once it is needed.<br>
+ * <br>
+ * The class header, fields and method signatures (including annotations) are read up front, but every
+ * {@link MethodNode} in {@link #methods} starts out without any instructions. The code of a method is read
+ * from the original bytes by {@link #materialize}, which is called automatically by {@link #getMethod} and
+ * {@link ASMHelper#findMethodNodeOfClass}. When written with {@link ASMHelper#writeClassToBytes}, methods
+ * that were never materialized are copied from the original bytes without being parsed.<br>
+ * <br>
+ * Note: A method must be materialized before it is modified in any way other than changing its access, name or descriptor,
+ * otherwise the changes will be lost when the class is written.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * LazyClassNode classNode = ASMHelper.readLazyClassFromBytes(bytes);
+ * MethodNode method = ASMHelper.findMethodNodeOfClass(classNode, "onUpdate", "()V");
+ * // ... edit method.instructions
+ * return ASMHelper.writeClassToBytes(classNode);
+ * }
+ * </pre>
+ */
+public class LazyClassNode extends ClassNode
+{
+	private final ClassReader classReader;
+	private final int flags;
+	private final Map<MethodNode, OriginalMethod> unmaterialized = new IdentityHashMap<MethodNode, OriginalMethod>();
+	private final Map<String, MethodNode> originalMethods = new HashMap<String, MethodNode>();
+
+	/**
+	 * The signature of a method as it was read, used to detect stubs that have been changed.
+	 */
+	private static class OriginalMethod
+	{
+		final int access;
+		final String name;
+		final String desc;
+
+		OriginalMethod(int access, String name, String desc)
+		{
+			this.access = access;
+			this.name = name;
+			this.desc = desc;
+		}
+
+		boolean isUnchanged(MethodNode method)
+		{
+			return method.access == access && method.name.equals(name) && method.desc.equals(desc);
+		}
+	}
+
+	public LazyClassNode(byte[] bytes)
+	{
+		this(new ClassReader(bytes), 0);
+	}
+
+	/**
+	 * @param flags The {@link ClassReader} flags used to read the code of methods.
+	 */
+	public LazyClassNode(ClassReader classReader, int flags)
+	{
+		super(Opcodes.ASM5);
+		this.classReader = classReader;
+		this.flags = flags;
+		classReader.accept(this, flags | ClassReader.SKIP_CODE);
+		for (MethodNode method : methods)
+		{
+			unmaterialized.put(method, new OriginalMethod(method.access, method.name, method.desc));
+			originalMethods.put(method.name + method.desc, method);
+		}
+	}
+
+	/**
+	 * @return The ClassReader of the original class bytes.
+	 */
+	public ClassReader getClassReader()
+	{
+		return classReader;
+	}
+
+	/**
+	 * @return Whether or not the code of {@code method} has been read (methods added after reading are always materialized).
+	 */
+	public synchronized boolean isMaterialized(MethodNode method)
+	{
+		return !unmaterialized.containsKey(method);
+	}
+
+	/**
+	 * @return The number of methods whose code has not been read.
+	 */
+	public synchronized int getUnmaterializedCount()
+	{
+		return unmaterialized.size();
+	}
+
+	/**
+	 * Read the code of {@code method} from the original class bytes, if it has not been read already.
+	 *
+	 * @return {@code method}
+	 */
+	public synchronized MethodNode materialize(final MethodNode method)
+	{
+		final OriginalMethod originalMethod = unmaterialized.remove(method);
+		if (originalMethod == null)
+			return method;
+
+		classReader.accept(new ClassVisitor(Opcodes.ASM5)
+		{
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+			{
+				if (!name.equals(originalMethod.name) || !desc.equals(originalMethod.desc))
+					return null;
+				return new CodeOnlyMethodVisitor(method);
+			}
+		}, flags);
+		return method;
+	}
+
+	/**
+	 * Read the code of every method that has not been read already.
+	 */
+	public synchronized void materializeAll()
+	{
+		for (MethodNode method : methods)
+		{
+			materialize(method);
+		}
+	}
+
+	/**
+	 * @return The materialized method with a matching {@code methodName} and {@code methodDesc} (or any descriptor if {@code methodDesc} is {@code null}).
+	 * If no matching method is found, returns {@code null}.
+	 */
+	public MethodNode getMethod(String methodName, String methodDesc)
+	{
+		for (MethodNode method : methods)
+		{
+			if (method.name.equals(methodName) && (methodDesc == null || method.desc.equals(methodDesc)))
+				return materialize(method);
+		}
+		return null;
+	}
+
+	/**
+	 * Methods that have not been materialized are visited straight from the original class bytes, so that a {@link org.objectweb.asm.ClassWriter}
+	 * created with {@link #getClassReader()} can copy them without parsing their code.
+	 * Everything else is visited from this ClassNode.
+	 */
+	@Override
+	public synchronized void accept(final ClassVisitor classVisitor)
+	{
+		if (unmaterialized.isEmpty())
+		{
+			super.accept(classVisitor);
+			return;
+		}
+
+		// visit everything but the methods
+		List<MethodNode> allMethods = methods;
+		methods = new ArrayList<MethodNode>();
+		try
+		{
+			super.accept(new ClassVisitor(Opcodes.ASM5, classVisitor)
+			{
+				@Override
+				public void visitEnd()
+				{
+				}
+			});
+		}
+		finally
+		{
+			methods = allMethods;
+		}
+
+		// original methods, in their original order
+		final Map<MethodNode, Boolean> remainingMethods = new IdentityHashMap<MethodNode, Boolean>();
+		for (MethodNode method : methods)
+		{
+			remainingMethods.put(method, Boolean.TRUE);
+		}
+		classReader.accept(new ClassVisitor(Opcodes.ASM5)
+		{
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+			{
+				MethodNode method = originalMethods.get(name + desc);
+				if (method == null || remainingMethods.remove(method) == null)
+					return null;
+
+				OriginalMethod originalMethod = unmaterialized.get(method);
+				if (originalMethod != null && originalMethod.isUnchanged(method))
+					return classVisitor.visitMethod(access, name, desc, signature, exceptions);
+
+				materialize(method).accept(classVisitor);
+				return null;
+			}
+		}, flags);
+
+		// methods that were added after reading
+		for (MethodNode method : methods)
+		{
+			if (remainingMethods.containsKey(method))
+				materialize(method).accept(classVisitor);
+		}
+		classVisitor.visitEnd();
+	}
+
+	/**
+	 * Forwards only the visits that are part of a method's Code attribute, so that the
+	 * signature and annotations already read into a stub are not duplicated.
+	 */
+	private static class CodeOnlyMethodVisitor extends MethodVisitor
+	{
+		CodeOnlyMethodVisitor(MethodVisitor mv)
+		{
+			super(Opcodes.ASM5, mv);
+		}
+
+		@Override
+		public void visitParameter(String name, int access)
+		{
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotationDefault()
+		{
+			return null;
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible)
+		{
+			return null;
+		}
+
+		@Override
+		public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible)
+		{
+			return null;
+		}
+
+		@Override
+		public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible)
+		{
+			return null;
+		}
+
+		@Override
+		public void visitAttribute(Attribute attr)
+		{
+		}
+	}
+}
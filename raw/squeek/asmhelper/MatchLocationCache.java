@@ -0,0 +1,363 @@
+package squeek.asmhelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Remembers where patterns were found in methods, so that searching the same method for the same pattern
+ * on a later run only has to verify a single location.<br>
+ * <br>
+ * Locations are keyed by a fingerprint of the method's instructions and the structural hash of the needle
+ * (see {@link InsnHasher}), both of which are the same on every run for unchanged code. A cached location is always
+ * verified with {@link ASMHelper#checkForPatternAt} before it is used; if the method has changed, or the location
+ * no longer matches, a full search is done instead and the cache is updated.<br>
+ * <br>
+ * Fingerprinting a method hashes all of its instructions, so when searching a method for more than one needle,
+ * compute its fingerprint once (with {@link #fingerprint(MethodNode)}, or from the class bytes with
+ * {@link #fingerprint(FlatClass, FlatClass.Method)} before the method is read) and pass it to each search.
+ * The two kinds of fingerprint are different, so use the same kind for a method on every run.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * MatchLocationCache cache = MatchLocationCache.load(new File("config/mymod-matches.bin"));
+ * long fingerprint = MatchLocationCache.fingerprint(method);
+ * cache.findAndReplace(method, fingerprint, needle, replacement);
+ * cache.findAndReplace(method, fingerprint, otherNeedle, otherReplacement);
+ * // ...
+ * cache.save();
+ * }
+ * </pre>
+ */
+public class MatchLocationCache
+{
+	private static final int FILE_MAGIC = 0x41534D4C; // "ASML"
+	private static final int FILE_VERSION = 1;
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final File file;
+	private final TransformContext context;
+	private final Map<Key, Integer> offsets = new HashMap<Key, Integer>();
+	private boolean dirty = false;
+	private int hits = 0;
+	private int misses = 0;
+
+	private static class Key
+	{
+		final long methodFingerprint;
+		final long patternHash;
+
+		Key(long methodFingerprint, long patternHash)
+		{
+			this.methodFingerprint = methodFingerprint;
+			this.patternHash = patternHash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return methodFingerprint == other.methodFingerprint && patternHash == other.patternHash;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			long hash = methodFingerprint * 31 + patternHash;
+			return (int) (hash ^ (hash >>> 32));
+		}
+	}
+
+	/**
+	 * @param file The file to {@link #save()} to. Can be {@code null} for a cache that is only kept in memory.
+	 */
+	public MatchLocationCache(File file)
+	{
+		this(file, TransformContext.getDefault());
+	}
+
+	/**
+	 * @param file The file to {@link #save()} to. Can be {@code null} for a cache that is only kept in memory.
+	 * @param context The context whose comparator and profiler are used by searches.
+	 */
+	public MatchLocationCache(File file, TransformContext context)
+	{
+		this.file = file;
+		this.context = context;
+	}
+
+	/**
+	 * @return The cache saved to {@code file}, or an empty cache if {@code file} does not exist or can not be read.
+	 */
+	public static MatchLocationCache load(File file)
+	{
+		return load(file, TransformContext.getDefault());
+	}
+
+	/**
+	 * See {@link #load(File)}.
+	 *
+	 * @param context The context whose comparator and profiler are used by searches.
+	 */
+	public static MatchLocationCache load(File file, TransformContext context)
+	{
+		MatchLocationCache cache = new MatchLocationCache(file, context);
+		if (!file.isFile())
+			return cache;
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+					return cache;
+				int numEntries = in.readInt();
+				for (int i = 0; i < numEntries; i++)
+				{
+					cache.offsets.put(new Key(in.readLong(), in.readLong()), in.readInt());
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			cache.offsets.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * Write the cache to the file it was loaded from, if anything has changed.
+	 */
+	public synchronized void save() throws IOException
+	{
+		if (file != null && dirty)
+			save(file);
+	}
+
+	/**
+	 * Write the cache to {@code file}.
+	 */
+	public synchronized void save(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(offsets.size());
+			for (Map.Entry<Key, Integer> entry : offsets.entrySet())
+			{
+				out.writeLong(entry.getKey().methodFingerprint);
+				out.writeLong(entry.getKey().patternHash);
+				out.writeInt(entry.getValue());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		dirty = false;
+	}
+
+	/**
+	 * @return A fingerprint of the instructions of {@code method} that only changes if the instructions do
+	 * (labels and line numbers are ignored).
+	 */
+	public static long fingerprint(MethodNode method)
+	{
+		return InsnHasher.hash(method.instructions) * 31 + method.instructions.size();
+	}
+
+	/**
+	 * @return A fingerprint of the bytecode of {@code method} in the bytes of {@code flatClass} that only changes if the bytecode does,
+	 * or 0 if the method has no Code attribute.
+	 * This is much cheaper than {@link #fingerprint(MethodNode)}, as it does not need the method to be read.
+	 */
+	public static long fingerprint(FlatClass flatClass, FlatClass.Method method)
+	{
+		if (method.codeOffset == -1)
+			return 0;
+
+		byte[] b = flatClass.getClassReader().b;
+		long hash = FNV_OFFSET_BASIS;
+		int codeEnd = method.codeOffset + method.codeLength;
+		for (int i = method.codeOffset; i < codeEnd; i++)
+		{
+			hash = (hash ^ (b[i] & 0xFF)) * FNV_PRIME;
+		}
+		return hash * 31 + method.codeLength;
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} within {@code method}, checking the cached location first.
+	 * Equivalent to {@link TransformContext#findAndGetFoundInsnList} of the context this cache was created with.
+	 *
+	 * @return All of the instructions that were matched by the pattern.
+	 * If the pattern was not found, returns an empty {@link InsnList}.
+	 */
+	public InsnList findAndGetFoundInsnList(MethodNode method, InsnList needle)
+	{
+		return findAndGetFoundInsnList(method, fingerprint(method), needle);
+	}
+
+	/**
+	 * See {@link #findAndGetFoundInsnList(MethodNode, InsnList)}.
+	 *
+	 * @param methodFingerprint The fingerprint of {@code method} before it was modified by any search using this cache.
+	 */
+	public synchronized InsnList findAndGetFoundInsnList(MethodNode method, long methodFingerprint, InsnList needle)
+	{
+		if (needle.getFirst() == null)
+			return new InsnList();
+
+		Key key = new Key(methodFingerprint, InsnHasher.hash(needle));
+		Integer offset = offsets.get(key);
+		if (offset != null)
+		{
+			AbstractInsnNode cachedStart = getMatchableInsn(method.instructions, offset);
+			if (cachedStart != null)
+			{
+				InsnList found = context.checkForPatternAt(needle, cachedStart);
+				if (found.getFirst() != null)
+				{
+					hits++;
+					return found;
+				}
+			}
+		}
+
+		misses++;
+		InsnList found = context.findAndGetFoundInsnList(method.instructions.getFirst(), needle);
+		if (found.getFirst() != null)
+		{
+			offsets.put(key, getMatchableOffset(method.instructions, found.getFirst()));
+			dirty = true;
+		}
+		else if (offset != null)
+		{
+			offsets.remove(key);
+			dirty = true;
+		}
+		return found;
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} within {@code method}, checking the cached location first.
+	 *
+	 * @return The first instruction of the matched pattern.
+	 * If the pattern was not found, returns {@code null}.
+	 */
+	public AbstractInsnNode find(MethodNode method, InsnList needle)
+	{
+		return find(method, fingerprint(method), needle);
+	}
+
+	/**
+	 * See {@link #find(MethodNode, InsnList)}.
+	 *
+	 * @param methodFingerprint The fingerprint of {@code method} before it was modified by any search using this cache.
+	 */
+	public AbstractInsnNode find(MethodNode method, long methodFingerprint, InsnList needle)
+	{
+		return findAndGetFoundInsnList(method, methodFingerprint, needle).getFirst();
+	}
+
+	/**
+	 * Searches for the pattern in {@code needle} within {@code method} (checking the cached location first)
+	 * and replaces it with {@code replacement}.
+	 *
+	 * @return The instruction after the replacement.
+	 * If the pattern was not found, returns {@code null}.
+	 */
+	public AbstractInsnNode findAndReplace(MethodNode method, InsnList needle, InsnList replacement)
+	{
+		return findAndReplace(method, fingerprint(method), needle, replacement);
+	}
+
+	/**
+	 * See {@link #findAndReplace(MethodNode, InsnList, InsnList)}.
+	 *
+	 * @param methodFingerprint The fingerprint of {@code method} before it was modified by any search using this cache.
+	 */
+	public AbstractInsnNode findAndReplace(MethodNode method, long methodFingerprint, InsnList needle, InsnList replacement)
+	{
+		InsnList found = findAndGetFoundInsnList(method, methodFingerprint, needle);
+		if (found.getFirst() != null)
+		{
+			method.instructions.insertBefore(found.getFirst(), replacement);
+			AbstractInsnNode afterNeedle = found.getLast().getNext();
+			ASMHelper.removeFromInsnListUntil(method.instructions, found.getFirst(), afterNeedle);
+			return afterNeedle;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of searches that were answered by a cached location.
+	 */
+	public synchronized int getHitCount()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return The number of searches that needed a full search.
+	 */
+	public synchronized int getMissCount()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return The number of cached locations.
+	 */
+	public synchronized int size()
+	{
+		return offsets.size();
+	}
+
+	/**
+	 * Offsets only count instructions that take part in pattern matching, so that they do not depend on labels and line numbers.
+	 */
+	private static int getMatchableOffset(InsnList insnList, AbstractInsnNode target)
+	{
+		int offset = 0;
+		for (AbstractInsnNode insn = insnList.getFirst(); insn != null && insn != target; insn = insn.getNext())
+		{
+			if (!ASMHelper.isLabelOrLineNumber(insn))
+				offset++;
+		}
+		return offset;
+	}
+
+	private static AbstractInsnNode getMatchableInsn(InsnList insnList, int offset)
+	{
+		for (AbstractInsnNode insn = insnList.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (ASMHelper.isLabelOrLineNumber(insn))
+				continue;
+			if (offset-- == 0)
+				return insn;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,578 @@
+package squeek.asmhelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * An index of every method call and field access in a set of jars, answering questions like
+ * "which methods call X?" or "where is field Y written?" without reading any classes.<br>
+ * <br>
+ * The index is built by scanning all classes in parallel with {@link ClassReader} visitors (no {@link org.objectweb.asm.tree.ClassNode}s
+ * are built) and is stored as sorted arrays of member ids. It can be saved to a file and reused for as
+ * long as the checksums of the jars (see {@link ClassBytesProvider#getJarChecksum}) stay the same.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * MemberReferenceIndex index = MemberReferenceIndex.loadOrBuild(new File("asmhelper-references.bin"), jars);
+ * for (MemberReferenceIndex.Reference caller : index.getReferences("net/minecraft/entity/Entity", "onUpdate", "()V"))
+ *     // ...
+ * }
+ * </pre>
+ */
+public class MemberReferenceIndex
+{
+	private static final int FILE_MAGIC = 0x41534D52; // "ASMR"
+	private static final int FILE_VERSION = 1;
+
+	private final List<File> jars;
+	private final long[] jarChecksums;
+
+	private final String[] strings;
+	// members, sorted by owner, then name, then desc
+	private final int[] memberOwners;
+	private final int[] memberNames;
+	private final int[] memberDescs;
+	// references, sorted by target member
+	private final int[] referenceTargets;
+	private final int[] referenceSources;
+	private final byte[] referenceOpcodes;
+
+	/**
+	 * A reference to a member from within a method.
+	 */
+	public static class Reference
+	{
+		/** The class containing the referencing method */
+		public final String sourceOwner;
+		public final String sourceName;
+		public final String sourceDesc;
+		/** The opcode of the referencing instruction (an INVOKE*, GET* or PUT* opcode) */
+		public final int opcode;
+
+		public Reference(String sourceOwner, String sourceName, String sourceDesc, int opcode)
+		{
+			this.sourceOwner = sourceOwner;
+			this.sourceName = sourceName;
+			this.sourceDesc = sourceDesc;
+			this.opcode = opcode;
+		}
+
+		public boolean isFieldRead()
+		{
+			return opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC;
+		}
+
+		public boolean isFieldWrite()
+		{
+			return opcode == Opcodes.PUTFIELD || opcode == Opcodes.PUTSTATIC;
+		}
+
+		public boolean isInvocation()
+		{
+			return !isFieldRead() && !isFieldWrite();
+		}
+
+		@Override
+		public String toString()
+		{
+			return sourceOwner + "." + sourceName + sourceDesc;
+		}
+	}
+
+	private MemberReferenceIndex(List<File> jars, long[] jarChecksums, String[] strings, int[] memberOwners, int[] memberNames, int[] memberDescs, int[] referenceTargets, int[] referenceSources, byte[] referenceOpcodes)
+	{
+		this.jars = jars;
+		this.jarChecksums = jarChecksums;
+		this.strings = strings;
+		this.memberOwners = memberOwners;
+		this.memberNames = memberNames;
+		this.memberDescs = memberDescs;
+		this.referenceTargets = referenceTargets;
+		this.referenceSources = referenceSources;
+		this.referenceOpcodes = referenceOpcodes;
+	}
+
+	/**
+	 * @return All references to the member with a matching {@code owner}, {@code name} and {@code desc}
+	 * (or any descriptor if {@code desc} is {@code null}).
+	 */
+	public List<Reference> getReferences(String owner, String name, String desc)
+	{
+		List<Reference> references = new ArrayList<Reference>();
+		int member = findFirstMember(owner, name, desc);
+		for (; member >= 0 && member < memberOwners.length && memberMatches(member, owner, name, desc); member++)
+		{
+			int reference = findFirstReference(member);
+			for (; reference >= 0 && reference < referenceTargets.length && referenceTargets[reference] == member; reference++)
+			{
+				int source = referenceSources[reference];
+				references.add(new Reference(strings[memberOwners[source]], strings[memberNames[source]], strings[memberDescs[source]], referenceOpcodes[reference] & 0xFF));
+			}
+		}
+		return references;
+	}
+
+	/**
+	 * @return All invocations of the method with a matching {@code owner}, {@code name} and {@code desc}.
+	 */
+	public List<Reference> getCallers(String owner, String name, String desc)
+	{
+		List<Reference> callers = new ArrayList<Reference>();
+		for (Reference reference : getReferences(owner, name, desc))
+		{
+			if (reference.isInvocation())
+				callers.add(reference);
+		}
+		return callers;
+	}
+
+	/**
+	 * @return All reads ({@code read == true}) or writes ({@code read == false}) of the field with a matching {@code owner}, {@code name} and {@code desc}.
+	 */
+	public List<Reference> getFieldAccesses(String owner, String name, String desc, boolean read)
+	{
+		List<Reference> accesses = new ArrayList<Reference>();
+		for (Reference reference : getReferences(owner, name, desc))
+		{
+			if (read ? reference.isFieldRead() : reference.isFieldWrite())
+				accesses.add(reference);
+		}
+		return accesses;
+	}
+
+	/**
+	 * @return The total number of references in the index.
+	 */
+	public int size()
+	{
+		return referenceTargets.length;
+	}
+
+	private boolean memberMatches(int member, String owner, String name, String desc)
+	{
+		return strings[memberOwners[member]].equals(owner) && strings[memberNames[member]].equals(name) && (desc == null || strings[memberDescs[member]].equals(desc));
+	}
+
+	private int compareMember(int member, String owner, String name, String desc)
+	{
+		int compared = strings[memberOwners[member]].compareTo(owner);
+		if (compared == 0)
+			compared = strings[memberNames[member]].compareTo(name);
+		if (compared == 0 && desc != null)
+			compared = strings[memberDescs[member]].compareTo(desc);
+		return compared;
+	}
+
+	/**
+	 * @return The first member that is not less than the given key.
+	 */
+	private int findFirstMember(String owner, String name, String desc)
+	{
+		int low = 0, high = memberOwners.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (compareMember(mid, owner, name, desc) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private int findFirstReference(int member)
+	{
+		int low = 0, high = referenceTargets.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (referenceTargets[mid] < member)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Builds the index of the given jars, scanning their classes on
+	 * {@link Runtime#availableProcessors()} threads.
+	 */
+	public static MemberReferenceIndex build(List<File> jars) throws IOException
+	{
+		return build(jars, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Builds the index of the given jars, scanning their classes on {@code numThreads} threads.
+	 */
+	public static MemberReferenceIndex build(List<File> jars, int numThreads) throws IOException
+	{
+		long[] jarChecksums = new long[jars.size()];
+		final ClassBytesProvider classBytesProvider = new ClassBytesProvider(null, 0);
+		for (int i = 0; i < jars.size(); i++)
+		{
+			jarChecksums[i] = ClassBytesProvider.getJarChecksum(jars.get(i));
+			classBytesProvider.addClassPathEntry(jars.get(i));
+		}
+
+		List<String> classNames = classBytesProvider.getIndexedClassNames();
+		final Map<String, String> stringPool = new ConcurrentHashMap<String, String>();
+		List<Callable<List<ScannedReference>>> tasks = new ArrayList<Callable<List<ScannedReference>>>();
+		int chunkSize = Math.max(1, (classNames.size() + numThreads * 4 - 1) / (numThreads * 4));
+		for (int start = 0; start < classNames.size(); start += chunkSize)
+		{
+			final List<String> chunk = classNames.subList(start, Math.min(classNames.size(), start + chunkSize));
+			tasks.add(new Callable<List<ScannedReference>>()
+			{
+				@Override
+				public List<ScannedReference> call() throws IOException
+				{
+					List<ScannedReference> references = new ArrayList<ScannedReference>();
+					for (String className : chunk)
+					{
+						// module descriptors have no code, and cannot be read by older ASM versions
+						if (className.endsWith("module-info"))
+							continue;
+						byte[] bytes = classBytesProvider.getClassBytes(className);
+						if (bytes != null)
+							new ClassReader(bytes).accept(new ReferenceCollector(references, stringPool), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+					}
+					return references;
+				}
+			});
+		}
+
+		List<ScannedReference> references = new ArrayList<ScannedReference>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try
+		{
+			for (Future<List<ScannedReference>> result : executor.invokeAll(tasks))
+			{
+				references.addAll(result.get());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while building the reference index");
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		return fromReferences(new ArrayList<File>(jars), jarChecksums, references);
+	}
+
+	/**
+	 * A reference found while scanning, before member ids have been assigned.
+	 */
+	private static class ScannedReference
+	{
+		final String sourceOwner, sourceName, sourceDesc;
+		final String targetOwner, targetName, targetDesc;
+		final int opcode;
+		int target, source;
+
+		ScannedReference(String sourceOwner, String sourceName, String sourceDesc, String targetOwner, String targetName, String targetDesc, int opcode)
+		{
+			this.sourceOwner = sourceOwner;
+			this.sourceName = sourceName;
+			this.sourceDesc = sourceDesc;
+			this.targetOwner = targetOwner;
+			this.targetName = targetName;
+			this.targetDesc = targetDesc;
+			this.opcode = opcode;
+		}
+	}
+
+	private static class ReferenceCollector extends ClassVisitor
+	{
+		private final List<ScannedReference> references;
+		private final Map<String, String> stringPool;
+		private String className;
+
+		ReferenceCollector(List<ScannedReference> references, Map<String, String> stringPool)
+		{
+			super(Opcodes.ASM5);
+			this.references = references;
+			this.stringPool = stringPool;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+		{
+			className = pooled(name);
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
+		{
+			final String sourceName = pooled(name);
+			final String sourceDesc = pooled(desc);
+			return new MethodVisitor(Opcodes.ASM5)
+			{
+				@Override
+				public void visitFieldInsn(int opcode, String owner, String name, String desc)
+				{
+					references.add(new ScannedReference(className, sourceName, sourceDesc, pooled(owner), pooled(name), pooled(desc), opcode));
+				}
+
+				@Override
+				public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf)
+				{
+					references.add(new ScannedReference(className, sourceName, sourceDesc, pooled(owner), pooled(name), pooled(desc), opcode));
+				}
+			};
+		}
+
+		private String pooled(String string)
+		{
+			String pooled = stringPool.get(string);
+			if (pooled == null)
+			{
+				pooled = string;
+				stringPool.put(string, string);
+			}
+			return pooled;
+		}
+	}
+
+	private static MemberReferenceIndex fromReferences(List<File> jars, long[] jarChecksums, List<ScannedReference> references)
+	{
+		// assign ids to strings and members in sorted order so that lookups can binary search
+		Map<String, String[]> memberKeys = new HashMap<String, String[]>();
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		for (ScannedReference reference : references)
+		{
+			addMember(memberKeys, stringIds, reference.sourceOwner, reference.sourceName, reference.sourceDesc);
+			addMember(memberKeys, stringIds, reference.targetOwner, reference.targetName, reference.targetDesc);
+		}
+
+		String[] strings = stringIds.keySet().toArray(new String[stringIds.size()]);
+		Arrays.sort(strings);
+		for (int i = 0; i < strings.length; i++)
+		{
+			stringIds.put(strings[i], i);
+		}
+
+		List<String[]> members = new ArrayList<String[]>(memberKeys.values());
+		Collections.sort(members, MEMBER_ORDER);
+		int[] memberOwners = new int[members.size()];
+		int[] memberNames = new int[members.size()];
+		int[] memberDescs = new int[members.size()];
+		Map<String, Integer> memberIds = new HashMap<String, Integer>();
+		for (int i = 0; i < members.size(); i++)
+		{
+			String[] member = members.get(i);
+			memberOwners[i] = stringIds.get(member[0]);
+			memberNames[i] = stringIds.get(member[1]);
+			memberDescs[i] = stringIds.get(member[2]);
+			memberIds.put(getMemberKey(member[0], member[1], member[2]), i);
+		}
+
+		for (ScannedReference reference : references)
+		{
+			reference.target = memberIds.get(getMemberKey(reference.targetOwner, reference.targetName, reference.targetDesc));
+			reference.source = memberIds.get(getMemberKey(reference.sourceOwner, reference.sourceName, reference.sourceDesc));
+		}
+		Collections.sort(references, REFERENCE_ORDER);
+
+		int[] referenceTargets = new int[references.size()];
+		int[] referenceSources = new int[references.size()];
+		byte[] referenceOpcodes = new byte[references.size()];
+		for (int i = 0; i < references.size(); i++)
+		{
+			ScannedReference reference = references.get(i);
+			referenceTargets[i] = reference.target;
+			referenceSources[i] = reference.source;
+			referenceOpcodes[i] = (byte) reference.opcode;
+		}
+		return new MemberReferenceIndex(jars, jarChecksums, strings, memberOwners, memberNames, memberDescs, referenceTargets, referenceSources, referenceOpcodes);
+	}
+
+	private static final Comparator<ScannedReference> REFERENCE_ORDER = new Comparator<ScannedReference>()
+	{
+		@Override
+		public int compare(ScannedReference a, ScannedReference b)
+		{
+			if (a.target != b.target)
+				return a.target < b.target ? -1 : 1;
+			return a.source < b.source ? -1 : (a.source == b.source ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<String[]> MEMBER_ORDER = new Comparator<String[]>()
+	{
+		@Override
+		public int compare(String[] a, String[] b)
+		{
+			int compared = a[0].compareTo(b[0]);
+			if (compared == 0)
+				compared = a[1].compareTo(b[1]);
+			if (compared == 0)
+				compared = a[2].compareTo(b[2]);
+			return compared;
+		}
+	};
+
+	private static void addMember(Map<String, String[]> memberKeys, Map<String, Integer> stringIds, String owner, String name, String desc)
+	{
+		String key = getMemberKey(owner, name, desc);
+		if (!memberKeys.containsKey(key))
+		{
+			memberKeys.put(key, new String[]{owner, name, desc});
+			stringIds.put(owner, null);
+			stringIds.put(name, null);
+			stringIds.put(desc, null);
+		}
+	}
+
+	private static String getMemberKey(String owner, String name, String desc)
+	{
+		return owner + '.' + name + desc;
+	}
+
+	/**
+	 * Writes the index to {@code file}, along with the checksums of the jars it was built from.
+	 */
+	public void save(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(jars.size());
+			for (int i = 0; i < jars.size(); i++)
+			{
+				out.writeUTF(jars.get(i).getAbsolutePath());
+				out.writeLong(jarChecksums[i]);
+			}
+			out.writeInt(strings.length);
+			for (String string : strings)
+			{
+				out.writeUTF(string);
+			}
+			out.writeInt(memberOwners.length);
+			for (int i = 0; i < memberOwners.length; i++)
+			{
+				out.writeInt(memberOwners[i]);
+				out.writeInt(memberNames[i]);
+				out.writeInt(memberDescs[i]);
+			}
+			out.writeInt(referenceTargets.length);
+			for (int i = 0; i < referenceTargets.length; i++)
+			{
+				out.writeInt(referenceTargets[i]);
+				out.writeInt(referenceSources[i]);
+				out.writeByte(referenceOpcodes[i]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an index from {@code file}.
+	 *
+	 * @return The index, or {@code null} if it was not built from exactly {@code jars} or any of their checksums have changed.
+	 */
+	public static MemberReferenceIndex load(File file, List<File> jars) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || in.readInt() != jars.size())
+				return null;
+			long[] jarChecksums = new long[jars.size()];
+			for (int i = 0; i < jars.size(); i++)
+			{
+				if (!in.readUTF().equals(jars.get(i).getAbsolutePath()))
+					return null;
+				jarChecksums[i] = in.readLong();
+				if (jarChecksums[i] != ClassBytesProvider.getJarChecksum(jars.get(i)))
+					return null;
+			}
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++)
+			{
+				strings[i] = in.readUTF();
+			}
+			int numMembers = in.readInt();
+			int[] memberOwners = new int[numMembers];
+			int[] memberNames = new int[numMembers];
+			int[] memberDescs = new int[numMembers];
+			for (int i = 0; i < numMembers; i++)
+			{
+				memberOwners[i] = in.readInt();
+				memberNames[i] = in.readInt();
+				memberDescs[i] = in.readInt();
+			}
+			int numReferences = in.readInt();
+			int[] referenceTargets = new int[numReferences];
+			int[] referenceSources = new int[numReferences];
+			byte[] referenceOpcodes = new byte[numReferences];
+			for (int i = 0; i < numReferences; i++)
+			{
+				referenceTargets[i] = in.readInt();
+				referenceSources[i] = in.readInt();
+				referenceOpcodes[i] = in.readByte();
+			}
+			return new MemberReferenceIndex(new ArrayList<File>(jars), jarChecksums, strings, memberOwners, memberNames, memberDescs, referenceTargets, referenceSources, referenceOpcodes);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads the index from {@code file} if it is up to date with {@code jars}, otherwise builds it and saves it to {@code file}.
+	 */
+	public static MemberReferenceIndex loadOrBuild(File file, List<File> jars) throws IOException
+	{
+		if (file.isFile())
+		{
+			MemberReferenceIndex index = load(file, jars);
+			if (index != null)
+				return index;
+		}
+		MemberReferenceIndex index = build(jars);
+		index.save(file);
+		return index;
+	}
+}
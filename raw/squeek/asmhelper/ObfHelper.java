@@ -1,15 +1,13 @@
 package squeek.asmhelper;
 
-import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import net.minecraft.launchwrapper.LaunchClassLoader;
-import cpw.mods.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
 
+/**
+ * Static access to the obfuscation state and name mappings of {@link TransformContext#getDefault()}.
+ */
 public class ObfHelper
 {
-	private static Boolean obfuscated = null;
-
 	/**
 	 * Can be initialized by a core mod in {@link cpw.mods.fml.relauncher.IFMLLoadingPlugin#injectData} by 
 	 * using the value of "runtimeDeobfuscationEnabled" to
@@ -25,7 +23,7 @@ public class ObfHelper
 	 */
 	public static void setObfuscated(boolean obfuscated)
 	{
-		ObfHelper.obfuscated = obfuscated;
+		TransformContext.getDefault().setObfuscated(obfuscated);
 	}
 
 	/**
@@ -33,19 +31,7 @@ public class ObfHelper
 	 */
 	public static boolean isObfuscated()
 	{
-		if (obfuscated == null)
-		{
-			try
-			{
-				byte[] bytes = ((LaunchClassLoader) ObfHelper.class.getClassLoader()).getClassBytes("net.minecraft.world.World");
-				ObfHelper.setObfuscated(bytes == null);
-			}
-			catch (IOException e)
-			{
-				obfuscated = true;
-			}
-		}
-		return obfuscated;
+		return TransformContext.getDefault().isObfuscated();
 	}
 
 	/**
@@ -53,10 +39,7 @@ public class ObfHelper
 	 */
 	public static String toDeobfClassName(String obfClassName)
 	{
-		if (isObfuscated())
-			return forceToDeobfClassName(obfClassName);
-		else
-			return obfClassName;
+		return TransformContext.getDefault().toDeobfClassName(obfClassName);
 	}
 
 	/**
@@ -64,7 +47,7 @@ public class ObfHelper
 	 */
 	public static String forceToDeobfClassName(String obfClassName)
 	{
-		return FMLDeobfuscatingRemapper.INSTANCE.map(obfClassName.replace('.', '/')).replace('/', '.');
+		return TransformContext.getDefault().forceToDeobfClassName(obfClassName);
 	}
 
 	/**
@@ -72,10 +55,7 @@ public class ObfHelper
 	 */
 	public static String toObfClassName(String deobfClassName)
 	{
-		if (isObfuscated())
-			return forceToObfClassName(deobfClassName);
-		else
-			return deobfClassName;
+		return TransformContext.getDefault().toObfClassName(deobfClassName);
 	}
 
 	/**
@@ -83,7 +63,7 @@ public class ObfHelper
 	 */
 	public static String forceToObfClassName(String deobfClassName)
 	{
-		return FMLDeobfuscatingRemapper.INSTANCE.unmap(deobfClassName.replace('.', '/')).replace('/', '.');
+		return TransformContext.getDefault().forceToObfClassName(deobfClassName);
 	}
 
 	/**
@@ -92,7 +72,7 @@ public class ObfHelper
 	 */
 	public static String getInternalClassName(String className)
 	{
-		return toObfClassName(className).replace('.', '/');
+		return TransformContext.getDefault().getInternalClassName(className);
 	}
 
 	/**
@@ -101,7 +81,7 @@ public class ObfHelper
 	 */
 	public static String getDescriptor(String className)
 	{
-		return "L" + getInternalClassName(className) + ";";
+		return StringPool.intern("L" + getInternalClassName(className) + ";");
 	}
 
 	/**
@@ -119,7 +99,7 @@ public class ObfHelper
 				classNameMatcher.appendReplacement(obfDescBuffer, getDescriptor(classNameMatcher.group(1).replace('/', '.')));
 			}
 			classNameMatcher.appendTail(obfDescBuffer);
-			return obfDescBuffer.toString();
+			return StringPool.intern(obfDescBuffer.toString());
 		}
 		else
 			return deobfDesc;
@@ -1,27 +1,57 @@
 package squeek.asmhelper;
 
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
 /**
  * {@link ClassWriter#getCommonSuperClass} needed to be overwritten 
- * in order to avoid ClassNotFoundExceptions in obfuscated environments.
+ * in order to avoid ClassNotFoundExceptions in obfuscated environments.<br>
+ * <br>
+ * Common super classes are looked up in the {@link TransformContext#getClassHierarchy() hierarchy} of the context first,
+ * and only loaded with {@link Class#forName} if that fails.
  */
 public class ObfRemappingClassWriter extends ClassWriter
 {
+	private final TransformContext context;
+
 	public ObfRemappingClassWriter(int flags)
+	{
+		this(TransformContext.getDefault(), flags);
+	}
+
+	/**
+	 * See {@link ClassWriter#ClassWriter(ClassReader, int)}.
+	 */
+	public ObfRemappingClassWriter(ClassReader classReader, int flags)
+	{
+		this(TransformContext.getDefault(), classReader, flags);
+	}
+
+	public ObfRemappingClassWriter(TransformContext context, int flags)
 	{
 		super(flags);
+		this.context = context;
+	}
+
+	public ObfRemappingClassWriter(TransformContext context, ClassReader classReader, int flags)
+	{
+		super(classReader, flags);
+		this.context = context;
 	}
 
 	@Override
 	protected String getCommonSuperClass(final String type1, final String type2)
 	{
+		String commonSuperClass = context.getClassHierarchy().getCommonSuperClass(context.getInternalClassName(type1), context.getInternalClassName(type2));
+		if (commonSuperClass != null)
+			return commonSuperClass;
+
 		Class<?> c, d;
 		ClassLoader classLoader = getClass().getClassLoader();
 		try
 		{
-			c = Class.forName(ObfHelper.toDeobfClassName(type1.replace('/', '.')), false, classLoader);
-			d = Class.forName(ObfHelper.toDeobfClassName(type2.replace('/', '.')), false, classLoader);
+			c = Class.forName(context.toDeobfClassName(type1.replace('/', '.')), false, classLoader);
+			d = Class.forName(context.toDeobfClassName(type2.replace('/', '.')), false, classLoader);
 		}
 		catch (Exception e)
 		{
@@ -46,7 +76,7 @@ public class ObfRemappingClassWriter extends ClassWriter
 				c = c.getSuperclass();
 			}
 			while (!c.isAssignableFrom(d));
-			return ObfHelper.toObfClassName(c.getName()).replace('.', '/');
+			return context.toObfClassName(c.getName()).replace('.', '/');
 		}
 	}
 }
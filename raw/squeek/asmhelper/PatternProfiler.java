@@ -0,0 +1,281 @@
+package squeek.asmhelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.util.Printer;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+/**
+ * Measures how expensive each needle is to search for, and finds matches without modifying the haystack.<br>
+ * <br>
+ * While a profiler is set on a {@link TransformContext} (see {@link TransformContext#setPatternProfiler}, or {@link #setActive}
+ * for the default context), every search done by that context's {@code findAndGetFoundInsnList}
+ * (and therefore {@code find}, {@code findAndReplace} and {@code findAndReplaceAll}) is recorded per needle: the number of
+ * candidate positions tried, the number of instructions compared, and the time spent.
+ * Needles whose first instruction is a common opcode (like ALOAD) typically try many more candidates.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * PatternProfiler profiler = new PatternProfiler();
+ * profiler.setPatternName(needle, "onUpdate hook");
+ * for (MethodNode method : corpus)
+ *     profiler.dryRunFindAll(method.instructions, needle);
+ * System.out.println(profiler.getReport());
+ * }
+ * </pre>
+ */
+public class PatternProfiler
+{
+	private final Map<InsnList, PatternStats> stats = new IdentityHashMap<InsnList, PatternStats>();
+	private final Map<InsnList, String> patternNames = new IdentityHashMap<InsnList, String>();
+
+	/**
+	 * The accumulated cost of searching for a single needle.
+	 */
+	public static class PatternStats
+	{
+		public final String name;
+		public long searches = 0;
+		public long matches = 0;
+		public long candidates = 0;
+		public long comparisons = 0;
+		public long nanos = 0;
+
+		PatternStats(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + ": " + searches + " searches, " + matches + " matches, " + candidates + " candidates, " + comparisons + " comparisons, " + (nanos / 1000) + "us";
+		}
+	}
+
+	/**
+	 * A match found by a dry run. The instructions are not modified in any way.
+	 */
+	public static class Match
+	{
+		/** The first and last matched instructions */
+		public final AbstractInsnNode first;
+		public final AbstractInsnNode last;
+		/** The number of instructions between the start of the haystack and {@link #first} */
+		public final int offset;
+		/** The number of matched instructions, including any labels and line numbers within the match */
+		public final int length;
+
+		Match(AbstractInsnNode first, AbstractInsnNode last, int offset, int length)
+		{
+			this.first = first;
+			this.last = last;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return The matched instructions as a string.
+		 */
+		public String getMatchAsString()
+		{
+			Printer printer = new Textifier();
+			TraceMethodVisitor methodPrinter = new TraceMethodVisitor(printer);
+			for (AbstractInsnNode insn = first; insn != last.getNext(); insn = insn.getNext())
+			{
+				insn.accept(methodPrinter);
+			}
+			StringWriter sw = new StringWriter();
+			printer.print(new PrintWriter(sw));
+			return sw.toString();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "offset " + offset + ", length " + length;
+		}
+	}
+
+	/**
+	 * Set the profiler that records every search made through {@link ASMHelper}, or {@code null} to stop profiling.
+	 * Equivalent to {@link TransformContext#setPatternProfiler} on {@link TransformContext#getDefault()}.
+	 */
+	public static void setActive(PatternProfiler profiler)
+	{
+		TransformContext.getDefault().setPatternProfiler(profiler);
+	}
+
+	/**
+	 * @return The profiler of {@link TransformContext#getDefault()}, or {@code null} if profiling is disabled.
+	 */
+	public static PatternProfiler getActive()
+	{
+		return TransformContext.getDefault().getPatternProfiler();
+	}
+
+	/**
+	 * Set a name to identify {@code needle} by in the report.
+	 */
+	public synchronized void setPatternName(InsnList needle, String name)
+	{
+		patternNames.put(needle, name);
+	}
+
+	synchronized void record(InsnList needle, int candidates, int comparisons, boolean matched, long startNanos)
+	{
+		long nanos = System.nanoTime() - startNanos;
+		PatternStats patternStats = stats.get(needle);
+		if (patternStats == null)
+		{
+			patternStats = new PatternStats(getPatternName(needle));
+			stats.put(needle, patternStats);
+		}
+		patternStats.searches++;
+		patternStats.candidates += candidates;
+		patternStats.comparisons += comparisons;
+		patternStats.nanos += nanos;
+		if (matched)
+			patternStats.matches++;
+	}
+
+	private String getPatternName(InsnList needle)
+	{
+		String name = patternNames.get(needle);
+		if (name != null)
+			return name;
+		String firstOpcode = needle.getFirst() != null && needle.getFirst().getOpcode() >= 0 ? Printer.OPCODES[needle.getFirst().getOpcode()] : "?";
+		return "pattern@" + Integer.toHexString(System.identityHashCode(needle)) + " (" + needle.size() + " instructions, starting with " + firstOpcode + ")";
+	}
+
+	/**
+	 * @return The stats of the needle, or {@code null} if it has not been searched for.
+	 */
+	public synchronized PatternStats getStats(InsnList needle)
+	{
+		return stats.get(needle);
+	}
+
+	/**
+	 * @return The stats of every needle that has been searched for, most expensive first.
+	 */
+	public synchronized List<PatternStats> getAllStats()
+	{
+		List<PatternStats> allStats = new ArrayList<PatternStats>(stats.values());
+		Collections.sort(allStats, new Comparator<PatternStats>()
+		{
+			@Override
+			public int compare(PatternStats a, PatternStats b)
+			{
+				return a.nanos == b.nanos ? 0 : (a.nanos > b.nanos ? -1 : 1);
+			}
+		});
+		return allStats;
+	}
+
+	/**
+	 * @return The stats of every needle that has been searched for, one per line, most expensive first.
+	 */
+	public String getReport()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (PatternStats patternStats : getAllStats())
+		{
+			sb.append(patternStats).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Discard all recorded stats.
+	 */
+	public synchronized void reset()
+	{
+		stats.clear();
+	}
+
+	/**
+	 * Finds every match of {@code needle} in {@code haystack} without modifying either of them, recording the cost of each search.<br>
+	 * <br>
+	 * The matches are the same as the ones that {@link ASMHelper#findAndReplaceAll} would replace:
+	 * each search continues after the end of the previous match.
+	 */
+	public List<Match> dryRunFindAll(InsnList haystack, InsnList needle)
+	{
+		return dryRunFindAll(haystack, needle, TransformContext.getDefault().getInsnComparator());
+	}
+
+	/**
+	 * Overload of {@link #dryRunFindAll(InsnList, InsnList)} that compares instructions using {@code insnComparator}.
+	 */
+	public List<Match> dryRunFindAll(InsnList haystack, InsnList needle, InsnComparator insnComparator)
+	{
+		List<Match> matches = new ArrayList<Match>();
+		if (needle.getFirst() == null)
+			return matches;
+
+		int needleStartOpcode = needle.getFirst().getOpcode();
+		int offset = 0;
+		AbstractInsnNode searchStart = haystack.getFirst();
+		while (searchStart != null)
+		{
+			long startNanos = System.nanoTime();
+			int candidates = 0;
+			int[] comparisons = new int[1];
+			Match match = null;
+			for (AbstractInsnNode candidate = searchStart; candidate != null && match == null; candidate = candidate.getNext(), offset++)
+			{
+				if (candidate.getOpcode() != needleStartOpcode)
+					continue;
+				candidates++;
+				AbstractInsnNode last = ASMHelper.getLastMatchedInsn(needle, candidate, insnComparator, comparisons);
+				if (last != null)
+					match = new Match(candidate, last, offset, countInsns(candidate, last));
+			}
+			record(needle, candidates, comparisons[0], match != null, startNanos);
+			if (match == null)
+				break;
+
+			matches.add(match);
+			searchStart = match.last.getNext();
+			offset = match.offset + match.length;
+		}
+		return matches;
+	}
+
+	/**
+	 * Like {@link #dryRunFindAll}, but returns a description of every replacement that {@link ASMHelper#findAndReplaceAll} would make.
+	 */
+	public String dryRunFindAndReplaceAll(InsnList haystack, InsnList needle, InsnList replacement)
+	{
+		List<Match> matches = dryRunFindAll(haystack, needle);
+		StringBuilder sb = new StringBuilder();
+		sb.append(matches.size()).append(" replacement(s) of ").append(getPatternName(needle)).append('\n');
+		for (Match match : matches)
+		{
+			sb.append("at ").append(match).append(":\n").append(match.getMatchAsString());
+			sb.append("would be replaced with:\n").append(ASMHelper.getInsnListAsString(replacement));
+		}
+		return sb.toString();
+	}
+
+	private static int countInsns(AbstractInsnNode first, AbstractInsnNode last)
+	{
+		int count = 1;
+		for (AbstractInsnNode insn = first; insn != last; insn = insn.getNext())
+		{
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,450 @@
+package squeek.asmhelper;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Removes redundant instruction sequences that are commonly left behind by injected code,
+ * such as a GOTO to the very next instruction or a value that is boxed and immediately unboxed.<br>
+ * <br>
+ * Intended to be run on a {@link MethodNode} (or on a replacement {@link InsnList}) before
+ * {@link ASMHelper#writeClassToBytes}. Only instruction pairs that have no labels between them are
+ * optimized, so nothing that could be a jump target is ever removed. When optimizing a {@link MethodNode}, instructions are
+ * also never removed if that would leave a try-catch block without any instructions, which the JVM rejects.<br>
+ * <br>
+ * The number of times each {@link Rule} was applied is accumulated in the optimizer instance,
+ * which is therefore not thread-safe.
+ */
+public class PeepholeOptimizer
+{
+	public enum Rule
+	{
+		/** {@code GOTO L; L:} */
+		REDUNDANT_GOTO,
+		/** {@code NOP} */
+		NOP,
+		/** A side-effect free push immediately followed by a {@code POP}/{@code POP2} of the same size */
+		PUSH_POP,
+		/** {@code xLOAD n; xSTORE n} */
+		LOAD_STORE,
+		/** {@code xSTORE n; xLOAD n} where local {@code n} is never read anywhere else (only applied to whole methods) */
+		STORE_LOAD,
+		/** A {@code CHECKCAST} of a value that is already known to be of the cast type */
+		REDUNDANT_CHECKCAST,
+		/** {@code Integer.valueOf(int)} immediately followed by {@code Integer.intValue()} (and the same for the other wrapper types) */
+		BOXING_ROUND_TRIP
+	}
+
+	private static final String[][] BOXING_METHODS = new String[][]{
+		{"java/lang/Integer", "I", "intValue"},
+		{"java/lang/Long", "J", "longValue"},
+		{"java/lang/Float", "F", "floatValue"},
+		{"java/lang/Double", "D", "doubleValue"},
+		{"java/lang/Short", "S", "shortValue"},
+		{"java/lang/Byte", "B", "byteValue"},
+		{"java/lang/Character", "C", "charValue"},
+		{"java/lang/Boolean", "Z", "booleanValue"}
+	};
+
+	private final Set<Rule> rules;
+	private final int[] hits = new int[Rule.values().length];
+	private boolean assumeFramesRecomputed = true;
+
+	public PeepholeOptimizer()
+	{
+		this(EnumSet.allOf(Rule.class));
+	}
+
+	public PeepholeOptimizer(Set<Rule> rules)
+	{
+		this.rules = EnumSet.copyOf(rules);
+	}
+
+	/**
+	 * Set whether or not the stack map frames of optimized methods will be recomputed when they are written
+	 * (true by default, as {@link ASMHelper#writeClassToBytes(ClassNode)} uses {@link org.objectweb.asm.ClassWriter#COMPUTE_FRAMES}).<br>
+	 * <br>
+	 * If false, {@link Rule#STORE_LOAD} is not applied to methods that contain frames, as removing a store
+	 * can leave an existing frame declaring a local variable that is never assigned.
+	 */
+	public PeepholeOptimizer setAssumeFramesRecomputed(boolean assumeFramesRecomputed)
+	{
+		this.assumeFramesRecomputed = assumeFramesRecomputed;
+		return this;
+	}
+
+	/**
+	 * Runs {@link #optimize(MethodNode)} on every method of {@code classNode}.
+	 *
+	 * @return The number of optimizations applied.
+	 */
+	public int optimize(ClassNode classNode)
+	{
+		int numOptimized = 0;
+		for (MethodNode method : classNode.methods)
+		{
+			numOptimized += optimize(method);
+		}
+		return numOptimized;
+	}
+
+	/**
+	 * Optimizes the instructions of {@code method}.
+	 *
+	 * @return The number of optimizations applied.
+	 */
+	public int optimize(MethodNode method)
+	{
+		boolean storeLoadAllowed = rules.contains(Rule.STORE_LOAD) && (assumeFramesRecomputed || ASMHelper.getOrFindInstructionOfType(method.instructions.getFirst(), AbstractInsnNode.FRAME) == null);
+		return optimize(method.instructions, method.tryCatchBlocks, storeLoadAllowed ? method : null);
+	}
+
+	/**
+	 * Optimizes the instructions of {@code insnList}.<br>
+	 * <br>
+	 * Note: {@link Rule#STORE_LOAD} is not applied, as it needs to know how local variables
+	 * are used in the rest of the method.
+	 *
+	 * @return The number of optimizations applied.
+	 */
+	public int optimize(InsnList insnList)
+	{
+		return optimize(insnList, null, null);
+	}
+
+	private int optimize(InsnList insnList, List<TryCatchBlockNode> tryCatchBlocks, MethodNode storeLoadMethod)
+	{
+		int numOptimized = 0;
+		int numOptimizedThisPass;
+		do
+		{
+			int[] varReads = storeLoadMethod != null ? countVarReads(storeLoadMethod) : null;
+			numOptimizedThisPass = 0;
+			AbstractInsnNode insn = insnList.getFirst();
+			while (insn != null)
+			{
+				AbstractInsnNode previous = insn.getPrevious();
+				Rule applied = optimizeAt(insnList, tryCatchBlocks, insn, varReads);
+				if (applied != null)
+				{
+					hits[applied.ordinal()]++;
+					numOptimizedThisPass++;
+					// removing instructions can create a new match with the previous instruction
+					insn = previous != null ? previous : insnList.getFirst();
+				}
+				else
+					insn = insn.getNext();
+			}
+			numOptimized += numOptimizedThisPass;
+		}
+		while (numOptimizedThisPass > 0);
+		return numOptimized;
+	}
+
+	private Rule optimizeAt(InsnList insnList, List<TryCatchBlockNode> tryCatchBlocks, AbstractInsnNode insn, int[] varReads)
+	{
+		int opcode = insn.getOpcode();
+		if (opcode < 0)
+			return null;
+
+		if (opcode == Opcodes.NOP && rules.contains(Rule.NOP))
+			return removeAndReturn(insnList, tryCatchBlocks, insn, null, Rule.NOP);
+
+		if (opcode == Opcodes.GOTO && rules.contains(Rule.REDUNDANT_GOTO) && isGotoToNextInstruction((JumpInsnNode) insn))
+			return removeAndReturn(insnList, tryCatchBlocks, insn, null, Rule.REDUNDANT_GOTO);
+
+		AbstractInsnNode next = findNextAdjacentInstruction(insn);
+		if (next == null)
+			return null;
+		int nextOpcode = next.getOpcode();
+
+		if (rules.contains(Rule.PUSH_POP) && ((nextOpcode == Opcodes.POP && getPushSize(insn) == 1) || (nextOpcode == Opcodes.POP2 && getPushSize(insn) == 2)))
+			return removeAndReturn(insnList, tryCatchBlocks, insn, next, Rule.PUSH_POP);
+
+		if (rules.contains(Rule.LOAD_STORE) && isLoad(opcode) && nextOpcode == opcode + (Opcodes.ISTORE - Opcodes.ILOAD) && ((VarInsnNode) insn).var == ((VarInsnNode) next).var)
+			return removeAndReturn(insnList, tryCatchBlocks, insn, next, Rule.LOAD_STORE);
+
+		if (varReads != null && isStore(opcode) && nextOpcode == opcode - (Opcodes.ISTORE - Opcodes.ILOAD))
+		{
+			int var = ((VarInsnNode) insn).var;
+			if (var == ((VarInsnNode) next).var && varReads[var] == 1)
+			{
+				Rule applied = removeAndReturn(insnList, tryCatchBlocks, insn, next, Rule.STORE_LOAD);
+				if (applied != null)
+					varReads[var] = 0;
+				return applied;
+			}
+		}
+
+		if (nextOpcode == Opcodes.CHECKCAST && rules.contains(Rule.REDUNDANT_CHECKCAST) && isAlreadyOfType(insn, ((TypeInsnNode) next).desc))
+			return removeAndReturn(insnList, tryCatchBlocks, next, null, Rule.REDUNDANT_CHECKCAST);
+
+		if (opcode == Opcodes.INVOKESTATIC && nextOpcode == Opcodes.INVOKEVIRTUAL && rules.contains(Rule.BOXING_ROUND_TRIP) && isBoxingRoundTrip((MethodInsnNode) insn, (MethodInsnNode) next))
+			return removeAndReturn(insnList, tryCatchBlocks, insn, next, Rule.BOXING_ROUND_TRIP);
+
+		return null;
+	}
+
+	/**
+	 * Removes {@code insn} and {@code otherInsn} (if not {@code null}), unless that would leave one of {@code tryCatchBlocks} empty.
+	 *
+	 * @return {@code rule} if the instructions were removed, otherwise {@code null}.
+	 */
+	private static Rule removeAndReturn(InsnList insnList, List<TryCatchBlockNode> tryCatchBlocks, AbstractInsnNode insn, AbstractInsnNode otherInsn, Rule rule)
+	{
+		if (tryCatchBlocks != null)
+		{
+			for (TryCatchBlockNode tryCatchBlock : tryCatchBlocks)
+			{
+				if (wouldBeEmptyWithout(tryCatchBlock, insn, otherInsn))
+					return null;
+			}
+		}
+
+		insnList.remove(insn);
+		if (otherInsn != null)
+			insnList.remove(otherInsn);
+		return rule;
+	}
+
+	/**
+	 * @return Whether or not removing {@code insn} and {@code otherInsn} would leave no instructions in the range of {@code tryCatchBlock}
+	 * (when it contained either of them).
+	 */
+	private static boolean wouldBeEmptyWithout(TryCatchBlockNode tryCatchBlock, AbstractInsnNode insn, AbstractInsnNode otherInsn)
+	{
+		boolean containsRemoved = false;
+		for (AbstractInsnNode rangeInsn = tryCatchBlock.start; rangeInsn != null && rangeInsn != tryCatchBlock.end; rangeInsn = rangeInsn.getNext())
+		{
+			if (rangeInsn == insn || rangeInsn == otherInsn)
+				containsRemoved = true;
+			else if (rangeInsn.getOpcode() >= 0)
+				return false;
+		}
+		return containsRemoved;
+	}
+
+	/**
+	 * @return The next instruction if it directly follows {@code insn} (only line numbers in between), otherwise {@code null}.
+	 */
+	private static AbstractInsnNode findNextAdjacentInstruction(AbstractInsnNode insn)
+	{
+		for (AbstractInsnNode next = insn.getNext(); next != null; next = next.getNext())
+		{
+			if (next.getType() == AbstractInsnNode.LINE)
+				continue;
+			return next.getOpcode() >= 0 ? next : null;
+		}
+		return null;
+	}
+
+	private static boolean isGotoToNextInstruction(JumpInsnNode gotoInsn)
+	{
+		for (AbstractInsnNode next = gotoInsn.getNext(); next != null && next.getOpcode() < 0; next = next.getNext())
+		{
+			if (next == gotoInsn.label)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of stack slots pushed by {@code insn} if it has no side effects, otherwise 0.
+	 */
+	private static int getPushSize(AbstractInsnNode insn)
+	{
+		int opcode = insn.getOpcode();
+		switch (opcode)
+		{
+			case Opcodes.ACONST_NULL:
+			case Opcodes.ICONST_M1:
+			case Opcodes.ICONST_0:
+			case Opcodes.ICONST_1:
+			case Opcodes.ICONST_2:
+			case Opcodes.ICONST_3:
+			case Opcodes.ICONST_4:
+			case Opcodes.ICONST_5:
+			case Opcodes.FCONST_0:
+			case Opcodes.FCONST_1:
+			case Opcodes.FCONST_2:
+			case Opcodes.BIPUSH:
+			case Opcodes.SIPUSH:
+			case Opcodes.ILOAD:
+			case Opcodes.FLOAD:
+			case Opcodes.ALOAD:
+			case Opcodes.DUP:
+				return 1;
+			case Opcodes.LCONST_0:
+			case Opcodes.LCONST_1:
+			case Opcodes.DCONST_0:
+			case Opcodes.DCONST_1:
+			case Opcodes.LLOAD:
+			case Opcodes.DLOAD:
+			case Opcodes.DUP2:
+				return 2;
+			case Opcodes.LDC:
+				// loading a class constant can fail, so only count plain values
+				Object cst = ((LdcInsnNode) insn).cst;
+				if (cst instanceof Long || cst instanceof Double)
+					return 2;
+				return cst instanceof Number || cst instanceof String ? 1 : 0;
+			default:
+				return 0;
+		}
+	}
+
+	private static boolean isLoad(int opcode)
+	{
+		return opcode >= Opcodes.ILOAD && opcode <= Opcodes.ALOAD;
+	}
+
+	private static boolean isStore(int opcode)
+	{
+		return opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE;
+	}
+
+	/**
+	 * @return The number of instructions that read each local variable. Variables that are
+	 * read in other ways (IINC, RET) or have debug info are given a count that will never be optimized.
+	 */
+	private static int[] countVarReads(MethodNode method)
+	{
+		int[] varReads = new int[Math.max(method.maxLocals, getHighestVar(method.instructions) + 1)];
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (isLoad(insn.getOpcode()))
+				varReads[((VarInsnNode) insn).var]++;
+			else if (insn.getOpcode() == Opcodes.RET)
+				varReads[((VarInsnNode) insn).var] = Integer.MIN_VALUE;
+			else if (insn.getType() == AbstractInsnNode.IINC_INSN)
+				varReads[((IincInsnNode) insn).var] = Integer.MIN_VALUE;
+		}
+		if (method.localVariables != null)
+		{
+			for (LocalVariableNode localVar : method.localVariables)
+			{
+				if (localVar.index < varReads.length)
+					varReads[localVar.index] = Integer.MIN_VALUE;
+			}
+		}
+		return varReads;
+	}
+
+	private static int getHighestVar(InsnList insnList)
+	{
+		int highestVar = -1;
+		for (AbstractInsnNode insn = insnList.getFirst(); insn != null; insn = insn.getNext())
+		{
+			if (insn instanceof VarInsnNode)
+				highestVar = Math.max(highestVar, ((VarInsnNode) insn).var);
+			else if (insn instanceof IincInsnNode)
+				highestVar = Math.max(highestVar, ((IincInsnNode) insn).var);
+		}
+		return highestVar;
+	}
+
+	/**
+	 * @return Whether or not the value pushed by {@code insn} is known to already be assignable to {@code internalName}.
+	 */
+	private static boolean isAlreadyOfType(AbstractInsnNode insn, String internalName)
+	{
+		// any value that can be cast is already an Object
+		if (internalName.equals("java/lang/Object"))
+			return true;
+
+		switch (insn.getOpcode())
+		{
+			case Opcodes.ACONST_NULL:
+				return true;
+			case Opcodes.CHECKCAST:
+				return ((TypeInsnNode) insn).desc.equals(internalName);
+			case Opcodes.LDC:
+				Object cst = ((LdcInsnNode) insn).cst;
+				return (cst instanceof String && internalName.equals("java/lang/String")) || (isClassConstant(cst) && internalName.equals("java/lang/Class"));
+			case Opcodes.GETFIELD:
+			case Opcodes.GETSTATIC:
+				return isDescOfType(((FieldInsnNode) insn).desc, internalName);
+			case Opcodes.INVOKEVIRTUAL:
+			case Opcodes.INVOKESPECIAL:
+			case Opcodes.INVOKESTATIC:
+			case Opcodes.INVOKEINTERFACE:
+				return isDescOfType(Type.getReturnType(((MethodInsnNode) insn).desc).getDescriptor(), internalName);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @return Whether or not an LDC of {@code cst} pushes a {@code Class} (method type constants are also {@link Type}s, but push a {@code MethodType}).
+	 */
+	private static boolean isClassConstant(Object cst)
+	{
+		return cst instanceof Type && (((Type) cst).getSort() == Type.OBJECT || ((Type) cst).getSort() == Type.ARRAY);
+	}
+
+	private static boolean isDescOfType(String desc, String internalName)
+	{
+		Type type = Type.getType(desc);
+		return (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) && type.getInternalName().equals(internalName);
+	}
+
+	private static boolean isBoxingRoundTrip(MethodInsnNode box, MethodInsnNode unbox)
+	{
+		for (String[] boxingMethod : BOXING_METHODS)
+		{
+			String wrapper = boxingMethod[0];
+			String primitive = boxingMethod[1];
+			if (box.owner.equals(wrapper) && box.name.equals("valueOf") && box.desc.equals("(" + primitive + ")L" + wrapper + ";")
+				&& unbox.owner.equals(wrapper) && unbox.name.equals(boxingMethod[2]) && unbox.desc.equals("()" + primitive))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The number of times {@code rule} has been applied by this optimizer.
+	 */
+	public int getHits(Rule rule)
+	{
+		return hits[rule.ordinal()];
+	}
+
+	/**
+	 * @return The number of times each rule has been applied by this optimizer.
+	 */
+	public Map<Rule, Integer> getHitCounts()
+	{
+		Map<Rule, Integer> hitCounts = new EnumMap<Rule, Integer>(Rule.class);
+		for (Rule rule : Rule.values())
+		{
+			hitCounts.put(rule, hits[rule.ordinal()]);
+		}
+		return hitCounts;
+	}
+
+	public void resetHitCounts()
+	{
+		for (int i = 0; i < hits.length; i++)
+		{
+			hits[i] = 0;
+		}
+	}
+}
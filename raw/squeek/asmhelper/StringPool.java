@@ -0,0 +1,40 @@
+package squeek.asmhelper;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * A shared pool of the class names, member names and descriptors read by {@link ASMHelper} and
+ * output by {@link ObfHelper}, so that equal strings across ClassNodes are the same instance.<br>
+ * <br>
+ * The pool only holds weak references, so strings are released once no ClassNode refers to them anymore.
+ */
+public class StringPool
+{
+	private static final Interner<String> interner = Interners.newWeakInterner();
+
+	/**
+	 * @return The pooled instance of {@code string}, or {@code null} if {@code string} is {@code null}.
+	 */
+	public static String intern(String string)
+	{
+		return string != null ? interner.intern(string) : null;
+	}
+
+	/**
+	 * Replaces every element of {@code strings} with its pooled instance.
+	 *
+	 * @return {@code strings}
+	 */
+	public static String[] internAll(String[] strings)
+	{
+		if (strings != null)
+		{
+			for (int i = 0; i < strings.length; i++)
+			{
+				strings[i] = intern(strings[i]);
+			}
+		}
+		return strings;
+	}
+}
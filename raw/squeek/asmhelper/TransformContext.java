@@ -0,0 +1,489 @@
+package squeek.asmhelper;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+import cpw.mods.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
+
+/**
+ * The state used while transforming classes: whether the environment is obfuscated, the remapper and class hierarchy
+ * used to resolve names, the {@link InsnComparator} used to match instructions, the {@link PatternProfiler} that records its searches,
+ * the threads used by {@link ClassSearch}, and counts of the classes read and written.<br>
+ * <br>
+ * {@link TransformTrace} is deliberately not part of a context: it is a single process-wide record of the most recent events,
+ * so that a dump shows what every context did before a failure.<br>
+ * <br>
+ * The static methods of {@link ASMHelper} and {@link ObfHelper} use {@link #getDefault()}; the searches of this context
+ * ({@link #find}, {@link #findAndReplace}, etc.) use its own comparator. Separate contexts can be created
+ * for class loaders that transform in parallel with different settings. A context can be used from multiple threads at once:
+ * its settings are volatile, and printing uses a separate printer per thread.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * TransformContext context = new TransformContext(new ClassHierarchy(new ClassBytesProvider(classLoader, 1024)), TransformContext.FML_REMAPPER);
+ * context.setObfuscated(false);
+ * ClassNode classNode = context.readClassFromBytes(bytes, 0, bytes.length, 0);
+ * context.findAndReplace(method.instructions, needle, replacement);
+ * // ...
+ * return context.writeClassToBytes(classNode, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+ * }
+ * </pre>
+ */
+public class TransformContext
+{
+	/**
+	 * Maps class names using {@link FMLDeobfuscatingRemapper#INSTANCE}.
+	 */
+	public static final IClassNameRemapper FML_REMAPPER = new IClassNameRemapper()
+	{
+		@Override
+		public String map(String obfName)
+		{
+			return FMLDeobfuscatingRemapper.INSTANCE.map(obfName);
+		}
+
+		@Override
+		public String unmap(String deobfName)
+		{
+			return FMLDeobfuscatingRemapper.INSTANCE.unmap(deobfName);
+		}
+	};
+
+	private static final TransformContext defaultContext = new TransformContext(null, FML_REMAPPER, null);
+
+	private final ClassHierarchy classHierarchy;
+	private final IClassNameRemapper remapper;
+	private volatile InsnComparator insnComparator;
+	private volatile PatternProfiler patternProfiler = null;
+	private volatile Boolean obfuscated = null;
+	private volatile Boolean cauldron = null;
+	private volatile int parallelSearchThreshold = ClassSearch.DEFAULT_PARALLEL_THRESHOLD;
+	private ExecutorService searchExecutor = null;
+	private boolean ownsSearchExecutor = false;
+	private final AtomicLong classesRead = new AtomicLong();
+	private final AtomicLong classesWritten = new AtomicLong();
+
+	private final ThreadLocal<TraceMethodVisitor> methodPrinter = new ThreadLocal<TraceMethodVisitor>()
+	{
+		@Override
+		protected TraceMethodVisitor initialValue()
+		{
+			return new TraceMethodVisitor(new Textifier());
+		}
+	};
+
+	/**
+	 * @param classHierarchy The hierarchy used to compute frames and to look up super classes.
+	 * @param remapper The remapper used to (de)obfuscate class names.
+	 */
+	public TransformContext(ClassHierarchy classHierarchy, IClassNameRemapper remapper)
+	{
+		this(classHierarchy, remapper, new InsnComparator());
+	}
+
+	/**
+	 * @param classHierarchy If {@code null}, {@link ClassHierarchy#getDefault()} is used.
+	 * @param insnComparator If {@code null}, {@link ASMHelper#insnComparator} is used until {@link #setInsnComparator} is called.
+	 */
+	private TransformContext(ClassHierarchy classHierarchy, IClassNameRemapper remapper, InsnComparator insnComparator)
+	{
+		this.classHierarchy = classHierarchy;
+		this.remapper = remapper;
+		this.insnComparator = insnComparator;
+	}
+
+	/**
+	 * @return The context used by the static methods of {@link ASMHelper} and {@link ObfHelper}.
+	 * It uses {@link ClassHierarchy#getDefault()}, {@link #FML_REMAPPER}, and {@link ASMHelper#insnComparator} until {@link #setInsnComparator} is called.
+	 */
+	public static TransformContext getDefault()
+	{
+		return defaultContext;
+	}
+
+	/**
+	 * See {@link ObfHelper#setObfuscated}.
+	 */
+	public void setObfuscated(boolean obfuscated)
+	{
+		this.obfuscated = obfuscated;
+	}
+
+	/**
+	 * @return Whether or not the current environment contains obfuscated Minecraft code
+	 */
+	public boolean isObfuscated()
+	{
+		Boolean obfuscated = this.obfuscated;
+		if (obfuscated == null)
+		{
+			try
+			{
+				byte[] bytes = ((LaunchClassLoader) TransformContext.class.getClassLoader()).getClassBytes("net.minecraft.world.World");
+				obfuscated = bytes == null;
+			}
+			catch (IOException e)
+			{
+				obfuscated = true;
+			}
+			this.obfuscated = obfuscated;
+		}
+		return obfuscated;
+	}
+
+	/**
+	 * @return Whether or not Cauldron is loaded in the current environment.
+	 */
+	public boolean isCauldron()
+	{
+		Boolean cauldron = this.cauldron;
+		if (cauldron == null)
+		{
+			try
+			{
+				byte[] bytes = ((LaunchClassLoader) TransformContext.class.getClassLoader()).getClassBytes("net.minecraftforge.cauldron.api.Cauldron");
+				cauldron = bytes != null;
+			}
+			catch (IOException e)
+			{
+				cauldron = false;
+			}
+			this.cauldron = cauldron;
+		}
+		return cauldron;
+	}
+
+	public IClassNameRemapper getRemapper()
+	{
+		return remapper;
+	}
+
+	public ClassHierarchy getClassHierarchy()
+	{
+		return classHierarchy != null ? classHierarchy : ClassHierarchy.getDefault();
+	}
+
+	@SuppressWarnings("deprecation")
+	public InsnComparator getInsnComparator()
+	{
+		InsnComparator insnComparator = this.insnComparator;
+		return insnComparator != null ? insnComparator : ASMHelper.insnComparator;
+	}
+
+	/**
+	 * Set the comparator used by {@link #instructionsMatch} and the searches of this context.
+	 * It must be thread-safe if this context is used from multiple threads. If {@code null}, {@link ASMHelper#insnComparator} is used.
+	 */
+	public void setInsnComparator(InsnComparator insnComparator)
+	{
+		this.insnComparator = insnComparator;
+	}
+
+	/**
+	 * @return The profiler that records the searches of this context, or {@code null} if profiling is disabled.
+	 */
+	public PatternProfiler getPatternProfiler()
+	{
+		return patternProfiler;
+	}
+
+	/**
+	 * Set the profiler that records the searches of this context, or {@code null} to stop profiling.
+	 */
+	public void setPatternProfiler(PatternProfiler patternProfiler)
+	{
+		this.patternProfiler = patternProfiler;
+	}
+
+	/**
+	 * @return The number of instructions a class must have to be searched using multiple threads by {@link #findAll}.
+	 */
+	public int getParallelSearchThreshold()
+	{
+		return parallelSearchThreshold;
+	}
+
+	public void setParallelSearchThreshold(int parallelSearchThreshold)
+	{
+		this.parallelSearchThreshold = parallelSearchThreshold;
+	}
+
+	/**
+	 * @return The executor that large classes are searched with by {@link #findAll}.
+	 * Unless one was set with {@link #setSearchExecutor}, a pool of daemon threads is created the first time this is called,
+	 * which is shut down by {@link #shutdown()}.
+	 */
+	public synchronized ExecutorService getSearchExecutor()
+	{
+		if (searchExecutor == null)
+		{
+			searchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("search", Thread.NORM_PRIORITY));
+			ownsSearchExecutor = true;
+		}
+		return searchExecutor;
+	}
+
+	/**
+	 * Set the executor that large classes are searched with, or {@code null} to go back to a pool created by this context.
+	 * It is not shut down by {@link #shutdown()}.
+	 */
+	public synchronized void setSearchExecutor(ExecutorService searchExecutor)
+	{
+		shutdown();
+		this.searchExecutor = searchExecutor;
+	}
+
+	/**
+	 * Shut down the threads created by this context, if any. A new pool is created if another large class is searched.
+	 */
+	public synchronized void shutdown()
+	{
+		if (ownsSearchExecutor)
+		{
+			searchExecutor.shutdown();
+			searchExecutor = null;
+			ownsSearchExecutor = false;
+		}
+	}
+
+	/**
+	 * Deobfuscates an obfuscated class name if {@link #isObfuscated()}.
+	 */
+	public String toDeobfClassName(String obfClassName)
+	{
+		return isObfuscated() ? forceToDeobfClassName(obfClassName) : obfClassName;
+	}
+
+	/**
+	 * Deobfuscates an obfuscated class name regardless of {@link #isObfuscated()}.
+	 */
+	public String forceToDeobfClassName(String obfClassName)
+	{
+		return StringPool.intern(remapper.map(obfClassName.replace('.', '/')).replace('/', '.'));
+	}
+
+	/**
+	 * Obfuscates a deobfuscated class name if {@link #isObfuscated()}.
+	 */
+	public String toObfClassName(String deobfClassName)
+	{
+		return isObfuscated() ? forceToObfClassName(deobfClassName) : deobfClassName;
+	}
+
+	/**
+	 * Obfuscates a deobfuscated class name regardless of {@link #isObfuscated()}.
+	 */
+	public String forceToObfClassName(String deobfClassName)
+	{
+		return StringPool.intern(remapper.unmap(deobfClassName.replace('.', '/')).replace('/', '.'));
+	}
+
+	/**
+	 * Converts a class name to an internal class name, obfuscating the class name if {@link #isObfuscated()}.
+	 * @return internal/class/name
+	 */
+	public String getInternalClassName(String className)
+	{
+		return StringPool.intern(toObfClassName(className).replace('.', '/'));
+	}
+
+	/**
+	 * @return Whether or not the instructions are equal according to {@link #getInsnComparator()}.
+	 */
+	public boolean instructionsMatch(AbstractInsnNode first, AbstractInsnNode second)
+	{
+		return getInsnComparator().areInsnsEqual(first, second);
+	}
+
+	/**
+	 * See {@link ASMHelper#checkForPatternAt(InsnList, AbstractInsnNode)}.
+	 */
+	public InsnList checkForPatternAt(InsnList checkFor, AbstractInsnNode checkAgainst)
+	{
+		return ASMHelper.checkForPatternAt(checkFor, checkAgainst, getInsnComparator());
+	}
+
+	/**
+	 * See {@link ASMHelper#findAndGetFoundInsnList(AbstractInsnNode, InsnList)}.
+	 */
+	public InsnList findAndGetFoundInsnList(AbstractInsnNode haystackStart, InsnList needle)
+	{
+		return ASMHelper.findAndGetFoundInsnList(haystackStart, needle, getInsnComparator(), getPatternProfiler(), null);
+	}
+
+	/**
+	 * See {@link ASMHelper#find(InsnList, InsnList)}.
+	 */
+	public AbstractInsnNode find(InsnList haystack, InsnList needle)
+	{
+		return find(haystack.getFirst(), needle);
+	}
+
+	/**
+	 * See {@link ASMHelper#find(AbstractInsnNode, InsnList)}.
+	 */
+	public AbstractInsnNode find(AbstractInsnNode haystackStart, InsnList needle)
+	{
+		if (needle.getFirst() == null)
+			return null;
+
+		return ASMHelper.findAndGetFoundInsnList(TransformTrace.EventType.FIND, haystackStart, needle, this).getFirst();
+	}
+
+	/**
+	 * See {@link ASMHelper#findAndReplace(InsnList, InsnList, InsnList)}.
+	 */
+	public AbstractInsnNode findAndReplace(InsnList haystack, InsnList needle, InsnList replacement)
+	{
+		return findAndReplace(haystack, needle, replacement, haystack.getFirst());
+	}
+
+	/**
+	 * See {@link ASMHelper#findAndReplace(InsnList, InsnList, InsnList, AbstractInsnNode)}.
+	 */
+	public AbstractInsnNode findAndReplace(InsnList haystack, InsnList needle, InsnList replacement, AbstractInsnNode haystackStart)
+	{
+		InsnList found = ASMHelper.findAndGetFoundInsnList(TransformTrace.EventType.REPLACE, haystackStart, needle, this);
+		if (found.getFirst() != null)
+		{
+			haystack.insertBefore(found.getFirst(), replacement);
+			AbstractInsnNode afterNeedle = found.getLast().getNext();
+			ASMHelper.removeFromInsnListUntil(haystack, found.getFirst(), afterNeedle);
+			return afterNeedle;
+		}
+		return null;
+	}
+
+	/**
+	 * See {@link ASMHelper#findAndReplaceAll(InsnList, InsnList, InsnList)}.
+	 */
+	public int findAndReplaceAll(InsnList haystack, InsnList needle, InsnList replacement)
+	{
+		return findAndReplaceAll(haystack, needle, replacement, haystack.getFirst());
+	}
+
+	/**
+	 * See {@link ASMHelper#findAndReplaceAll(InsnList, InsnList, InsnList, AbstractInsnNode)}.
+	 */
+	public int findAndReplaceAll(InsnList haystack, InsnList needle, InsnList replacement, AbstractInsnNode haystackStart)
+	{
+		int numReplaced = 0;
+		while ((haystackStart = findAndReplace(haystack, needle, replacement, haystackStart)) != null)
+		{
+			numReplaced++;
+		}
+		return numReplaced;
+	}
+
+	/**
+	 * See {@link ClassSearch#findAll(ClassNode, InsnList)}.
+	 */
+	public Map<MethodNode, List<AbstractInsnNode>> findAll(ClassNode classNode, InsnList needle)
+	{
+		return ClassSearch.findAll(classNode, needle, this);
+	}
+
+	/**
+	 * See {@link ASMHelper#readClassFromBytes(byte[], int, int, int)}.
+	 */
+	public ClassNode readClassFromBytes(byte[] bytes, int offset, int length, int flags)
+	{
+		long startNanos = TransformTrace.isEnabled() ? System.nanoTime() : 0;
+		try
+		{
+			ClassNode classNode = new ClassNode();
+			ClassReader classReader = new InterningClassReader(bytes, offset, length);
+			classReader.accept(classNode, flags);
+			classesRead.incrementAndGet();
+			TransformTrace.recordClass(TransformTrace.EventType.READ, classNode.name, startNanos);
+			return classNode;
+		}
+		catch (RuntimeException e)
+		{
+			TransformTrace.dumpOnFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * See {@link ASMHelper#writeClassToBytes(ClassNode, int)}. Common super classes are looked up using this context.
+	 */
+	public byte[] writeClassToBytes(ClassNode classNode, int flags)
+	{
+		long startNanos = TransformTrace.isEnabled() ? System.nanoTime() : 0;
+		try
+		{
+			// a LazyClassNode's unmaterialized methods can only be copied as-is by a writer created from the original bytes
+			ClassWriter writer = classNode instanceof LazyClassNode ? new ObfRemappingClassWriter(this, ((LazyClassNode) classNode).getClassReader(), flags) : new ObfRemappingClassWriter(this, flags);
+			classNode.accept(writer);
+			byte[] bytes = writer.toByteArray();
+			classesWritten.incrementAndGet();
+			TransformTrace.recordClass(TransformTrace.EventType.WRITE, classNode.name, startNanos);
+			return bytes;
+		}
+		catch (RuntimeException e)
+		{
+			TransformTrace.dumpOnFailure(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of classes read by {@link #readClassFromBytes}.
+	 */
+	public long getClassesRead()
+	{
+		return classesRead.get();
+	}
+
+	/**
+	 * @return The number of classes written by {@link #writeClassToBytes}.
+	 */
+	public long getClassesWritten()
+	{
+		return classesWritten.get();
+	}
+
+	/**
+	 * See {@link ASMHelper#getInsnListAsString}.
+	 */
+	public String getInsnListAsString(InsnList insnList)
+	{
+		TraceMethodVisitor methodPrinter = this.methodPrinter.get();
+		insnList.accept(methodPrinter);
+		return printAndClear(methodPrinter);
+	}
+
+	/**
+	 * See {@link ASMHelper#getMethodAsString}.
+	 */
+	public String getMethodAsString(MethodNode method)
+	{
+		TraceMethodVisitor methodPrinter = this.methodPrinter.get();
+		method.accept(methodPrinter);
+		return printAndClear(methodPrinter);
+	}
+
+	private static String printAndClear(TraceMethodVisitor methodPrinter)
+	{
+		StringWriter sw = new StringWriter();
+		methodPrinter.p.print(new PrintWriter(sw));
+		methodPrinter.p.getText().clear();
+		return sw.toString();
+	}
+}
@@ -0,0 +1,357 @@
+package squeek.asmhelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.tree.InsnList;
+
+/**
+ * A low-overhead recorder of what {@link ASMHelper} does during transformation: which classes were read and written,
+ * and which patterns were found where, along with how long each step took.<br>
+ * <br>
+ * Events are stored in a fixed-size, lock-free ring buffer of primitive records, so only the most recent events are kept.
+ * Recording is disabled by default, in which case the cost of each hook is a single volatile read.
+ * The trace can be dumped at any time with {@link #dump}, and is dumped to the log automatically when
+ * reading or writing a class fails. Patterns can be given a name with {@link #registerPattern}, so that
+ * the searches for them can be identified in a dump.<br>
+ * <br>
+ * The trace is deliberately process-wide rather than owned by a {@link TransformContext}: there is one buffer for
+ * every context and class loader, so that a dump shows everything that happened before a failure, in order.
+ * Only the class and method that events belong to (see {@link #setContext}) are per thread.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * TransformTrace.registerPattern(needle, "onUpdate hook");
+ * TransformTrace.setEnabled(true);
+ * TransformTrace.setContext("net.minecraft.entity.Entity", "onUpdate");
+ * ASMHelper.findAndReplace(method.instructions, needle, replacement);
+ * TransformTrace.clearContext();
+ * }
+ * </pre>
+ */
+public class TransformTrace
+{
+	public static final int DEFAULT_CAPACITY = 4096;
+	private static final int STRING_CHUNK_SIZE = 1024;
+	private static final Logger log = LogManager.getLogger("ASMHelper");
+
+	public enum EventType
+	{
+		READ,
+		WRITE,
+		FIND,
+		REPLACE
+	}
+
+	private static final EventType[] eventTypes = EventType.values();
+	private static volatile boolean enabled = false;
+	private static volatile RingBuffer buffer = new RingBuffer(DEFAULT_CAPACITY);
+
+	// strings are only ever appended, in chunks so that adding one never copies the others;
+	// a string is stored before its id is published through stringIds
+	private static final ConcurrentHashMap<String, Integer> stringIds = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[][] stringChunks = new String[][]{new String[STRING_CHUNK_SIZE]};
+	private static int stringCount = 0;
+
+	private static final Map<InsnList, Integer> patternNames = Collections.synchronizedMap(new WeakHashMap<InsnList, Integer>());
+
+	private static final ThreadLocal<int[]> context = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[]{-1, -1};
+		}
+	};
+
+	/**
+	 * A single recorded event.
+	 */
+	public static class Event
+	{
+		public final long sequence;
+		public final EventType type;
+		public final String className;
+		public final String methodName;
+		/** The identity hash code of the needle, or 0 for events that do not involve a pattern */
+		public final int patternId;
+		/** The name the needle was registered with (see {@link TransformTrace#registerPattern}), or {@code null} if it was not registered */
+		public final String patternName;
+		/** The number of instructions between the start of the search and the match, or -1 if the pattern was not found */
+		public final int offset;
+		public final long nanos;
+
+		public Event(long sequence, EventType type, String className, String methodName, int patternId, String patternName, int offset, long nanos)
+		{
+			this.sequence = sequence;
+			this.type = type;
+			this.className = className;
+			this.methodName = methodName;
+			this.patternId = patternId;
+			this.patternName = patternName;
+			this.offset = offset;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append('#').append(sequence).append(' ').append(type).append(' ');
+			sb.append(className != null ? className : "?");
+			if (methodName != null)
+				sb.append('.').append(methodName);
+			if (type == EventType.FIND || type == EventType.REPLACE)
+				sb.append(" pattern=").append(patternName != null ? patternName : Integer.toHexString(patternId)).append(" offset=").append(offset);
+			sb.append(' ').append(nanos).append("ns");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Parallel arrays of event fields. A slot is claimed by incrementing {@link #sequence}, and is only valid
+	 * while its entry in {@link #committed} is equal to the sequence number that claimed it.
+	 */
+	private static class RingBuffer
+	{
+		final int mask;
+		final AtomicLong sequence = new AtomicLong();
+		final AtomicLongArray committed;
+		final byte[] types;
+		final int[] classNames;
+		final int[] methodNames;
+		final int[] patternIds;
+		final int[] patternNames;
+		final int[] offsets;
+		final long[] nanos;
+
+		RingBuffer(int capacity)
+		{
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			mask = size - 1;
+			committed = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++)
+			{
+				committed.set(i, -1);
+			}
+			types = new byte[size];
+			classNames = new int[size];
+			methodNames = new int[size];
+			patternIds = new int[size];
+			patternNames = new int[size];
+			offsets = new int[size];
+			this.nanos = new long[size];
+		}
+
+		void record(EventType type, int className, int methodName, int patternId, int patternName, int offset, long nanos)
+		{
+			long seq = sequence.getAndIncrement();
+			int slot = (int) (seq & mask);
+			committed.set(slot, -1);
+			types[slot] = (byte) type.ordinal();
+			classNames[slot] = className;
+			methodNames[slot] = methodName;
+			patternIds[slot] = patternId;
+			patternNames[slot] = patternName;
+			offsets[slot] = offset;
+			this.nanos[slot] = nanos;
+			committed.set(slot, seq);
+		}
+
+		List<Event> getEvents()
+		{
+			long end = sequence.get();
+			long start = Math.max(0, end - (mask + 1));
+			List<Event> events = new ArrayList<Event>((int) (end - start));
+			for (long seq = start; seq < end; seq++)
+			{
+				int slot = (int) (seq & mask);
+				if (committed.get(slot) != seq)
+					continue;
+				Event event = new Event(seq, eventTypes[types[slot]], getString(classNames[slot]), getString(methodNames[slot]), patternIds[slot], getString(patternNames[slot]), offsets[slot], nanos[slot]);
+				// skip slots that were overwritten while being read
+				if (committed.get(slot) == seq)
+					events.add(event);
+			}
+			return events;
+		}
+	}
+
+	/**
+	 * Enable or disable recording.
+	 */
+	public static void setEnabled(boolean enabled)
+	{
+		TransformTrace.enabled = enabled;
+	}
+
+	/**
+	 * @return Whether or not events are being recorded.
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Replace the buffer with an empty one that holds the most recent {@code capacity} events (rounded up to a power of two).
+	 */
+	public static void setCapacity(int capacity)
+	{
+		buffer = new RingBuffer(capacity);
+	}
+
+	/**
+	 * Discard all recorded events.
+	 */
+	public static void clear()
+	{
+		buffer = new RingBuffer(buffer.mask + 1);
+	}
+
+	/**
+	 * Set the class and method that events recorded on the current thread belong to.
+	 * Either can be {@code null}.
+	 */
+	public static void setContext(String className, String methodName)
+	{
+		int[] ids = context.get();
+		ids[0] = getStringId(className);
+		ids[1] = getStringId(methodName);
+	}
+
+	/**
+	 * Clear the class and method set by {@link #setContext}.
+	 */
+	public static void clearContext()
+	{
+		int[] ids = context.get();
+		ids[0] = -1;
+		ids[1] = -1;
+	}
+
+	/**
+	 * Record a read or write of a class.
+	 */
+	public static void recordClass(EventType type, String className, long startNanos)
+	{
+		if (!enabled || startNanos == 0)
+			return;
+		long nanos = System.nanoTime() - startNanos;
+		buffer.record(type, getStringId(className), -1, 0, -1, -1, nanos);
+	}
+
+	/**
+	 * Give {@code needle} a name that searches for it are recorded with, instead of only its identity hash code.
+	 * The name is kept for as long as {@code needle} is reachable.
+	 */
+	public static void registerPattern(InsnList needle, String name)
+	{
+		patternNames.put(needle, getStringId(name));
+	}
+
+	/**
+	 * Record a search for {@code needle}, which found it {@code offset} instructions after the start of the search
+	 * (or -1 if it was not found).
+	 */
+	public static void recordMatch(EventType type, InsnList needle, int offset, long startNanos)
+	{
+		if (!enabled || startNanos == 0)
+			return;
+		long nanos = System.nanoTime() - startNanos;
+		Integer patternName = patternNames.get(needle);
+		int[] ids = context.get();
+		buffer.record(type, ids[0], ids[1], System.identityHashCode(needle), patternName != null ? patternName : -1, offset, nanos);
+	}
+
+	/**
+	 * @return The recorded events that are still in the buffer, from oldest to newest.
+	 */
+	public static List<Event> getEvents()
+	{
+		return buffer.getEvents();
+	}
+
+	/**
+	 * Write the recorded events that are still in the buffer to {@code writer}, one per line.
+	 */
+	public static void dump(PrintWriter writer)
+	{
+		for (Event event : getEvents())
+		{
+			writer.println(event);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Write the recorded events that are still in the buffer to the log.
+	 */
+	public static void dumpToLog()
+	{
+		StringWriter stringWriter = new StringWriter();
+		dump(new PrintWriter(stringWriter));
+		log.info("Transformation trace:\n" + stringWriter);
+	}
+
+	/**
+	 * If recording is enabled, write the recorded events to the log as the context of {@code failure}.
+	 */
+	public static void dumpOnFailure(Throwable failure)
+	{
+		if (!enabled)
+			return;
+		StringWriter stringWriter = new StringWriter();
+		dump(new PrintWriter(stringWriter));
+		log.error("Transformation failed, trace of the most recent events:\n" + stringWriter, failure);
+	}
+
+	private static int getStringId(String string)
+	{
+		if (string == null)
+			return -1;
+
+		Integer id = stringIds.get(string);
+		if (id == null)
+		{
+			synchronized (stringIds)
+			{
+				id = stringIds.get(string);
+				if (id == null)
+				{
+					id = stringCount++;
+					String[][] chunks = stringChunks;
+					int chunk = id / STRING_CHUNK_SIZE;
+					if (chunk == chunks.length)
+					{
+						String[][] grown = new String[chunks.length * 2][];
+						System.arraycopy(chunks, 0, grown, 0, chunks.length);
+						for (int i = chunks.length; i < grown.length; i++)
+						{
+							grown[i] = new String[STRING_CHUNK_SIZE];
+						}
+						stringChunks = chunks = grown;
+					}
+					chunks[chunk][id % STRING_CHUNK_SIZE] = string;
+					stringIds.put(string, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	private static String getString(int id)
+	{
+		return id >= 0 ? stringChunks[id / STRING_CHUNK_SIZE][id % STRING_CHUNK_SIZE] : null;
+	}
+}
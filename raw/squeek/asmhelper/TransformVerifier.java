@@ -0,0 +1,339 @@
+package squeek.asmhelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+import org.objectweb.asm.util.Printer;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceMethodVisitor;
+
+/**
+ * Verifies transformed classes on background threads, so that broken transformations are reported with the method and instruction
+ * at fault instead of only as a {@link VerifyError} when the class is loaded.<br>
+ * <br>
+ * Classes passed to {@link #submit} are sampled (every class, or one in every {@code sampleInterval} classes) and verified
+ * using ASM's {@link Analyzer} and a {@link SimpleVerifier} that looks up types in a {@link ClassHierarchy} instead of loading them.
+ * Types that can not be found in the hierarchy are assumed to be assignable, so only definite errors are reported.
+ * Failures are logged along with a dump of the failing method, and can be retrieved with {@link #getFailures()}.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * TransformerRegistry registry = new TransformerRegistry();
+ * registry.setVerifier(new TransformVerifier(ClassHierarchy.getDefault(), 1, 10));
+ * }
+ * </pre>
+ */
+public class TransformVerifier
+{
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	private static final Logger log = LogManager.getLogger("ASMHelper");
+	private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
+	private final ClassHierarchy classHierarchy;
+	private final int sampleInterval;
+	private final ExecutorService executor;
+	private final AtomicInteger submitted = new AtomicInteger();
+	private final AtomicInteger verified = new AtomicInteger();
+	private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<Failure>();
+
+	/**
+	 * A method that failed verification.
+	 */
+	public static class Failure
+	{
+		public final String className;
+		public final String methodName;
+		public final String methodDesc;
+		/** The index of the failing instruction, or -1 if it is not known */
+		public final int insnIndex;
+		public final String message;
+		/** The instructions of the method, with the failing instruction marked, and the frame before it */
+		public final String dump;
+
+		public Failure(String className, String methodName, String methodDesc, int insnIndex, String message, String dump)
+		{
+			this.className = className;
+			this.methodName = methodName;
+			this.methodDesc = methodDesc;
+			this.insnIndex = insnIndex;
+			this.message = message;
+			this.dump = dump;
+		}
+
+		@Override
+		public String toString()
+		{
+			return className + "." + methodName + methodDesc + " at instruction " + insnIndex + ": " + message;
+		}
+	}
+
+	/**
+	 * @param classHierarchy Used to look up the super classes and interfaces of types while verifying.
+	 * @param numThreads The number of background threads (which are daemon threads of minimum priority).
+	 * @param sampleInterval Verify one in every {@code sampleInterval} submitted classes, or every class if this is 1.
+	 */
+	public TransformVerifier(ClassHierarchy classHierarchy, int numThreads, int sampleInterval)
+	{
+		this(classHierarchy, numThreads, sampleInterval, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param queueCapacity The maximum number of classes waiting to be verified. Classes submitted while the queue is full are not verified,
+	 * so that the bytes of classes can not pile up in memory faster than they are verified.
+	 */
+	public TransformVerifier(ClassHierarchy classHierarchy, int numThreads, int sampleInterval, int queueCapacity)
+	{
+		this.classHierarchy = classHierarchy;
+		this.sampleInterval = Math.max(1, sampleInterval);
+		numThreads = Math.max(1, numThreads);
+		this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), new DaemonThreadFactory("verifier", Thread.MIN_PRIORITY), new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Queue a transformed class to be verified on a background thread, if it is sampled. Never blocks.
+	 *
+	 * @param className The name of the class, used when reporting failures.
+	 * @param bytes The transformed class. Must not be modified afterwards.
+	 * @return Whether or not the class was queued; {@code false} if it was not sampled, the queue is full, or the verifier has been shut down.
+	 */
+	public boolean submit(final String className, final byte[] bytes)
+	{
+		if (submitted.getAndIncrement() % sampleInterval != 0)
+			return false;
+
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (Failure failure : verify(className, bytes))
+					{
+						failures.add(failure);
+						log.error("Verification of transformed class failed: " + failure + "\n" + failure.dump);
+					}
+				}
+			});
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Verify every method of a class on the current thread.
+	 *
+	 * @return The methods that failed verification.
+	 */
+	public List<Failure> verify(String className, byte[] bytes)
+	{
+		List<Failure> classFailures = new ArrayList<Failure>();
+		ClassNode classNode;
+		try
+		{
+			classNode = ASMHelper.readClassFromBytes(bytes, ClassReader.SKIP_FRAMES);
+		}
+		catch (RuntimeException e)
+		{
+			classFailures.add(new Failure(className, "<unreadable>", "", -1, e.toString(), ""));
+			return classFailures;
+		}
+
+		Type currentClass = Type.getObjectType(classNode.name);
+		Type currentSuperClass = classNode.superName != null ? Type.getObjectType(classNode.superName) : null;
+		List<Type> currentInterfaces = new ArrayList<Type>();
+		for (String interfaceName : classNode.interfaces)
+		{
+			currentInterfaces.add(Type.getObjectType(interfaceName));
+		}
+		boolean isInterface = (classNode.access & Opcodes.ACC_INTERFACE) != 0;
+
+		for (MethodNode method : classNode.methods)
+		{
+			if (method.instructions.size() == 0)
+				continue;
+
+			Analyzer<BasicValue> analyzer = new Analyzer<BasicValue>(new HierarchyVerifier(classHierarchy, currentClass, currentSuperClass, currentInterfaces, isInterface));
+			try
+			{
+				analyzer.analyze(classNode.name, method);
+			}
+			catch (AnalyzerException e)
+			{
+				int insnIndex = e.node != null ? method.instructions.indexOf(e.node) : -1;
+				classFailures.add(new Failure(className, method.name, method.desc, insnIndex, e.getMessage(), getDump(method, insnIndex, analyzer.getFrames())));
+			}
+			catch (RuntimeException e)
+			{
+				classFailures.add(new Failure(className, method.name, method.desc, -1, e.toString(), getDump(method, -1, analyzer.getFrames())));
+			}
+		}
+		verified.incrementAndGet();
+		return classFailures;
+	}
+
+	private static String getDump(MethodNode method, int insnIndex, Frame<BasicValue>[] frames)
+	{
+		StringBuilder sb = new StringBuilder();
+		if (insnIndex >= 0 && frames != null && insnIndex < frames.length && frames[insnIndex] != null)
+			sb.append("Frame before failing instruction (locals, stack): ").append(frames[insnIndex]).append('\n');
+
+		int index = 0;
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext(), index++)
+		{
+			Printer printer = new Textifier();
+			insn.accept(new TraceMethodVisitor(printer));
+			StringWriter sw = new StringWriter();
+			printer.print(new PrintWriter(sw));
+			sb.append(index == insnIndex ? "> " : "  ").append(index).append(sw.toString().isEmpty() ? "\n" : sw.toString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The failures found so far.
+	 */
+	public List<Failure> getFailures()
+	{
+		return new ArrayList<Failure>(failures);
+	}
+
+	/**
+	 * @return The number of classes that have been verified.
+	 */
+	public int getVerifiedCount()
+	{
+		return verified.get();
+	}
+
+	/**
+	 * Stop accepting classes. Classes that are already queued are still verified.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+
+	/**
+	 * Wait for all queued classes to be verified after {@link #shutdown()}.
+	 *
+	 * @return Whether or not verification finished before the timeout.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * A {@link SimpleVerifier} that never loads classes. Interfaces are treated like java/lang/Object, as the JVM's verifier does.
+	 */
+	private static class HierarchyVerifier extends SimpleVerifier
+	{
+		private final ClassHierarchy classHierarchy;
+		private final Type currentClass;
+		private final Type currentSuperClass;
+		private final boolean currentIsInterface;
+
+		HierarchyVerifier(ClassHierarchy classHierarchy, Type currentClass, Type currentSuperClass, List<Type> currentInterfaces, boolean isInterface)
+		{
+			super(Opcodes.ASM5, currentClass, currentSuperClass, currentInterfaces, isInterface);
+			this.classHierarchy = classHierarchy;
+			this.currentClass = currentClass;
+			this.currentSuperClass = currentSuperClass;
+			this.currentIsInterface = isInterface;
+		}
+
+		@Override
+		protected boolean isSubTypeOf(BasicValue value, BasicValue expected)
+		{
+			Type type = value.getType();
+			Type expectedType = expected.getType();
+			if (type != null && isReference(type) && expectedType != null && isReference(expectedType))
+				return type.getDescriptor().equals("Lnull;") || isAssignableFrom(expectedType, type);
+			return super.isSubTypeOf(value, expected);
+		}
+
+		@Override
+		protected boolean isInterface(Type type)
+		{
+			if (type.equals(currentClass))
+				return currentIsInterface;
+			return type.getSort() == Type.OBJECT && classHierarchy.isInterface(type.getInternalName());
+		}
+
+		@Override
+		protected Type getSuperClass(Type type)
+		{
+			if (type.equals(currentClass))
+				return currentSuperClass;
+			if (type.getSort() == Type.ARRAY)
+				return OBJECT_TYPE;
+			String superName = classHierarchy.getSuperName(type.getInternalName());
+			return superName != null ? Type.getObjectType(superName) : null;
+		}
+
+		@Override
+		protected boolean isAssignableFrom(Type type, Type other)
+		{
+			if (type.equals(other))
+				return true;
+
+			if (type.getSort() == Type.ARRAY)
+			{
+				if (other.getSort() != Type.ARRAY)
+					return false;
+				Type elementType = Type.getType(type.getDescriptor().substring(1));
+				Type otherElementType = Type.getType(other.getDescriptor().substring(1));
+				if (isReference(elementType) && isReference(otherElementType))
+					return isAssignableFrom(elementType, otherElementType);
+				return elementType.equals(otherElementType);
+			}
+
+			String name = type.getInternalName();
+			if (other.getSort() == Type.ARRAY)
+				return name.equals("java/lang/Object") || name.equals("java/lang/Cloneable") || name.equals("java/io/Serializable");
+			if (name.equals("java/lang/Object") || isInterface(type))
+				return true;
+
+			for (Type superClass = other; superClass != null; superClass = getSuperClass(superClass))
+			{
+				if (superClass.equals(type))
+					return true;
+				// classes that can not be found are assumed to be assignable
+				if (!superClass.equals(currentClass) && classHierarchy.getClassInfo(superClass.getInternalName()) == null)
+					return !superClass.getInternalName().equals("java/lang/Object");
+			}
+			return false;
+		}
+
+		private static boolean isReference(Type type)
+		{
+			return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+		}
+	}
+}
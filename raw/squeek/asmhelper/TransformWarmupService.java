@@ -0,0 +1,432 @@
+package squeek.asmhelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import net.minecraft.launchwrapper.IClassTransformer;
+
+/**
+ * An {@link IClassTransformer} that speculatively transforms classes on background threads before they are loaded.<br>
+ * <br>
+ * Given a list of classes that are likely to be loaded (usually recorded during an earlier run with {@link #saveLoadedClasses}),
+ * {@link #warmUp} reads and transforms them with the wrapped transformer ahead of time. When one of those classes is then loaded,
+ * the result is returned straight away (or waited for, if it is still in progress) instead of being transformed again.
+ * A result is only used if the bytes it was transformed from are identical to the bytes being loaded;
+ * otherwise, the class is transformed as usual.<br>
+ * <br>
+ * Classes are warmed up from their bytes on the class path, so the service must be registered before any other transformer
+ * that changes the classes it warms up (for example, it must come before FML's deobfuscation transformer in an obfuscated environment).
+ * To keep this from wasting work, a hash of the bytes each class is actually loaded with is saved along with the recorded class list:
+ * classes whose bytes on the class path do not match it are not transformed in the background, and the loading thread never waits
+ * for a result whose input is known not to match. {@link #getMismatchCount()} counts the classes that were changed before reaching the service.<br>
+ * <br>
+ * The result for a class holds both its original and transformed bytes until the class is loaded. Results of classes that are
+ * still not loaded {@link #setLoadWindow a number of class loads} after they were warmed up are discarded, as are all remaining
+ * results when {@link #discardUnusedResults()} is called (for example, once the game has finished loading).<br>
+ * <br>
+ * Note: The wrapped transformer is called from multiple threads at once, so it must be thread-safe.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * public class ClassTransformer extends TransformWarmupService
+ * {
+ *     public ClassTransformer()
+ *     {
+ *         super(new MyTransformerRegistry(), ClassBytesProvider.getDefault(), 2);
+ *         warmUp(loadClassList(new File("config/mymod-classes.txt")));
+ *     }
+ * }
+ * }
+ * </pre>
+ */
+public class TransformWarmupService implements IClassTransformer
+{
+	private final IClassTransformer transformer;
+	private final ClassBytesProvider classBytesProvider;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<String, Warmup> results = new ConcurrentHashMap<String, Warmup>();
+	private final Map<String, String[]> loadedClasses = new LinkedHashMap<String, String[]>();
+	private volatile boolean recording = false;
+	private volatile int loadWindow = DEFAULT_LOAD_WINDOW;
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private final AtomicInteger mismatches = new AtomicInteger();
+	private final AtomicInteger unused = new AtomicInteger();
+
+	public static final int DEFAULT_LOAD_WINDOW = 2000;
+	/** The number of class loads between checks for results that have fallen out of the load window */
+	private static final int DISCARD_INTERVAL = 64;
+	private static final long UNKNOWN_HASH = -1;
+	private static final int NOT_COMPLETED = -1;
+
+	private static class TransformResult
+	{
+		final byte[] input;
+		final byte[] output;
+
+		TransformResult(byte[] input, byte[] output)
+		{
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * A class being warmed up.
+	 */
+	private static class Warmup
+	{
+		/** The hash of the bytes the class was loaded with when the class list was recorded, if known */
+		final long expectedHash;
+		/** The hash of the bytes being transformed, once they have been read */
+		volatile long inputHash = UNKNOWN_HASH;
+		/** The number of classes that had been loaded when the warm-up finished */
+		volatile int completedAtLoad = NOT_COMPLETED;
+		Future<TransformResult> future;
+
+		Warmup(long expectedHash)
+		{
+			this.expectedHash = expectedHash;
+		}
+	}
+
+	/**
+	 * @param transformer The transformer to call, both on background threads and for classes that were not warmed up.
+	 * @param classBytesProvider Used to read the bytes of the classes to warm up.
+	 * @param numThreads The number of background threads (which are daemon threads of minimum priority).
+	 */
+	public TransformWarmupService(IClassTransformer transformer, ClassBytesProvider classBytesProvider, int numThreads)
+	{
+		this.transformer = transformer;
+		this.classBytesProvider = classBytesProvider;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, numThreads), new DaemonThreadFactory("warm-up", Thread.MIN_PRIORITY));
+	}
+
+	/**
+	 * Queue classes to be transformed in the background, in order.
+	 *
+	 * @param classNames Arrays of {name, transformedName}, as passed to {@link IClassTransformer#transform},
+	 * optionally followed by the hash of the bytes the class is loaded with (as saved by {@link #saveLoadedClasses}).
+	 */
+	public void warmUp(List<String[]> classNames)
+	{
+		for (String[] className : classNames)
+		{
+			final String name = className[0];
+			final String transformedName = className[1];
+			if (results.containsKey(transformedName))
+				continue;
+
+			final Warmup warmup = new Warmup(className.length > 2 ? parseHash(className[2]) : UNKNOWN_HASH);
+			warmup.future = executor.submit(new Callable<TransformResult>()
+			{
+				@Override
+				public TransformResult call() throws IOException
+				{
+					try
+					{
+						byte[] input = classBytesProvider.getClassBytes(name);
+						if (input == null)
+							return null;
+						long inputHash = hash(input);
+						warmup.inputHash = inputHash;
+						// an earlier transformer changes this class, so the result could never be used
+						if (warmup.expectedHash != UNKNOWN_HASH && warmup.expectedHash != inputHash)
+						{
+							mismatches.incrementAndGet();
+							return null;
+						}
+						// the transformer may modify the array it is given
+						byte[] output = transformer.transform(name, transformedName, input.clone());
+						return new TransformResult(input, output);
+					}
+					finally
+					{
+						warmup.completedAtLoad = loads.get();
+					}
+				}
+			});
+			results.put(transformedName, warmup);
+		}
+	}
+
+	@Override
+	public byte[] transform(String name, String transformedName, byte[] basicClass)
+	{
+		int load = loads.incrementAndGet();
+		if (load % DISCARD_INTERVAL == 0)
+			discardResultsCompletedBefore(load - loadWindow);
+
+		Warmup warmup = results.remove(transformedName);
+		long hash = basicClass != null && (recording || warmup != null) ? hash(basicClass) : UNKNOWN_HASH;
+		if (recording)
+		{
+			synchronized (loadedClasses)
+			{
+				loadedClasses.put(transformedName, new String[]{name, transformedName, Long.toHexString(hash)});
+			}
+		}
+
+		if (warmup != null && basicClass != null)
+		{
+			TransformResult result = getResult(warmup, hash);
+			if (result != null && Arrays.equals(result.input, basicClass))
+			{
+				hits.incrementAndGet();
+				return result.output;
+			}
+		}
+		misses.incrementAndGet();
+		return transformer.transform(name, transformedName, basicClass);
+	}
+
+	/**
+	 * @return The result of {@code warmup}, or {@code null} if it can not be used for a class with the specified hash.
+	 * Does not wait for a result whose input is known to differ.
+	 */
+	private TransformResult getResult(Warmup warmup, long hash)
+	{
+		if (isMismatch(warmup, hash))
+		{
+			countMismatch(warmup);
+			warmup.future.cancel(false);
+			return null;
+		}
+
+		try
+		{
+			TransformResult result = warmup.future.get();
+			if (isMismatch(warmup, hash))
+			{
+				countMismatch(warmup);
+				return null;
+			}
+			return result;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			// transform it again on this thread so that any exception is thrown where it is expected
+			return null;
+		}
+	}
+
+	/**
+	 * @return Whether the input of {@code warmup} is known to differ from the bytes with the specified hash.
+	 */
+	private static boolean isMismatch(Warmup warmup, long hash)
+	{
+		if (warmup.expectedHash != UNKNOWN_HASH)
+			return warmup.expectedHash != hash;
+		return warmup.inputHash != UNKNOWN_HASH && warmup.inputHash != hash;
+	}
+
+	/**
+	 * Count a class whose warmed up result could not be used because of a mismatch found by {@link #isMismatch}.
+	 */
+	private void countMismatch(Warmup warmup)
+	{
+		// mismatches against a recorded hash are counted by the warm-up task itself
+		if (warmup.expectedHash == UNKNOWN_HASH)
+			mismatches.incrementAndGet();
+	}
+
+	/**
+	 * Discard the results of classes that finished warming up before {@code load} classes had been loaded.
+	 */
+	private void discardResultsCompletedBefore(int load)
+	{
+		for (Map.Entry<String, Warmup> entry : results.entrySet())
+		{
+			int completedAtLoad = entry.getValue().completedAtLoad;
+			if (completedAtLoad != NOT_COMPLETED && completedAtLoad < load && results.remove(entry.getKey(), entry.getValue()))
+				unused.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return A cheap hash of {@code bytes}, used to tell whether two versions of a class can be the same without comparing them.
+	 */
+	static long hash(byte[] bytes)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (crc.getValue() << 31) ^ bytes.length;
+	}
+
+	private static long parseHash(String hash)
+	{
+		try
+		{
+			return Long.parseLong(hash, 16);
+		}
+		catch (NumberFormatException e)
+		{
+			return UNKNOWN_HASH;
+		}
+	}
+
+	/**
+	 * @return The number of classes that were loaded using a warmed up result.
+	 */
+	public int getHitCount()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of classes that had to be transformed when they were loaded.
+	 */
+	public int getMissCount()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of warmed up classes that could not be used because the bytes they were loaded with
+	 * differ from their bytes on the class path (i.e. they were changed by a transformer that runs before this one).
+	 */
+	public int getMismatchCount()
+	{
+		return mismatches.get();
+	}
+
+	/**
+	 * @return The number of warmed up classes whose results were discarded because the classes were not loaded in time.
+	 */
+	public int getUnusedCount()
+	{
+		return unused.get();
+	}
+
+	/**
+	 * Set the number of class loads after which the result of a warmed up class that has not been loaded is discarded.
+	 * Defaults to {@link #DEFAULT_LOAD_WINDOW}.
+	 */
+	public void setLoadWindow(int loadWindow)
+	{
+		this.loadWindow = loadWindow;
+	}
+
+	/**
+	 * Discard the results of all warmed up classes that have not been loaded yet, and cancel the warm-ups that have not started.
+	 * Those classes will be transformed when they are loaded.
+	 */
+	public void discardUnusedResults()
+	{
+		for (Map.Entry<String, Warmup> entry : results.entrySet())
+		{
+			if (results.remove(entry.getKey(), entry.getValue()))
+			{
+				entry.getValue().future.cancel(false);
+				unused.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Stop the background threads. Classes that have not been warmed up yet will be transformed when they are loaded.
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+		for (Map.Entry<String, Warmup> entry : results.entrySet())
+		{
+			if (!entry.getValue().future.isDone())
+				results.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Start recording the names of the classes that are loaded, to be saved with {@link #saveLoadedClasses}.
+	 */
+	public void startRecording()
+	{
+		recording = true;
+	}
+
+	/**
+	 * @return The {name, transformedName, hash} arrays of the classes loaded since {@link #startRecording()}, in the order they were loaded.
+	 */
+	public List<String[]> getLoadedClasses()
+	{
+		synchronized (loadedClasses)
+		{
+			return new ArrayList<String[]>(loadedClasses.values());
+		}
+	}
+
+	/**
+	 * Write the classes loaded since {@link #startRecording()} to {@code file}, to be read with {@link #loadClassList}.
+	 */
+	public void saveLoadedClasses(File file) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try
+		{
+			for (String[] className : getLoadedClasses())
+			{
+				writer.println(className[0] + " " + className[1] + " " + className[2]);
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Failed to write " + file);
+	}
+
+	/**
+	 * @return The {name, transformedName, hash} arrays saved by {@link #saveLoadedClasses}, or an empty list if {@code file} does not exist.
+	 * Lists saved without hashes are read as {name, transformedName} pairs.
+	 */
+	public static List<String[]> loadClassList(File file) throws IOException
+	{
+		List<String[]> classNames = new ArrayList<String[]>();
+		if (!file.isFile())
+			return classNames;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] className = line.trim().split(" ");
+				if (className.length == 2 || className.length == 3)
+					classNames.add(className);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return classNames;
+	}
+}
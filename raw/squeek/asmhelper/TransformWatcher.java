@@ -0,0 +1,446 @@
+package squeek.asmhelper;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import net.minecraft.launchwrapper.IClassTransformer;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * A development tool that keeps a directory of transformed classes up to date while transformers and their input classes change,
+ * so that seeing the effect of a change to a transformer does not require restarting and re-transforming every class.<br>
+ * <br>
+ * Each {@link #poll()} checks the modification times of the files in the transformer and input directories:
+ * <ul>
+ * <li>If any transformer class changed, the transformer is reloaded in a new class loader, and the classes that either the old
+ * or the new transformer touch are transformed again. Which classes a {@link TransformerRegistry} touches is known from its targets;
+ * for any other {@link IClassTransformer}, every class is transformed again.</li>
+ * <li>If an input class changed, it is transformed again, along with every input class that references it
+ * (because frames computed for those classes can depend on its hierarchy).</li>
+ * </ul>
+ * The output directory mirrors the input directory: classes the transformer does not change are copied as they are.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * TransformWatcher watcher = new TransformWatcher(new File("build/classes/main"), "squeek.mymod.asm.ClassTransformer",
+ *     new File("run/input-classes"), new File("run/transformed-classes"));
+ * watcher.start(1000);
+ * }
+ * </pre>
+ */
+public class TransformWatcher
+{
+	private static final Logger log = LogManager.getLogger("ASMHelper");
+
+	private final File transformerDir;
+	private final String transformerClassName;
+	private final File inputDir;
+	private final File outputDir;
+
+	private IClassTransformer transformer;
+	private final Map<String, Long> transformerTimestamps = new HashMap<String, Long>();
+	private final Map<String, Long> inputTimestamps = new HashMap<String, Long>();
+	/** The internal names of the input classes that the current transformer changed */
+	private final Set<String> touchedClasses = new HashSet<String>();
+	/** The internal names of the classes that changed but have not been transformed successfully yet */
+	private final Set<String> pending = new LinkedHashSet<String>();
+	/** Internal name of a referenced class -> internal names of the input classes that reference it */
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+	private int reloadCount = 0;
+	private Thread thread = null;
+
+	/**
+	 * @param transformerDir A directory of class files containing the transformer, which are reloaded when any of them change.
+	 * @param transformerClassName The name of an {@link IClassTransformer} with a public no-argument constructor.
+	 * @param inputDir A directory of class files to transform.
+	 * @param outputDir The directory to write the transformed classes to.
+	 */
+	public TransformWatcher(File transformerDir, String transformerClassName, File inputDir, File outputDir)
+	{
+		this.transformerDir = transformerDir;
+		this.transformerClassName = transformerClassName;
+		this.inputDir = inputDir;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Watch with a transformer that is never reloaded; only changes to the input classes are picked up.
+	 */
+	public TransformWatcher(IClassTransformer transformer, File inputDir, File outputDir)
+	{
+		this(null, null, inputDir, outputDir);
+		this.transformer = transformer;
+	}
+
+	/**
+	 * Check for changes and transform the affected classes. The first call transforms every class.<br>
+	 * <br>
+	 * If the transformer throws while transforming a class, the error is logged and the class is kept pending,
+	 * so it is transformed again by the next call even if it does not change in the meantime.
+	 *
+	 * @return The number of classes that were transformed (or removed) successfully.
+	 * @throws IOException If the transformer could not be loaded; changes are kept pending until it can be.
+	 */
+	public synchronized int poll() throws IOException
+	{
+		Map<String, Long> currentInputs = new HashMap<String, Long>();
+		listClassFiles(inputDir, "", currentInputs);
+		Set<String> changed = new LinkedHashSet<String>();
+		for (Map.Entry<String, Long> entry : currentInputs.entrySet())
+		{
+			if (!entry.getValue().equals(inputTimestamps.get(entry.getKey())))
+				changed.add(entry.getKey());
+		}
+		for (String removed : inputTimestamps.keySet())
+		{
+			if (!currentInputs.containsKey(removed))
+				changed.add(removed);
+		}
+		// classes whose hierarchy may have changed
+		for (String changedName : changed)
+		{
+			ClassHierarchy.getDefault().invalidate(changedName);
+			pending.add(changedName);
+			Set<String> changedDependents = dependents.get(changedName);
+			if (changedDependents != null)
+				pending.addAll(changedDependents);
+		}
+		// the changes are remembered in pending from now on
+		inputTimestamps.clear();
+		inputTimestamps.putAll(currentInputs);
+
+		if (transformerDir != null)
+		{
+			Map<String, Long> currentTransformers = new HashMap<String, Long>();
+			listClassFiles(transformerDir, "", currentTransformers);
+			if (transformer == null || !currentTransformers.equals(transformerTimestamps))
+			{
+				boolean reloaded = transformer != null;
+				pending.addAll(touchedClasses);
+				transformer = loadTransformer();
+				transformerTimestamps.clear();
+				transformerTimestamps.putAll(currentTransformers);
+				if (reloaded)
+				{
+					reloadCount++;
+					pending.addAll(getTargetedClasses(currentInputs.keySet()));
+				}
+				else
+					pending.addAll(currentInputs.keySet());
+			}
+		}
+
+		int processed = 0;
+		for (String internalName : new ArrayList<String>(pending))
+		{
+			try
+			{
+				if (currentInputs.containsKey(internalName))
+					transformClass(internalName);
+				else
+					removeClass(internalName);
+				pending.remove(internalName);
+				processed++;
+			}
+			catch (Exception e)
+			{
+				log.error("Failed to transform " + internalName + "; it will be transformed again on the next poll", e);
+			}
+		}
+		if (processed > 0)
+			log.info("Transformed " + processed + " class(es) into " + outputDir);
+		return processed;
+	}
+
+	/**
+	 * @return The internal names of the classes that still need to be transformed, because transforming them failed.
+	 */
+	public synchronized Set<String> getPendingClasses()
+	{
+		return new HashSet<String>(pending);
+	}
+
+	/**
+	 * Call {@link #poll()} every {@code intervalMillis} on a daemon thread until {@link #stop()} is called.
+	 */
+	public synchronized void start(final long intervalMillis)
+	{
+		if (thread != null)
+			return;
+		thread = new Thread("ASMHelper transform watcher")
+		{
+			@Override
+			public void run()
+			{
+				while (!isInterrupted())
+				{
+					try
+					{
+						poll();
+						Thread.sleep(intervalMillis);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					catch (Exception e)
+					{
+						log.error("Failed to re-transform classes", e);
+						try
+						{
+							Thread.sleep(intervalMillis);
+						}
+						catch (InterruptedException e1)
+						{
+							return;
+						}
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the thread started by {@link #start}.
+	 */
+	public synchronized void stop()
+	{
+		if (thread != null)
+		{
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * @return The internal names of the input classes that the current transformer changed.
+	 */
+	public synchronized Set<String> getTouchedClasses()
+	{
+		return new HashSet<String>(touchedClasses);
+	}
+
+	/**
+	 * @return The internal names of the input classes that reference the specified class, and are transformed again when it changes.
+	 */
+	public synchronized Set<String> getDependents(String internalName)
+	{
+		Set<String> classDependents = dependents.get(internalName);
+		return classDependents != null ? new HashSet<String>(classDependents) : new HashSet<String>();
+	}
+
+	/**
+	 * @return The number of times the transformer has been reloaded.
+	 */
+	public synchronized int getReloadCount()
+	{
+		return reloadCount;
+	}
+
+	private void transformClass(String internalName) throws IOException
+	{
+		File inputFile = new File(inputDir, internalName + ".class");
+		byte[] input = readFile(inputFile);
+		updateDependencies(internalName, new ClassReader(input));
+
+		String className = internalName.replace('/', '.');
+		byte[] output = transformer.transform(className, className, input.clone());
+		if (output != null && !Arrays.equals(input, output))
+			touchedClasses.add(internalName);
+		else
+			touchedClasses.remove(internalName);
+
+		File outputFile = new File(outputDir, internalName + ".class");
+		outputFile.getParentFile().mkdirs();
+		FileOutputStream outputStream = new FileOutputStream(outputFile);
+		try
+		{
+			outputStream.write(output != null ? output : input);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+	}
+
+	private void removeClass(String internalName)
+	{
+		new File(outputDir, internalName + ".class").delete();
+		touchedClasses.remove(internalName);
+		updateDependencies(internalName, null);
+	}
+
+	/**
+	 * Records the classes referenced by the constant pool of {@code classReader} (or none, if it is {@code null}).
+	 */
+	private void updateDependencies(String internalName, ClassReader classReader)
+	{
+		Set<String> oldDependencies = dependencies.remove(internalName);
+		if (oldDependencies != null)
+		{
+			for (String dependency : oldDependencies)
+			{
+				dependents.get(dependency).remove(internalName);
+			}
+		}
+		if (classReader == null)
+			return;
+
+		Set<String> newDependencies = getReferencedClasses(classReader);
+		newDependencies.remove(internalName);
+		dependencies.put(internalName, newDependencies);
+		for (String dependency : newDependencies)
+		{
+			Set<String> dependencyDependents = dependents.get(dependency);
+			if (dependencyDependents == null)
+			{
+				dependencyDependents = new HashSet<String>();
+				dependents.put(dependency, dependencyDependents);
+			}
+			dependencyDependents.add(internalName);
+		}
+	}
+
+	private static Set<String> getReferencedClasses(ClassReader classReader)
+	{
+		final int CONSTANT_Class = 7;
+		Set<String> referenced = new HashSet<String>();
+		char[] buf = new char[classReader.getMaxStringLength()];
+		for (int item = 1; item < classReader.getItemCount(); item++)
+		{
+			int offset = classReader.getItem(item);
+			// items are 0 for the unused slot after each long and double
+			if (offset > 0 && classReader.b[offset - 1] == CONSTANT_Class)
+			{
+				String name = classReader.readUTF8(offset, buf);
+				if (name.charAt(0) != '[')
+					referenced.add(name);
+			}
+		}
+		return referenced;
+	}
+
+	/**
+	 * @return The classes targeted by the transformer, if it is a {@link TransformerRegistry}; otherwise, all of {@code internalNames}.
+	 */
+	private Set<String> getTargetedClasses(Set<String> internalNames)
+	{
+		if (!(transformer instanceof TransformerRegistry))
+			return internalNames;
+
+		Set<String> targeted = new HashSet<String>();
+		for (String internalName : internalNames)
+		{
+			if (((TransformerRegistry) transformer).getTransformers(internalName.replace('/', '.')) != null)
+				targeted.add(internalName);
+		}
+		return targeted;
+	}
+
+	private IClassTransformer loadTransformer() throws IOException
+	{
+		try
+		{
+			ClassLoader classLoader = new ChildFirstClassLoader(new URL[]{transformerDir.toURI().toURL()}, TransformWatcher.class.getClassLoader());
+			return (IClassTransformer) classLoader.loadClass(transformerClassName).newInstance();
+		}
+		catch (MalformedURLException e)
+		{
+			throw new IOException(e.toString());
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException("Transformer class not found: " + transformerClassName);
+		}
+		catch (InstantiationException e)
+		{
+			throw new IOException("Could not create transformer " + transformerClassName + ": " + e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IOException("Could not create transformer " + transformerClassName + ": " + e);
+		}
+	}
+
+	private static void listClassFiles(File dir, String prefix, Map<String, Long> classFiles)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+		{
+			if (file.isDirectory())
+				listClassFiles(file, prefix + file.getName() + "/", classFiles);
+			else if (file.getName().endsWith(".class"))
+				classFiles.put(prefix + file.getName().substring(0, file.getName().length() - ".class".length()), file.lastModified() ^ (file.length() << 40));
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			inputStream.readFully(bytes);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Loads classes from its own URLs before asking its parent, so that a new version of a transformer class is loaded
+	 * even if an older one is on the class path. The transformer interface and the JDK always come from the parent.
+	 */
+	private static class ChildFirstClassLoader extends URLClassLoader
+	{
+		ChildFirstClassLoader(URL[] urls, ClassLoader parent)
+		{
+			super(urls, parent);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+		{
+			if (name.startsWith("java.") || name.startsWith("net.minecraft.launchwrapper."))
+				return super.loadClass(name, resolve);
+
+			Class<?> loadedClass = findLoadedClass(name);
+			if (loadedClass == null)
+			{
+				try
+				{
+					loadedClass = findClass(name);
+				}
+				catch (ClassNotFoundException e)
+				{
+					return super.loadClass(name, resolve);
+				}
+			}
+			if (resolve)
+				resolveClass(loadedClass);
+			return loadedClass;
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package squeek.asmhelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.minecraft.launchwrapper.IClassTransformer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * An {@link IClassTransformer} that dispatches classes to the {@link IClassNodeTransformer}s targeting them,
+ * so that a class touched by several transformers is only read into a {@link ClassNode} and written back once.<br>
+ * <br>
+ * The table of target class names is built when the first class is transformed, after which no more transformers
+ * can be registered. Classes that are not targeted by any transformer cost a single hash lookup.
+ * Transformers that implement {@link IClassReadNeeds} let the registry skip reading the parts of a class that none of them need.<br>
+ * <br>
+ * <b>Example:</b>
+ * <pre>
+ * {@code
+ * public class ClassTransformer extends TransformerRegistry
+ * {
+ *     public ClassTransformer()
+ *     {
+ *         register(new WorldTransformer());
+ *         register(new EntityTransformer());
+ *     }
+ * }
+ * }
+ * </pre>
+ */
+public class TransformerRegistry implements IClassTransformer
+{
+	private final List<IClassNodeTransformer> transformers = new ArrayList<IClassNodeTransformer>();
+	private final int writeFlags;
+	private volatile Map<String, IClassNodeTransformer[]> transformersByClassName = null;
+	private volatile TransformVerifier verifier = null;
+	private volatile JitBudgetReport jitBudgetReport = null;
+	private int requiredReadNeeds = IClassReadNeeds.NEEDS_NOTHING;
+	private boolean stripDebugInfo = false;
+
+	public TransformerRegistry()
+	{
+		this(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+	}
+
+	/**
+	 * @param writeFlags The {@link ClassWriter} flags used to write transformed classes.
+	 */
+	public TransformerRegistry(int writeFlags)
+	{
+		this.writeFlags = writeFlags;
+	}
+
+	/**
+	 * Register a transformer. Transformers targeting the same class receive it in the order they were registered.
+	 *
+	 * @throws IllegalStateException If a class has already been transformed.
+	 */
+	public synchronized void register(IClassNodeTransformer transformer)
+	{
+		if (transformersByClassName != null)
+			throw new IllegalStateException("Transformers can not be registered after the first class has been transformed");
+		transformers.add(transformer);
+	}
+
+	/**
+	 * Always read the specified parts of every transformed class, in addition to the ones needed by its transformers.
+	 * For example, {@link IClassReadNeeds#NEEDS_FRAMES} keeps the original frames when the write flags would otherwise recompute them.
+	 *
+	 * @param readNeeds A combination of the {@code NEEDS_} constants of {@link IClassReadNeeds}.
+	 * @throws IllegalStateException If a class has already been transformed.
+	 */
+	public synchronized void requireReadNeeds(int readNeeds)
+	{
+		if (transformersByClassName != null)
+			throw new IllegalStateException("Read needs can not be changed after the first class has been transformed");
+		requiredReadNeeds |= readNeeds;
+	}
+
+	/**
+	 * Set whether debug information (line numbers, local variable names and the source file) may be removed from transformed classes
+	 * whose transformers do not need it. Reading classes without it is faster, but stack traces through them lose their line numbers.
+	 * By default, debug information is always kept.
+	 *
+	 * @throws IllegalStateException If a class has already been transformed.
+	 */
+	public synchronized void setStripDebugInfo(boolean stripDebugInfo)
+	{
+		if (transformersByClassName != null)
+			throw new IllegalStateException("Read needs can not be changed after the first class has been transformed");
+		this.stripDebugInfo = stripDebugInfo;
+	}
+
+	/**
+	 * @return The {@link org.objectweb.asm.ClassReader} flags that read only the parts of a class in {@code readNeeds},
+	 * when the class is written using {@code writeFlags}.
+	 */
+	public static int getReadFlags(int readNeeds, int writeFlags)
+	{
+		int flags = 0;
+		if ((readNeeds & (IClassReadNeeds.NEEDS_LINE_NUMBERS | IClassReadNeeds.NEEDS_LOCAL_VARIABLES)) == 0)
+			flags |= ClassReader.SKIP_DEBUG;
+		if ((readNeeds & IClassReadNeeds.NEEDS_EXPANDED_FRAMES) != 0)
+			flags |= ClassReader.EXPAND_FRAMES;
+		// frames can only be skipped if the writer computes them from scratch
+		else if ((readNeeds & IClassReadNeeds.NEEDS_FRAMES) == 0 && (writeFlags & ClassWriter.COMPUTE_FRAMES) != 0)
+			flags |= ClassReader.SKIP_FRAMES;
+		return flags;
+	}
+
+	private int getReadNeeds(IClassNodeTransformer[] classTransformers)
+	{
+		int readNeeds = requiredReadNeeds;
+		if (!stripDebugInfo)
+			readNeeds |= IClassReadNeeds.NEEDS_LINE_NUMBERS | IClassReadNeeds.NEEDS_LOCAL_VARIABLES;
+		for (IClassNodeTransformer transformer : classTransformers)
+		{
+			readNeeds |= transformer instanceof IClassReadNeeds ? ((IClassReadNeeds) transformer).getReadNeeds() : IClassReadNeeds.NEEDS_EVERYTHING;
+		}
+		return readNeeds;
+	}
+
+	/**
+	 * Set the verifier that every class modified by this registry is submitted to, or {@code null} to disable verification.
+	 */
+	public void setVerifier(TransformVerifier verifier)
+	{
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Set the report that the method sizes of every class modified by this registry are checked against, or {@code null} to disable the check.
+	 */
+	public void setJitBudgetReport(JitBudgetReport jitBudgetReport)
+	{
+		this.jitBudgetReport = jitBudgetReport;
+	}
+
+	/**
+	 * @return The transformers targeting the class with the specified (deobfuscated) name, or {@code null} if there are none.
+	 */
+	public IClassNodeTransformer[] getTransformers(String transformedName)
+	{
+		return getTransformersByClassName().get(transformedName);
+	}
+
+	private Map<String, IClassNodeTransformer[]> getTransformersByClassName()
+	{
+		Map<String, IClassNodeTransformer[]> transformersByClassName = this.transformersByClassName;
+		if (transformersByClassName == null)
+		{
+			synchronized (this)
+			{
+				if (this.transformersByClassName == null)
+					this.transformersByClassName = freeze();
+				transformersByClassName = this.transformersByClassName;
+			}
+		}
+		return transformersByClassName;
+	}
+
+	private Map<String, IClassNodeTransformer[]> freeze()
+	{
+		Map<String, Set<IClassNodeTransformer>> targets = new HashMap<String, Set<IClassNodeTransformer>>();
+		for (IClassNodeTransformer transformer : transformers)
+		{
+			for (String targetClassName : transformer.getTargetClassNames())
+			{
+				String transformedName = ObfHelper.toDeobfClassName(targetClassName.replace('/', '.'));
+				Set<IClassNodeTransformer> classTransformers = targets.get(transformedName);
+				if (classTransformers == null)
+				{
+					classTransformers = new LinkedHashSet<IClassNodeTransformer>();
+					targets.put(transformedName, classTransformers);
+				}
+				classTransformers.add(transformer);
+			}
+		}
+
+		Map<String, IClassNodeTransformer[]> transformersByClassName = new HashMap<String, IClassNodeTransformer[]>(targets.size() * 2);
+		for (Map.Entry<String, Set<IClassNodeTransformer>> entry : targets.entrySet())
+		{
+			transformersByClassName.put(entry.getKey(), entry.getValue().toArray(new IClassNodeTransformer[entry.getValue().size()]));
+		}
+		return transformersByClassName;
+	}
+
+	@Override
+	public byte[] transform(String name, String transformedName, byte[] basicClass)
+	{
+		if (basicClass == null)
+			return null;
+
+		IClassNodeTransformer[] classTransformers = getTransformersByClassName().get(transformedName);
+		if (classTransformers == null)
+			return basicClass;
+
+		ClassNode classNode = ASMHelper.readClassFromBytes(basicClass, getReadFlags(getReadNeeds(classTransformers), writeFlags));
+		boolean modified = false;
+		boolean tracing = TransformTrace.isEnabled();
+		if (tracing)
+			TransformTrace.setContext(transformedName, null);
+		try
+		{
+			for (IClassNodeTransformer transformer : classTransformers)
+			{
+				modified |= transformer.transform(name, transformedName, classNode);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			TransformTrace.dumpOnFailure(e);
+			throw e;
+		}
+		finally
+		{
+			if (tracing)
+				TransformTrace.clearContext();
+		}
+		if (!modified)
+			return basicClass;
+
+		byte[] transformedClass = ASMHelper.writeClassToBytes(classNode, writeFlags);
+		TransformVerifier verifier = this.verifier;
+		if (verifier != null)
+			verifier.submit(transformedName, transformedClass);
+		JitBudgetReport jitBudgetReport = this.jitBudgetReport;
+		if (jitBudgetReport != null)
+			jitBudgetReport.check(transformedName, basicClass, transformedClass);
+		return transformedClass;
+	}
+}
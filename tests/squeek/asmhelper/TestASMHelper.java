@@ -5,7 +5,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.objectweb.asm.Opcodes.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.junit.Test;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 import squeek.asmhelper.ASMHelper;
@@ -32,6 +35,52 @@ public class TestASMHelper
 		assertTrue(ASMHelper.instructionsMatch(new LdcInsnNode("test"), new LdcInsnNode(InsnComparator.WILDCARD)));
 	}
 
+	@Test
+	public void instructionMatchingComparesEveryKindOfOperand()
+	{
+		LabelNode l1 = new LabelNode();
+		LabelNode l2 = new LabelNode();
+		assertTrue(ASMHelper.instructionsMatch(new JumpInsnNode(IFEQ, l1), new JumpInsnNode(IFEQ, l2)));
+		assertFalse(ASMHelper.instructionsMatch(new JumpInsnNode(IFEQ, l1), new JumpInsnNode(IFNE, l1)));
+
+		assertTrue(ASMHelper.instructionsMatch(new TableSwitchInsnNode(0, 1, l1, l1, l2), new TableSwitchInsnNode(0, 1, l2, l2, l1)));
+		assertFalse(ASMHelper.instructionsMatch(new TableSwitchInsnNode(0, 1, l1, l1, l2), new TableSwitchInsnNode(1, 2, l1, l1, l2)));
+		assertTrue(ASMHelper.instructionsMatch(new TableSwitchInsnNode(InsnComparator.INT_WILDCARD, 1, l1), new TableSwitchInsnNode(0, 1, l1, l1, l2)));
+
+		assertTrue(ASMHelper.instructionsMatch(new LookupSwitchInsnNode(l1, new int[]{1, 5}, new LabelNode[]{l1, l2}), new LookupSwitchInsnNode(l2, new int[]{1, 5}, new LabelNode[]{l2, l1})));
+		assertFalse(ASMHelper.instructionsMatch(new LookupSwitchInsnNode(l1, new int[]{1, 5}, new LabelNode[]{l1, l2}), new LookupSwitchInsnNode(l1, new int[]{1, 6}, new LabelNode[]{l1, l2})));
+		assertFalse(ASMHelper.instructionsMatch(new LookupSwitchInsnNode(l1, new int[]{1}, new LabelNode[]{l1}), new LookupSwitchInsnNode(l1, new int[]{1, 5}, new LabelNode[]{l1, l2})));
+		assertTrue(ASMHelper.instructionsMatch(new LookupSwitchInsnNode(l1, new int[]{InsnComparator.INT_WILDCARD, 5}, new LabelNode[]{l1, l2}), new LookupSwitchInsnNode(l1, new int[]{1, 5}, new LabelNode[]{l1, l2})));
+
+		assertTrue(ASMHelper.instructionsMatch(new MultiANewArrayInsnNode("[[I", 2), new MultiANewArrayInsnNode("[[I", 2)));
+		assertFalse(ASMHelper.instructionsMatch(new MultiANewArrayInsnNode("[[I", 2), new MultiANewArrayInsnNode("[[I", 1)));
+		assertFalse(ASMHelper.instructionsMatch(new MultiANewArrayInsnNode("[[I", 2), new MultiANewArrayInsnNode("[[J", 2)));
+
+		Handle bsm = new Handle(H_INVOKESTATIC, "a/Hooks", "bootstrap", "()V");
+		assertTrue(ASMHelper.instructionsMatch(new InvokeDynamicInsnNode("hook", "()V", bsm, "x", 1), new InvokeDynamicInsnNode("hook", "()V", new Handle(H_INVOKESTATIC, "a/Hooks", "bootstrap", "()V"), "x", 1)));
+		assertFalse(ASMHelper.instructionsMatch(new InvokeDynamicInsnNode("hook", "()V", bsm, "x", 1), new InvokeDynamicInsnNode("hook", "()V", bsm, "x", 2)));
+		assertFalse(ASMHelper.instructionsMatch(new InvokeDynamicInsnNode("hook", "()V", bsm), new InvokeDynamicInsnNode("hook", "()V", new Handle(H_INVOKESTATIC, "a/Other", "bootstrap", "()V"))));
+		assertFalse(ASMHelper.instructionsMatch(new InvokeDynamicInsnNode("hook", "()V", bsm), new InvokeDynamicInsnNode("other", "()V", bsm)));
+		assertTrue(ASMHelper.instructionsMatch(new InvokeDynamicInsnNode(InsnComparator.WILDCARD, "()V", new Handle(H_INVOKESTATIC, InsnComparator.WILDCARD, "bootstrap", "()V"), InsnComparator.WILDCARD), new InvokeDynamicInsnNode("hook", "()V", bsm, "x")));
+	}
+
+	@Test
+	public void operandMatchingCanBeCustomized()
+	{
+		InsnComparator anyLocalComparator = new InsnComparator()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean intValuesMatch(int a, int b)
+			{
+				return true;
+			}
+		};
+		assertTrue(anyLocalComparator.areInsnsEqual(new VarInsnNode(ALOAD, 0), new VarInsnNode(ALOAD, 3)));
+		assertFalse(anyLocalComparator.areInsnsEqual(new VarInsnNode(ALOAD, 0), new VarInsnNode(ILOAD, 0)));
+	}
+
 	@Test
 	public void lineNumberAndLabelInstructionsAlwaysMatch()
 	{
@@ -199,6 +248,25 @@ public class TestASMHelper
 		assertEquals(3, haystack.size());
 	}
 
+	@Test
+	public void classesCanBeReadFromSlicesOfLargerBuffers() throws IOException
+	{
+		byte[] classBytes = ASMHelper.getClassBytes(ASMHelper.class.getName());
+		byte[] padded = new byte[classBytes.length + 20];
+		System.arraycopy(classBytes, 0, padded, 7, classBytes.length);
+
+		ClassNode fromSlice = ASMHelper.readClassFromBytes(padded, 7, classBytes.length);
+		assertEquals(ASMHelper.readClassFromBytes(classBytes).methods.size(), fromSlice.methods.size());
+
+		ByteBuffer heapBuffer = ByteBuffer.wrap(padded, 7, classBytes.length);
+		assertEquals("squeek/asmhelper/ASMHelper", ASMHelper.readClassFromBuffer(heapBuffer).name);
+		assertEquals(7, heapBuffer.position());
+
+		ByteBuffer directBuffer = ByteBuffer.allocateDirect(classBytes.length);
+		directBuffer.put(classBytes).flip();
+		assertEquals("squeek/asmhelper/ASMHelper", ASMHelper.readClassFromBuffer(directBuffer).name);
+	}
+
 	public InsnList populateTestHaystack(InsnList haystack)
 	{
 		haystack.clear();
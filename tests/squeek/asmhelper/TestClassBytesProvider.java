@@ -0,0 +1,112 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import org.junit.Test;
+
+public class TestClassBytesProvider
+{
+
+	@Test
+	public void storedAndDeflatedEntriesAreReadFromTheJar() throws IOException
+	{
+		byte[] storedBytes = randomBytes(1000);
+		byte[] deflatedBytes = new byte[5000];
+		File jar = File.createTempFile("asmhelper", ".jar");
+		jar.deleteOnExit();
+
+		JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jar));
+		ZipEntry stored = new ZipEntry("a/Stored.class");
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(storedBytes.length);
+		CRC32 crc = new CRC32();
+		crc.update(storedBytes);
+		stored.setCrc(crc.getValue());
+		jarStream.putNextEntry(stored);
+		jarStream.write(storedBytes);
+		jarStream.closeEntry();
+		jarStream.putNextEntry(new ZipEntry("a/Deflated.class"));
+		jarStream.write(deflatedBytes);
+		jarStream.closeEntry();
+		jarStream.close();
+
+		ClassBytesProvider provider = new ClassBytesProvider(null, ClassBytesProvider.DEFAULT_MAX_CACHE_SIZE);
+		provider.addClassPathEntry(jar);
+		assertArrayEquals(storedBytes, provider.getClassBytes("a.Stored"));
+		assertArrayEquals(deflatedBytes, provider.getClassBytes("a/Deflated"));
+		assertArrayEquals(deflatedBytes, provider.getClassBytes("a.Deflated"));
+	}
+
+	@Test
+	public void classesOutsideTheIndexFallBackToTheClassLoader() throws IOException
+	{
+		ClassBytesProvider provider = new ClassBytesProvider(getClass().getClassLoader(), 0);
+		byte[] bytes = provider.getClassBytes(TestClassBytesProvider.class.getName());
+		InputStream classStream = ASMHelper.getClassAsStreamFromClassLoader(TestClassBytesProvider.class.getName(), getClass().getClassLoader());
+		byte[] expected = new byte[bytes.length];
+		new DataInputStream(classStream).readFully(expected);
+		assertEquals(-1, classStream.read());
+		classStream.close();
+		assertArrayEquals(expected, bytes);
+		assertNull(provider.getClassBytes("squeek.asmhelper.DoesNotExist"));
+	}
+
+	@Test
+	public void entriesAddedEarlierTakePrecedence() throws IOException
+	{
+		byte[] directoryBytes = randomBytes(100);
+		byte[] jarBytes = new byte[200];
+		File directory = File.createTempFile("asmhelper", "");
+		directory.delete();
+		new File(directory, "a").mkdirs();
+		directory.deleteOnExit();
+		FileOutputStream classStream = new FileOutputStream(new File(directory, "a/Both.class"));
+		classStream.write(directoryBytes);
+		classStream.close();
+
+		File jar = File.createTempFile("asmhelper", ".jar");
+		jar.deleteOnExit();
+		JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jar));
+		jarStream.putNextEntry(new ZipEntry("a/Both.class"));
+		jarStream.write(jarBytes);
+		jarStream.closeEntry();
+		jarStream.close();
+
+		ClassBytesProvider directoryFirst = new ClassBytesProvider(null, 0);
+		directoryFirst.addClassPathEntry(directory);
+		directoryFirst.addClassPathEntry(jar);
+		assertArrayEquals(directoryBytes, directoryFirst.getClassBytes("a.Both"));
+
+		ClassBytesProvider jarFirst = new ClassBytesProvider(null, 0);
+		jarFirst.addClassPathEntry(jar);
+		jarFirst.addClassPathEntry(directory);
+		assertArrayEquals(jarBytes, jarFirst.getClassBytes("a.Both"));
+	}
+
+	@Test
+	public void asmHelperReturnsACopyOfTheCachedBytes() throws IOException
+	{
+		byte[] bytes = ASMHelper.getClassBytes(TestClassBytesProvider.class.getName());
+		byte[] original = bytes.clone();
+		bytes[0] = (byte) ~bytes[0];
+		assertArrayEquals(original, ASMHelper.getClassBytes(TestClassBytesProvider.class.getName()));
+	}
+
+	private static byte[] randomBytes(int length)
+	{
+		byte[] bytes = new byte[length];
+		new Random(0).nextBytes(bytes);
+		return bytes;
+	}
+
+}
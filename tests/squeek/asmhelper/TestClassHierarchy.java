@@ -0,0 +1,117 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+public class TestClassHierarchy
+{
+
+	@Test
+	public void commonSuperClassesAreFoundWithoutLoadingClasses() throws IOException
+	{
+		ClassHierarchy classHierarchy = new ClassHierarchy(createProvider(createTestJar()));
+
+		assertEquals("a/Base", classHierarchy.getCommonSuperClass("a/Child", "a/Other"));
+		assertEquals("a/Base", classHierarchy.getCommonSuperClass("a/Base", "a/Child"));
+		assertEquals("a/Iface", classHierarchy.getCommonSuperClass("a/Child", "a/Iface"));
+		assertEquals("java/lang/Object", classHierarchy.getCommonSuperClass("a/Other", "a/Iface"));
+		assertTrue(classHierarchy.isAssignableFrom("a/Iface", "a/Child"));
+		assertFalse(classHierarchy.isAssignableFrom("a/Iface", "a/Other"));
+		assertTrue(classHierarchy.isInterface("a/Iface"));
+		assertNull(classHierarchy.getCommonSuperClass("a/Child", "a/Missing"));
+	}
+
+	@Test
+	public void snapshotsAnswerQueriesUntilTheJarsChange() throws IOException
+	{
+		File jar = createTestJar();
+		List<File> jars = Collections.singletonList(jar);
+		File snapshotFile = File.createTempFile("asmhelper", ".bin");
+		snapshotFile.deleteOnExit();
+		ClassHierarchySnapshot.build(jars, snapshotFile);
+
+		ClassHierarchySnapshot snapshot = ClassHierarchySnapshot.load(snapshotFile, jars);
+		assertNotNull(snapshot);
+		assertEquals(4, snapshot.size());
+		ClassHierarchy.ClassInfo child = snapshot.getClassInfo("a/Child");
+		assertEquals("a/Base", child.superName);
+		assertEquals(1, child.interfaces.length);
+		assertEquals("a/Iface", child.interfaces[0]);
+		assertNull(snapshot.getClassInfo("a/Missing"));
+
+		ClassHierarchy classHierarchy = new ClassHierarchy(new ClassBytesProvider(null, 0));
+		classHierarchy.setSnapshot(snapshot);
+		assertEquals("a/Base", classHierarchy.getCommonSuperClass("a/Child", "a/Other"));
+
+		assertNull(ClassHierarchySnapshot.load(snapshotFile, Collections.singletonList(createTestJar("a/Extra"))));
+	}
+
+	@Test
+	public void snapshotsFindEveryClassByItsEncodedName() throws IOException
+	{
+		String[] names = {"a/Ba", "a/Basement", "a/\u00DCbung", "a/\uE000Private", "a/\uD83D\uDE00Emoji"};
+		List<File> jars = Collections.singletonList(createTestJar(names));
+		File snapshotFile = File.createTempFile("asmhelper", ".bin");
+		snapshotFile.deleteOnExit();
+		ClassHierarchySnapshot.build(jars, snapshotFile);
+
+		ClassHierarchySnapshot snapshot = ClassHierarchySnapshot.load(snapshotFile, jars);
+		assertEquals(4 + names.length, snapshot.size());
+		for (String name : names)
+		{
+			assertEquals(name, snapshot.getClassInfo(name).name);
+		}
+		assertEquals("a/Base", snapshot.getClassInfo("a/Other").superName);
+		assertNull(snapshot.getClassInfo("a/B"));
+		assertNull(snapshot.getClassInfo("a/Bases"));
+		assertNull(snapshot.getClassInfo("a/\u00DC"));
+	}
+
+	private static ClassBytesProvider createProvider(File jar)
+	{
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(null, 0);
+		classBytesProvider.addClassPathEntry(jar);
+		return classBytesProvider;
+	}
+
+	private static File createTestJar(String... extraClassNames) throws IOException
+	{
+		File jar = File.createTempFile("asmhelper", ".jar");
+		jar.deleteOnExit();
+		JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jar));
+		writeClass(jarStream, "a/Iface", Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, "java/lang/Object");
+		writeClass(jarStream, "a/Base", Opcodes.ACC_PUBLIC, "java/lang/Object");
+		writeClass(jarStream, "a/Child", Opcodes.ACC_PUBLIC, "a/Base", "a/Iface");
+		writeClass(jarStream, "a/Other", Opcodes.ACC_PUBLIC, "a/Base");
+		for (String extraClassName : extraClassNames)
+		{
+			writeClass(jarStream, extraClassName, Opcodes.ACC_PUBLIC, "java/lang/Object");
+		}
+		jarStream.close();
+		return jar;
+	}
+
+	private static void writeClass(JarOutputStream jarStream, String name, int access, String superName, String... interfaces) throws IOException
+	{
+		ClassWriter classWriter = new ClassWriter(0);
+		classWriter.visit(Opcodes.V1_6, access, name, null, superName, interfaces);
+		classWriter.visitEnd();
+		jarStream.putNextEntry(new ZipEntry(name + ".class"));
+		jarStream.write(classWriter.toByteArray());
+		jarStream.closeEntry();
+	}
+
+}
@@ -0,0 +1,76 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import org.junit.Test;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestClassSearch
+{
+	private static InsnList createNeedle()
+	{
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, InsnComparator.INT_WILDCARD));
+		needle.add(new MethodInsnNode(INVOKEVIRTUAL, InsnComparator.WILDCARD, "getNext", InsnComparator.WILDCARD, false));
+		return needle;
+	}
+
+	private static List<AbstractInsnNode> findAllLinear(InsnList haystack, InsnList needle)
+	{
+		List<AbstractInsnNode> matches = new ArrayList<AbstractInsnNode>();
+		for (AbstractInsnNode start = haystack.getFirst(); start != null;)
+		{
+			InsnList found = ASMHelper.findAndGetFoundInsnList(start, needle);
+			if (found.getFirst() == null)
+				break;
+			matches.add(found.getFirst());
+			start = found.getLast().getNext();
+		}
+		return matches;
+	}
+
+	@Test
+	public void parallelAndSequentialSearchesFindTheSameMatches() throws IOException
+	{
+		byte[] bytes = ASMHelper.getClassBytes(ASMHelper.class.getName());
+		TransformContext context = new TransformContext(null, TransformContext.FML_REMAPPER);
+		try
+		{
+			ClassNode classNode = ASMHelper.readClassFromBytes(bytes);
+			context.setParallelSearchThreshold(0);
+			Map<MethodNode, List<AbstractInsnNode>> parallelMatches = context.findAll(classNode, createNeedle());
+			context.setParallelSearchThreshold(Integer.MAX_VALUE);
+			Map<MethodNode, List<AbstractInsnNode>> sequentialMatches = context.findAll(classNode, createNeedle());
+			assertEquals(sequentialMatches, parallelMatches);
+			assertTrue(parallelMatches.size() > 5);
+
+			for (MethodNode method : classNode.methods)
+			{
+				List<AbstractInsnNode> expected = findAllLinear(method.instructions, createNeedle());
+				List<AbstractInsnNode> actual = parallelMatches.get(method);
+				assertEquals(expected, actual != null ? actual : new ArrayList<AbstractInsnNode>());
+			}
+
+			context.setParallelSearchThreshold(0);
+			LazyClassNode lazyClassNode = ASMHelper.readLazyClassFromBytes(bytes);
+			assertEquals(parallelMatches.size(), context.findAll(lazyClassNode, createNeedle()).size());
+		}
+		finally
+		{
+			ExecutorService executor = context.getSearchExecutor();
+			context.shutdown();
+			assertTrue(executor.isShutdown());
+		}
+	}
+}
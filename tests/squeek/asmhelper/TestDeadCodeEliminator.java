@@ -0,0 +1,123 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.*;
+
+public class TestDeadCodeEliminator
+{
+
+	@Test
+	public void skippedInstructionsAreRemoved()
+	{
+		MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, "test", "()I", null, null);
+		AbstractInsnNode start = new InsnNode(ICONST_1);
+		AbstractInsnNode end = new InsnNode(ICONST_2);
+		method.instructions.add(start);
+		method.instructions.add(new InsnNode(POP));
+		method.instructions.add(end);
+		method.instructions.add(new InsnNode(IRETURN));
+
+		ASMHelper.skipInstructions(method.instructions, start, end);
+		DeadCodeEliminator.Result result = DeadCodeEliminator.eliminate(method);
+
+		assertEquals(2, result.instructionsRemoved);
+		assertEquals(2, result.bytesSaved);
+		assertEquals(GOTO, method.instructions.getFirst().getOpcode());
+		assertEquals(ICONST_2, ASMHelper.findNextInstruction(method.instructions.getFirst()).getOpcode());
+	}
+
+	@Test
+	public void conditionalBranchesAndHandlersKeepTheirTargets()
+	{
+		MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, "test", "(I)I", null, null);
+		LabelNode tryStart = new LabelNode();
+		LabelNode tryEnd = new LabelNode();
+		LabelNode handler = new LabelNode();
+		LabelNode elseLabel = new LabelNode();
+		method.instructions.add(tryStart);
+		method.instructions.add(new VarInsnNode(ILOAD, 0));
+		method.instructions.add(new JumpInsnNode(IFEQ, elseLabel));
+		method.instructions.add(new InsnNode(ICONST_1));
+		method.instructions.add(new InsnNode(IRETURN));
+		method.instructions.add(elseLabel);
+		method.instructions.add(new InsnNode(ICONST_0));
+		method.instructions.add(new InsnNode(IRETURN));
+		method.instructions.add(tryEnd);
+		method.instructions.add(handler);
+		method.instructions.add(new InsnNode(ATHROW));
+		method.tryCatchBlocks.add(new TryCatchBlockNode(tryStart, tryEnd, handler, null));
+
+		int sizeBefore = method.instructions.size();
+		DeadCodeEliminator.Result result = DeadCodeEliminator.eliminate(method);
+
+		assertTrue(result.isEmpty());
+		assertEquals(sizeBefore, method.instructions.size());
+	}
+
+	@Test
+	public void unreachableTryCatchBlocksAndLocalsAreRemoved()
+	{
+		MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, "test", "()V", null, null);
+		LabelNode deadStart = new LabelNode();
+		LabelNode deadEnd = new LabelNode();
+		LabelNode handler = new LabelNode();
+		method.instructions.add(new InsnNode(RETURN));
+		method.instructions.add(deadStart);
+		method.instructions.add(new InsnNode(ICONST_0));
+		method.instructions.add(new VarInsnNode(ISTORE, 0));
+		method.instructions.add(deadEnd);
+		method.instructions.add(handler);
+		method.instructions.add(new InsnNode(ATHROW));
+		method.tryCatchBlocks.add(new TryCatchBlockNode(deadStart, deadEnd, handler, null));
+		method.localVariables.add(new LocalVariableNode("dead", "I", null, deadStart, deadEnd, 0));
+
+		DeadCodeEliminator.Result result = DeadCodeEliminator.eliminate(method);
+
+		assertEquals(3, result.instructionsRemoved);
+		assertEquals(3, result.labelsRemoved);
+		assertEquals(1, result.tryCatchBlocksRemoved);
+		assertEquals(1, result.localVariablesRemoved);
+		assertEquals(1, method.instructions.size());
+	}
+
+	@Test
+	public void framesAfterRemovedCompressedFramesAreReencoded()
+	{
+		ClassNode classNode = new ClassNode();
+		classNode.version = V1_6;
+		classNode.access = ACC_PUBLIC;
+		classNode.name = "a/Target";
+		classNode.superName = "java/lang/Object";
+		MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, "test", "(I)V", null, null);
+		classNode.methods.add(method);
+
+		LabelNode dead = new LabelNode();
+		LabelNode end = new LabelNode();
+		method.instructions.add(new JumpInsnNode(GOTO, end));
+		method.instructions.add(dead);
+		method.instructions.add(new FrameNode(F_APPEND, 1, new Object[]{INTEGER}, 0, null));
+		method.instructions.add(new InsnNode(ICONST_0));
+		method.instructions.add(new VarInsnNode(ISTORE, 1));
+		method.instructions.add(new JumpInsnNode(GOTO, end));
+		method.instructions.add(end);
+		FrameNode endFrame = new FrameNode(F_CHOP, 1, null, 0, null);
+		method.instructions.add(endFrame);
+		method.instructions.add(new InsnNode(RETURN));
+		method.maxStack = 1;
+		method.maxLocals = 2;
+
+		DeadCodeEliminator.Result result = DeadCodeEliminator.eliminate(classNode);
+		assertEquals(3, result.instructionsRemoved);
+		assertEquals(F_SAME, endFrame.type);
+
+		// the frames are written as they are, and expanded again when read
+		ClassNode written = ASMHelper.readClassFromBytes(ASMHelper.writeClassToBytesNoDeobfSkipFrames(classNode), ClassReader.EXPAND_FRAMES);
+		FrameNode writtenFrame = (FrameNode) ASMHelper.getOrFindInstructionOfType(written.methods.get(0).instructions.getFirst(), AbstractInsnNode.FRAME);
+		assertEquals(1, writtenFrame.local.size());
+		assertEquals(INTEGER, writtenFrame.local.get(0));
+	}
+}
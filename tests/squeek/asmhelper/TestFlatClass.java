@@ -0,0 +1,54 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import java.io.IOException;
+import org.junit.Test;
+import org.objectweb.asm.tree.*;
+
+public class TestFlatClass
+{
+
+	@Test
+	public void flatInstructionsMatchTheInstructionTree() throws IOException
+	{
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(FlatMethod.class.getName());
+		ClassNode classNode = ASMHelper.readClassFromBytes(bytes);
+		FlatClass flatClass = new FlatClass(bytes);
+
+		assertEquals(classNode.methods.size(), flatClass.getMethods().size());
+		for (MethodNode method : classNode.methods)
+		{
+			FlatMethod flatMethod = flatClass.findMethod(method.name, method.desc).getInstructions();
+			int i = 0;
+			for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+			{
+				if (insn.getOpcode() < 0)
+					continue;
+				assertEquals(insn.getOpcode(), flatMethod.getOpcode(i));
+				assertTrue(method.name + " " + i, ASMHelper.instructionsMatch(insn, flatMethod.toInsnNode(i)));
+				i++;
+			}
+			assertEquals(i, flatMethod.size());
+		}
+	}
+
+	@Test
+	public void findMatchesTheSameInstructionAsTheTree() throws IOException
+	{
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(TransformContext.class.getName());
+		FlatClass.Method flatMethod = new FlatClass(bytes).findMethod("findAndReplace", "(Lorg/objectweb/asm/tree/InsnList;Lorg/objectweb/asm/tree/InsnList;Lorg/objectweb/asm/tree/InsnList;Lorg/objectweb/asm/tree/AbstractInsnNode;)Lorg/objectweb/asm/tree/AbstractInsnNode;");
+
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, InsnComparator.INT_WILDCARD));
+		needle.add(new MethodInsnNode(INVOKEVIRTUAL, "org/objectweb/asm/tree/InsnList", "getFirst", InsnComparator.WILDCARD, false));
+
+		int index = flatMethod.getInstructions().find(needle);
+		assertTrue(index >= 0);
+
+		MethodNode method = flatMethod.toMethodNode(0);
+		assertEquals(ASMHelper.find(method.instructions, needle), FlatMethod.getInsnNode(method, index));
+	}
+
+}
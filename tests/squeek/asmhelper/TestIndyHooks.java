@@ -0,0 +1,93 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestIndyHooks
+{
+	static
+	{
+		ObfHelper.setObfuscated(false);
+	}
+
+	private static ClassNode createTestClass()
+	{
+		ClassNode classNode = new ClassNode();
+		classNode.version = V1_6;
+		classNode.access = ACC_PUBLIC;
+		classNode.name = "a/Target";
+		classNode.superName = "java/lang/Object";
+
+		MethodNode method = new MethodNode(ACC_PUBLIC, "compute", "(ILjava/lang/String;J)D", null, null);
+		method.instructions.add(new InsnNode(DCONST_0));
+		method.instructions.add(new InsnNode(DRETURN));
+		method.maxStack = 2;
+		method.maxLocals = 5;
+		classNode.methods.add(method);
+		return classNode;
+	}
+
+	@Test
+	public void hookCallsPassThisAndAllArguments()
+	{
+		ClassNode classNode = createTestClass();
+		MethodNode method = classNode.methods.get(0);
+		Handle bootstrap = IndyHooks.getBootstrapHandle("squeek.mymod.Hooks", "bootstrap");
+		assertEquals("squeek/mymod/Hooks", bootstrap.getOwner());
+		assertEquals(IndyHooks.BOOTSTRAP_DESC, bootstrap.getDesc());
+
+		InsnList hook = IndyHooks.createHookCall(classNode, method, "onCompute", "V", bootstrap, "extra");
+		assertEquals(5, hook.size());
+		int[] expectedOpcodes = new int[]{ALOAD, ILOAD, ALOAD, LLOAD};
+		int[] expectedVars = new int[]{0, 1, 2, 3};
+		for (int i = 0; i < expectedOpcodes.length; i++)
+		{
+			assertEquals(expectedOpcodes[i], hook.get(i).getOpcode());
+			assertEquals(expectedVars[i], ((VarInsnNode) hook.get(i)).var);
+		}
+		InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) hook.getLast();
+		assertEquals("onCompute", indy.name);
+		assertEquals("(La/Target;ILjava/lang/String;J)V", indy.desc);
+		assertEquals("extra", indy.bsmArgs[0]);
+	}
+
+	@Test
+	public void filterHooksReplaceTheValueOnTheStack()
+	{
+		ClassNode classNode = createTestClass();
+		MethodNode method = classNode.methods.get(0);
+		Handle bootstrap = IndyHooks.getBootstrapHandle("squeek.mymod.Hooks", "bootstrap");
+
+		AbstractInsnNode returnInsn = ASMHelper.findFirstInstructionWithOpcode(method, DRETURN);
+		method.instructions.insertBefore(returnInsn, IndyHooks.createFilterHookCall(classNode, method, "D", "filterCompute", bootstrap));
+		method.instructions.insert(IndyHooks.createHookCall(classNode, method, "onCompute", "V", bootstrap));
+		assertEquals(7, method.maxLocals);
+
+		InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) returnInsn.getPrevious();
+		assertEquals("(La/Target;ILjava/lang/String;JD)D", indy.desc);
+		assertEquals(DLOAD, indy.getPrevious().getOpcode());
+		assertEquals(5, ((VarInsnNode) indy.getPrevious()).var);
+
+		assertTrue(IndyHooks.ensureIndyClassVersion(classNode));
+		assertFalse(IndyHooks.ensureIndyClassVersion(classNode));
+		assertEquals(V1_7, classNode.version);
+
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classNode.accept(classWriter);
+		TransformVerifier verifier = new TransformVerifier(new ClassHierarchy(new ClassBytesProvider(null, 0)), 1, 1);
+		assertEquals(0, verifier.verify("a.Target", classWriter.toByteArray()).size());
+		verifier.shutdown();
+	}
+}
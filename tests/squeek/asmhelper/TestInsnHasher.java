@@ -0,0 +1,104 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestInsnHasher
+{
+
+	@Test
+	public void equalInstructionsHaveEqualHashes()
+	{
+		assertEquals(InsnHasher.hash(new VarInsnNode(ALOAD, 1)), InsnHasher.hash(new VarInsnNode(ALOAD, 1)));
+		assertNotEquals(InsnHasher.hash(new VarInsnNode(ALOAD, 1)), InsnHasher.hash(new VarInsnNode(ALOAD, 2)));
+		assertEquals(InsnHasher.hash(new MethodInsnNode(INVOKEVIRTUAL, "a", "b", "()V", false)), InsnHasher.hash(new MethodInsnNode(INVOKEVIRTUAL, new String("a"), "b", "()V", false)));
+
+		InsnList withLabels = new InsnList();
+		LabelNode label = new LabelNode();
+		withLabels.add(label);
+		withLabels.add(new VarInsnNode(ALOAD, 0));
+		withLabels.add(new LineNumberNode(10, label));
+		withLabels.add(new FieldInsnNode(GETFIELD, "a", "b", "I"));
+		InsnList withoutLabels = new InsnList();
+		withoutLabels.add(new VarInsnNode(ALOAD, 0));
+		withoutLabels.add(new FieldInsnNode(GETFIELD, "a", "b", "I"));
+		assertEquals(InsnHasher.hash(withoutLabels), InsnHasher.hash(withLabels));
+	}
+
+	@Test
+	public void rollingHashSearchFindsTheSameMatchesAsALinearSearch() throws IOException
+	{
+		ClassNode classNode = ASMHelper.readClassFromBytes(ASMHelper.getClassBytes(ASMHelper.class.getName()));
+		int searches = 0;
+		for (MethodNode method : classNode.methods)
+		{
+			Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+			for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext())
+			{
+				if (insn instanceof LabelNode)
+					labels.put((LabelNode) insn, (LabelNode) insn);
+			}
+
+			for (AbstractInsnNode start = method.instructions.getFirst(); start != null; start = start.getNext())
+			{
+				if (start.getOpcode() < 0)
+					continue;
+
+				InsnList needle = new InsnList();
+				InsnList wildcardNeedle = new InsnList();
+				AbstractInsnNode insn = start;
+				for (int i = 0; i < 6 && insn != null; insn = insn.getNext())
+				{
+					if (ASMHelper.isLabelOrLineNumber(insn))
+						continue;
+					needle.add(insn.clone(labels));
+					wildcardNeedle.add(insn instanceof VarInsnNode ? new VarInsnNode(insn.getOpcode(), InsnComparator.INT_WILDCARD) : insn.clone(labels));
+					i++;
+				}
+
+				assertSame(ASMHelper.find(method.instructions, needle), InsnHasher.find(method.instructions, needle));
+				assertSame(ASMHelper.find(method.instructions, wildcardNeedle), InsnHasher.find(method.instructions, wildcardNeedle));
+				searches++;
+			}
+		}
+		assertTrue(searches > 100);
+	}
+
+	@Test
+	public void matchesAreVerifiedWithTheGivenComparator()
+	{
+		InsnList haystack = new TestASMHelper().populateTestHaystack(new InsnList());
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, InsnComparator.INT_WILDCARD));
+		needle.add(new FieldInsnNode(GETFIELD, InsnComparator.WILDCARD, InsnComparator.WILDCARD, InsnComparator.WILDCARD));
+		InsnComparator noFields = new InsnComparator()
+		{
+			@Override
+			public boolean areInsnsEqual(AbstractInsnNode insn1, AbstractInsnNode insn2)
+			{
+				return insn1.getOpcode() != GETFIELD && super.areInsnsEqual(insn1, insn2);
+			}
+		};
+
+		assertSame(ASMHelper.find(haystack, needle), InsnHasher.find(haystack, needle, new InsnComparator()));
+		assertNull(InsnHasher.find(haystack, needle, noFields));
+	}
+
+}
@@ -0,0 +1,111 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.objectweb.asm.Opcodes.*;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import org.junit.Test;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestInsnListDiff
+{
+	private static InsnList createInsnList(int[] vars)
+	{
+		InsnList insnList = new InsnList();
+		for (int var : vars)
+		{
+			insnList.add(new LabelNode());
+			insnList.add(new VarInsnNode(ALOAD, var));
+		}
+		return insnList;
+	}
+
+	private static int countLinesStartingWith(String text, String prefix)
+	{
+		int count = 0;
+		for (String line : text.split("\n"))
+		{
+			if (line.startsWith(prefix))
+				count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void identicalListsProduceNoOutput() throws IOException
+	{
+		StringWriter sw = new StringWriter();
+		assertEquals(0, InsnListDiff.diff(createInsnList(new int[]{1, 2, 3}), createInsnList(new int[]{1, 2, 3}), InsnListDiff.DEFAULT_CONTEXT, sw));
+		assertEquals("", sw.toString());
+
+		MethodNode method = new MethodNode(ACC_PUBLIC, "test", "()V", null, null);
+		method.instructions.add(new InsnNode(RETURN));
+		assertEquals("", InsnListDiff.diff(method, method));
+	}
+
+	@Test
+	public void onlyChangedHunksAreWritten() throws IOException
+	{
+		int[] before = new int[40];
+		for (int i = 0; i < before.length; i++)
+		{
+			before[i] = i;
+		}
+		int[] after = new int[41];
+		for (int i = 0, j = 0; i < after.length; i++)
+		{
+			if (i == 30)
+				after[i] = 100;
+			else
+				after[i] = before[j++];
+		}
+		after[5] = 200;
+
+		StringWriter sw = new StringWriter();
+		assertEquals(3, InsnListDiff.diff(createInsnList(before), createInsnList(after), 2, sw));
+		String diff = sw.toString();
+		assertEquals(2, countLinesStartingWith(diff, "@@"));
+		assertEquals("@@ -4,5 +4,5 @@", diff.split("\n")[0]);
+		assertEquals(1, countLinesStartingWith(diff, "-"));
+		assertEquals(2, countLinesStartingWith(diff, "+"));
+		assertEquals(8, countLinesStartingWith(diff, " "));
+	}
+
+	@Test
+	public void editScriptsAreMinimal() throws IOException
+	{
+		Random random = new Random(42);
+		for (int iteration = 0; iteration < 200; iteration++)
+		{
+			int[] a = new int[random.nextInt(30)];
+			int[] b = new int[random.nextInt(30)];
+			for (int i = 0; i < a.length; i++)
+			{
+				a[i] = random.nextInt(4);
+			}
+			for (int i = 0; i < b.length; i++)
+			{
+				b[i] = random.nextInt(4);
+			}
+
+			int[][] lcs = new int[a.length + 1][b.length + 1];
+			for (int i = a.length - 1; i >= 0; i--)
+			{
+				for (int j = b.length - 1; j >= 0; j--)
+				{
+					lcs[i][j] = a[i] == b[j] ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+				}
+			}
+
+			StringWriter sw = new StringWriter();
+			int numChanges = InsnListDiff.diff(createInsnList(a), createInsnList(b), 1, sw);
+			assertEquals(a.length + b.length - 2 * lcs[0][0], numChanges);
+			assertEquals(numChanges, countLinesStartingWith(sw.toString(), "-") + countLinesStartingWith(sw.toString(), "+"));
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import org.junit.Test;
+import org.objectweb.asm.tree.*;
+
+public class TestInsnListEditor
+{
+
+	@Test
+	public void editsAreNotAppliedUntilCommit()
+	{
+		InsnList insnList = new InsnList();
+		AbstractInsnNode first = new VarInsnNode(ALOAD, 0);
+		insnList.add(first);
+		insnList.add(new InsnNode(RETURN));
+
+		InsnListEditor editor = new InsnListEditor(insnList);
+		editor.insertBefore(first, new InsnNode(NOP));
+		editor.remove(first);
+		assertEquals(2, insnList.size());
+		assertEquals(first, insnList.getFirst());
+
+		assertEquals(2, editor.commit());
+		assertEquals(2, insnList.size());
+		assertEquals(NOP, insnList.getFirst().getOpcode());
+		assertTrue(editor.isEmpty());
+	}
+
+	@Test
+	public void insertionsAtTheSameAnchorKeepTheirOrder()
+	{
+		InsnList insnList = new InsnList();
+		AbstractInsnNode anchor = new InsnNode(NOP);
+		insnList.add(anchor);
+
+		InsnListEditor editor = new InsnListEditor(insnList);
+		editor.insertBefore(anchor, new VarInsnNode(ALOAD, 0));
+		editor.insertBefore(anchor, new VarInsnNode(ALOAD, 1));
+		editor.insertAfter(anchor, new VarInsnNode(ALOAD, 2));
+		editor.insertAfter(anchor, new VarInsnNode(ALOAD, 3));
+		editor.commit();
+
+		int[] expectedVars = new int[]{0, 1, -1, 2, 3};
+		AbstractInsnNode insn = insnList.getFirst();
+		for (int expectedVar : expectedVars)
+		{
+			if (expectedVar == -1)
+				assertEquals(anchor, insn);
+			else
+				assertEquals(expectedVar, ((VarInsnNode) insn).var);
+			insn = insn.getNext();
+		}
+	}
+
+	@Test
+	public void replacementsOfFoundPatternsMatchFindAndReplace()
+	{
+		TestASMHelper testHelper = new TestASMHelper();
+		InsnList expected = testHelper.populateTestHaystack(new InsnList());
+		InsnList haystack = testHelper.populateTestHaystack(new InsnList());
+
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, 0));
+		needle.add(new FieldInsnNode(GETFIELD, InsnComparator.WILDCARD, "foodLevel", "I"));
+
+		InsnList replacement = new InsnList();
+		replacement.add(new InsnNode(ICONST_0));
+		ASMHelper.findAndReplace(expected, needle, replacement);
+
+		InsnListEditor editor = new InsnListEditor(haystack);
+		InsnList found = ASMHelper.findAndGetFoundInsnList(haystack.getFirst(), needle);
+		InsnList batchedReplacement = new InsnList();
+		batchedReplacement.add(new InsnNode(ICONST_0));
+		editor.replace(found, batchedReplacement);
+		editor.commit();
+
+		assertEquals(expected.size(), haystack.size());
+		for (AbstractInsnNode a = expected.getFirst(), b = haystack.getFirst(); a != null; a = a.getNext(), b = b.getNext())
+		{
+			assertTrue(ASMHelper.instructionsMatch(a, b));
+		}
+	}
+
+}
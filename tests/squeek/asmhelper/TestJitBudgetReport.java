@@ -0,0 +1,104 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class TestJitBudgetReport
+{
+	static
+	{
+		ObfHelper.setObfuscated(false);
+	}
+
+	/**
+	 * @param methodLengths Pairs of method names and the length of their bytecode.
+	 */
+	private static byte[] createClass(Object... methodLengths)
+	{
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "a/Target", null, "java/lang/Object", null);
+		for (int i = 0; i < methodLengths.length; i += 2)
+		{
+			MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, (String) methodLengths[i], "()V", null, null);
+			methodVisitor.visitCode();
+			for (int j = 1; j < (Integer) methodLengths[i + 1]; j++)
+			{
+				methodVisitor.visitInsn(Opcodes.NOP);
+			}
+			methodVisitor.visitInsn(Opcodes.RETURN);
+			methodVisitor.visitMaxs(0, 0);
+			methodVisitor.visitEnd();
+		}
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	@Test
+	public void onlyMethodsThatCrossALimitAreRecorded()
+	{
+		byte[] original = createClass("unchanged", 20, "small", 30, "medium", 300, "tiny", 30, "big", 7990, "alreadyBig", 500);
+		byte[] transformed = createClass("unchanged", 20, "small", 40, "medium", 400, "tiny", 400, "big", 8100, "alreadyBig", 600, "added", 100, "addedHuge", 9000);
+
+		JitBudgetReport report = new JitBudgetReport();
+		List<JitBudgetReport.Entry> entries = report.check("a.Target", original, transformed);
+		assertEquals(8, report.getCheckedMethodCount());
+		assertEquals(5, entries.size());
+
+		String[] expectedNames = new String[]{"small", "medium", "tiny", "big", "addedHuge"};
+		JitBudgetReport.Limit[] expectedLimits = new JitBudgetReport.Limit[]{JitBudgetReport.Limit.MAX_INLINE_SIZE, JitBudgetReport.Limit.FREQ_INLINE_SIZE, JitBudgetReport.Limit.FREQ_INLINE_SIZE, JitBudgetReport.Limit.HUGE_METHOD_LIMIT, JitBudgetReport.Limit.HUGE_METHOD_LIMIT};
+		for (int i = 0; i < entries.size(); i++)
+		{
+			assertEquals(expectedNames[i], entries.get(i).methodName);
+			assertEquals(expectedLimits[i], entries.get(i).limit);
+		}
+		assertEquals(30, entries.get(0).originalLength);
+		assertEquals(40, entries.get(0).transformedLength);
+		assertEquals(-1, entries.get(4).originalLength);
+		assertTrue(report.getReport().startsWith("5 of 8 "));
+
+		JitBudgetReport strictReport = new JitBudgetReport(8000, 325, 10);
+		assertEquals(1, strictReport.check("a.Target", createClass("m", 5), createClass("m", 11, "n", 400)).size());
+	}
+
+	@Test
+	public void registryChecksModifiedClasses()
+	{
+		TransformerRegistry registry = new TransformerRegistry(ClassWriter.COMPUTE_MAXS);
+		registry.register(new IClassNodeTransformer()
+		{
+			@Override
+			public String[] getTargetClassNames()
+			{
+				return new String[]{"a.Target"};
+			}
+
+			@Override
+			public boolean transform(String name, String transformedName, ClassNode classNode)
+			{
+				MethodNode method = classNode.methods.get(0);
+				for (int i = 0; i < 10; i++)
+				{
+					method.instructions.insert(new InsnNode(Opcodes.NOP));
+				}
+				return true;
+			}
+		});
+		JitBudgetReport report = new JitBudgetReport();
+		registry.setJitBudgetReport(report);
+		registry.transform("a.Target", "a.Target", createClass("hook", 30));
+		assertEquals(1, report.getEntries().size());
+		assertEquals(JitBudgetReport.Limit.MAX_INLINE_SIZE, report.getEntries().get(0).limit);
+
+		report.clear();
+		assertEquals(0, report.getEntries().size());
+		assertEquals(0, report.getCheckedMethodCount());
+	}
+}
@@ -0,0 +1,85 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class TestLazyClassNode
+{
+
+	@Test
+	public void methodsAreOnlyReadWhenTheyAreNeeded() throws IOException
+	{
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(ASMHelper.class.getName());
+		ClassNode classNode = ASMHelper.readClassFromBytes(bytes);
+		LazyClassNode lazyClassNode = ASMHelper.readLazyClassFromBytes(bytes);
+
+		assertEquals(classNode.methods.size(), lazyClassNode.methods.size());
+		assertEquals(classNode.methods.size(), lazyClassNode.getUnmaterializedCount());
+		for (MethodNode method : lazyClassNode.methods)
+		{
+			assertEquals(0, method.instructions.size());
+		}
+
+		MethodNode expected = ASMHelper.findMethodNodeOfClass(classNode, "find", "(Lorg/objectweb/asm/tree/InsnList;Lorg/objectweb/asm/tree/InsnList;)Lorg/objectweb/asm/tree/AbstractInsnNode;");
+		MethodNode method = ASMHelper.findMethodNodeOfClass(lazyClassNode, expected.name, expected.desc);
+		assertTrue(lazyClassNode.isMaterialized(method));
+		assertEquals(classNode.methods.size() - 1, lazyClassNode.getUnmaterializedCount());
+		assertEquals(expected.instructions.size(), method.instructions.size());
+		assertEquals(expected.maxLocals, method.maxLocals);
+		assertSame(method, lazyClassNode.getMethod(expected.name, expected.desc));
+	}
+
+	@Test
+	public void unmaterializedMethodsAreWrittenUnchanged() throws IOException
+	{
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(ASMHelper.class.getName());
+		LazyClassNode lazyClassNode = ASMHelper.readLazyClassFromBytes(bytes);
+		MethodNode edited = lazyClassNode.getMethod("isLabelOrLineNumber", null);
+		edited.instructions.insert(new InsnNode(Opcodes.NOP));
+		MethodNode renamed = lazyClassNode.methods.get(lazyClassNode.methods.size() - 1);
+		renamed.name = "renamed";
+		assertFalse(lazyClassNode.isMaterialized(renamed));
+
+		ClassNode original = ASMHelper.readClassFromBytes(bytes);
+		ClassNode written = ASMHelper.readClassFromBytes(ASMHelper.writeClassToBytes(lazyClassNode, ClassWriter.COMPUTE_MAXS));
+		assertEquals(original.methods.size(), written.methods.size());
+		for (int i = 0; i < original.methods.size(); i++)
+		{
+			MethodNode originalMethod = original.methods.get(i);
+			MethodNode writtenMethod = written.methods.get(i);
+			int expectedSize = originalMethod.instructions.size() + (originalMethod.name.equals(edited.name) ? 1 : 0);
+			assertEquals(i == original.methods.size() - 1 ? "renamed" : originalMethod.name, writtenMethod.name);
+			assertEquals(originalMethod.desc, writtenMethod.desc);
+			assertEquals(expectedSize, writtenMethod.instructions.size());
+		}
+		assertEquals(Opcodes.NOP, ASMHelper.findMethodNodeOfClass(written, edited.name, edited.desc).instructions.getFirst().getOpcode());
+	}
+
+	@Test
+	public void unmodifiedMethodsAreCopiedByteForByte() throws IOException
+	{
+		byte[] bytes = ClassBytesProvider.getDefault().getClassBytes(ASMHelper.class.getName());
+		LazyClassNode lazyClassNode = ASMHelper.readLazyClassFromBytes(bytes);
+		byte[] written = ASMHelper.writeClassToBytes(lazyClassNode, 0);
+
+		// only the order of the class attributes (after the methods) can differ
+		FlatClass flatClass = new FlatClass(bytes);
+		FlatClass.Method lastMethod = flatClass.getMethods().get(flatClass.getMethods().size() - 1);
+		int endOfMethods = lastMethod.codeOffset + lastMethod.codeLength;
+		assertEquals(bytes.length, written.length);
+		assertArrayEquals(Arrays.copyOf(bytes, endOfMethods), Arrays.copyOf(written, endOfMethods));
+		assertEquals(lazyClassNode.methods.size(), lazyClassNode.getUnmaterializedCount());
+	}
+
+}
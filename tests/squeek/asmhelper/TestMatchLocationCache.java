@@ -0,0 +1,154 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestMatchLocationCache
+{
+	private MethodNode createMethod()
+	{
+		MethodNode method = new MethodNode(ACC_PUBLIC, "test", "()V", null, null);
+		for (int i = 0; i < 20; i++)
+		{
+			method.instructions.add(new LabelNode());
+			method.instructions.add(new VarInsnNode(ALOAD, 0));
+			method.instructions.add(new FieldInsnNode(GETFIELD, "a", "f" + i, "I"));
+			method.instructions.add(new InsnNode(POP));
+		}
+		method.instructions.add(new InsnNode(RETURN));
+		return method;
+	}
+
+	private InsnList createNeedle()
+	{
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, 0));
+		needle.add(new FieldInsnNode(GETFIELD, "a", "f15", "I"));
+		return needle;
+	}
+
+	@Test
+	public void cachedLocationsAreUsedAndPersisted() throws IOException
+	{
+		File file = File.createTempFile("matches", ".bin");
+		file.delete();
+		try
+		{
+			MatchLocationCache cache = MatchLocationCache.load(file);
+			MethodNode method = createMethod();
+			AbstractInsnNode expected = ASMHelper.find(method.instructions, createNeedle());
+			assertSame(expected, cache.find(method, createNeedle()));
+			assertEquals(1, cache.getMissCount());
+			assertSame(expected, cache.find(method, createNeedle()));
+			assertEquals(1, cache.getHitCount());
+			cache.save();
+
+			MatchLocationCache loaded = MatchLocationCache.load(file);
+			assertEquals(1, loaded.size());
+			MethodNode reloadedMethod = createMethod();
+			assertSame(ASMHelper.find(reloadedMethod.instructions, createNeedle()), loaded.find(reloadedMethod, createNeedle()));
+			assertEquals(1, loaded.getHitCount());
+			assertEquals(0, loaded.getMissCount());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void changedMethodsFallBackToAFullSearch()
+	{
+		MatchLocationCache cache = new MatchLocationCache(null);
+		MethodNode method = createMethod();
+		cache.find(method, createNeedle());
+
+		MethodNode changedMethod = createMethod();
+		changedMethod.instructions.insert(new InsnNode(NOP));
+		assertSame(ASMHelper.find(changedMethod.instructions, createNeedle()), cache.find(changedMethod, createNeedle()));
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void findAndReplaceUsesTheCachedLocation()
+	{
+		MatchLocationCache cache = new MatchLocationCache(null);
+		cache.find(createMethod(), createNeedle());
+
+		MethodNode method = createMethod();
+		InsnList replacement = new InsnList();
+		replacement.add(new InsnNode(ACONST_NULL));
+		AbstractInsnNode after = cache.findAndReplace(method, createNeedle(), replacement);
+		assertEquals(POP, after.getOpcode());
+		assertEquals(ACONST_NULL, after.getPrevious().getOpcode());
+		assertEquals(1, cache.getHitCount());
+		assertNull(ASMHelper.find(method.instructions, createNeedle()));
+	}
+
+	@Test
+	public void hitsCompareFewerInstructionsThanMisses()
+	{
+		final int[] comparisons = new int[1];
+		TransformContext context = new TransformContext(null, TransformContext.FML_REMAPPER);
+		context.setInsnComparator(new InsnComparator()
+		{
+			@Override
+			public boolean areInsnsEqual(AbstractInsnNode insn1, AbstractInsnNode insn2)
+			{
+				comparisons[0]++;
+				return super.areInsnsEqual(insn1, insn2);
+			}
+		});
+		MatchLocationCache cache = new MatchLocationCache(null, context);
+		MethodNode method = createMethod();
+		long fingerprint = MatchLocationCache.fingerprint(method);
+
+		cache.find(method, fingerprint, createNeedle());
+		int missComparisons = comparisons[0];
+		comparisons[0] = 0;
+		cache.find(method, fingerprint, createNeedle());
+		int hitComparisons = comparisons[0];
+
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(createNeedle().size(), hitComparisons);
+		assertTrue(hitComparisons < missComparisons);
+	}
+
+	@Test
+	public void fingerprintsOfClassBytesOnlyChangeWithTheBytecode()
+	{
+		ClassNode classNode = new ClassNode();
+		classNode.version = V1_6;
+		classNode.name = "a/Target";
+		classNode.superName = "java/lang/Object";
+		classNode.methods.add(createMethod());
+		byte[] bytes = ASMHelper.writeClassToBytes(classNode, ClassWriter.COMPUTE_MAXS);
+
+		FlatClass flatClass = new FlatClass(bytes);
+		FlatClass reread = new FlatClass(bytes.clone());
+		long fingerprint = MatchLocationCache.fingerprint(flatClass, flatClass.findMethod("test", "()V"));
+		assertEquals(fingerprint, MatchLocationCache.fingerprint(reread, reread.findMethod("test", "()V")));
+
+		classNode.methods.get(0).instructions.insert(new InsnNode(NOP));
+		FlatClass changed = new FlatClass(ASMHelper.writeClassToBytes(classNode, ClassWriter.COMPUTE_MAXS));
+		assertFalse(fingerprint == MatchLocationCache.fingerprint(changed, changed.findMethod("test", "()V")));
+	}
+}
@@ -0,0 +1,85 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class TestMemberReferenceIndex
+{
+
+	@Test
+	public void referencesAreIndexedByTarget() throws IOException
+	{
+		List<File> jars = Collections.singletonList(createTestJar());
+		MemberReferenceIndex index = MemberReferenceIndex.build(jars, 2);
+
+		List<MemberReferenceIndex.Reference> callers = index.getCallers("a/Target", "run", "()V");
+		assertEquals(2, callers.size());
+		assertEquals("a/Caller.first()V", callers.get(0).toString());
+		assertEquals("a/Caller.second()V", callers.get(1).toString());
+		assertEquals(2, index.getReferences("a/Target", "run", null).size());
+
+		List<MemberReferenceIndex.Reference> writers = index.getFieldAccesses("a/Target", "count", "I", false);
+		assertEquals(1, writers.size());
+		assertEquals(Opcodes.PUTSTATIC, writers.get(0).opcode);
+		assertEquals(0, index.getFieldAccesses("a/Target", "count", "I", true).size());
+		assertEquals(0, index.getReferences("a/Target", "missing", null).size());
+	}
+
+	@Test
+	public void savedIndexIsReloadedWhileTheJarsAreUnchanged() throws IOException
+	{
+		List<File> jars = Collections.singletonList(createTestJar());
+		File indexFile = File.createTempFile("asmhelper", ".bin");
+		indexFile.deleteOnExit();
+
+		MemberReferenceIndex built = MemberReferenceIndex.build(jars, 1);
+		built.save(indexFile);
+		MemberReferenceIndex loaded = MemberReferenceIndex.load(indexFile, jars);
+		assertNotNull(loaded);
+		assertEquals(built.size(), loaded.size());
+		assertEquals(2, loaded.getCallers("a/Target", "run", "()V").size());
+	}
+
+	private static File createTestJar() throws IOException
+	{
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "a/Caller", null, "java/lang/Object", null);
+		String[] methodNames = new String[]{"first", "second"};
+		for (String methodName : methodNames)
+		{
+			MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, methodName, "()V", null, null);
+			methodVisitor.visitCode();
+			methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, "a/Target", "run", "()V", false);
+			if (methodName.equals("second"))
+			{
+				methodVisitor.visitInsn(Opcodes.ICONST_1);
+				methodVisitor.visitFieldInsn(Opcodes.PUTSTATIC, "a/Target", "count", "I");
+			}
+			methodVisitor.visitInsn(Opcodes.RETURN);
+			methodVisitor.visitMaxs(0, 0);
+			methodVisitor.visitEnd();
+		}
+		classWriter.visitEnd();
+
+		File jar = File.createTempFile("asmhelper", ".jar");
+		jar.deleteOnExit();
+		JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jar));
+		jarStream.putNextEntry(new ZipEntry("a/Caller.class"));
+		jarStream.write(classWriter.toByteArray());
+		jarStream.closeEntry();
+		jarStream.close();
+		return jar;
+	}
+
+}
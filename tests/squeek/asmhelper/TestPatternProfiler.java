@@ -0,0 +1,95 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import java.util.List;
+import org.junit.Test;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestPatternProfiler
+{
+
+	private static InsnList createNeedle()
+	{
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, InsnComparator.INT_WILDCARD));
+		needle.add(new FieldInsnNode(GETFIELD, InsnComparator.WILDCARD, InsnComparator.WILDCARD, InsnComparator.WILDCARD));
+		return needle;
+	}
+
+	@Test
+	public void dryRunFindsWhatFindAndReplaceAllWouldReplaceWithoutModifyingTheHaystack()
+	{
+		InsnList haystack = new TestASMHelper().populateTestHaystack(new InsnList());
+		InsnList needle = createNeedle();
+		int size = haystack.size();
+
+		PatternProfiler profiler = new PatternProfiler();
+		List<PatternProfiler.Match> matches = profiler.dryRunFindAll(haystack, needle);
+		assertEquals(size, haystack.size());
+		assertEquals(6, matches.size());
+		for (PatternProfiler.Match match : matches)
+		{
+			assertSame(haystack.get(match.offset), match.first);
+			assertEquals(ALOAD, match.first.getOpcode());
+			assertEquals(GETFIELD, match.last.getOpcode());
+		}
+		assertEquals(6, ASMHelper.findAndReplaceAll(haystack, needle, new InsnList()));
+
+		PatternProfiler.PatternStats stats = profiler.getStats(needle);
+		assertEquals(7, stats.searches);
+		assertEquals(6, stats.matches);
+		assertTrue(stats.comparisons >= 12);
+	}
+
+	@Test
+	public void activeProfilerRecordsSearchesMadeThroughASMHelper()
+	{
+		InsnList haystack = new TestASMHelper().populateTestHaystack(new InsnList());
+		InsnList needle = createNeedle();
+
+		PatternProfiler profiler = new PatternProfiler();
+		profiler.setPatternName(needle, "aload getfield");
+		PatternProfiler.setActive(profiler);
+		try
+		{
+			assertNotNull(ASMHelper.find(haystack, needle));
+		}
+		finally
+		{
+			PatternProfiler.setActive(null);
+		}
+		ASMHelper.find(haystack, needle);
+
+		PatternProfiler.PatternStats stats = profiler.getStats(needle);
+		assertEquals("aload getfield", stats.name);
+		assertEquals(1, stats.searches);
+		assertEquals(1, stats.matches);
+		assertEquals(1, stats.candidates);
+		assertEquals(2, stats.comparisons);
+	}
+
+	@Test
+	public void eachContextRecordsOnlyItsOwnSearches()
+	{
+		InsnList haystack = new TestASMHelper().populateTestHaystack(new InsnList());
+		InsnList needle = createNeedle();
+
+		TransformContext context = new TransformContext(null, TransformContext.FML_REMAPPER);
+		PatternProfiler profiler = new PatternProfiler();
+		context.setPatternProfiler(profiler);
+		ASMHelper.find(haystack, needle);
+		assertNull(profiler.getStats(needle));
+
+		assertNotNull(context.find(haystack, needle));
+		assertEquals(1, profiler.getStats(needle).searches);
+		assertNull(PatternProfiler.getActive());
+	}
+
+}
@@ -0,0 +1,127 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.objectweb.asm.Opcodes.*;
+import java.lang.reflect.Method;
+import java.util.EnumSet;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import squeek.asmhelper.PeepholeOptimizer.Rule;
+
+public class TestPeepholeOptimizer
+{
+
+	@Test
+	public void redundantGotosAndBoxingRoundTripsAreRemoved()
+	{
+		InsnList insnList = new InsnList();
+		LabelNode label = new LabelNode();
+		insnList.add(new VarInsnNode(ILOAD, 1));
+		insnList.add(new MethodInsnNode(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;", false));
+		insnList.add(new MethodInsnNode(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I", false));
+		insnList.add(new JumpInsnNode(GOTO, label));
+		insnList.add(new LineNumberNode(10, label));
+		insnList.add(label);
+		insnList.add(new InsnNode(IRETURN));
+
+		PeepholeOptimizer optimizer = new PeepholeOptimizer();
+		assertEquals(2, optimizer.optimize(insnList));
+		assertEquals(1, optimizer.getHits(Rule.BOXING_ROUND_TRIP));
+		assertEquals(1, optimizer.getHits(Rule.REDUNDANT_GOTO));
+		assertEquals(4, insnList.size());
+	}
+
+	@Test
+	public void removalsCascadeIntoNewMatches()
+	{
+		InsnList insnList = new InsnList();
+		insnList.add(new VarInsnNode(ALOAD, 0));
+		insnList.add(new VarInsnNode(ALOAD, 1));
+		insnList.add(new TypeInsnNode(CHECKCAST, "java/lang/Object"));
+		insnList.add(new InsnNode(POP));
+		insnList.add(new InsnNode(POP));
+		insnList.add(new InsnNode(RETURN));
+
+		PeepholeOptimizer optimizer = new PeepholeOptimizer();
+		assertEquals(3, optimizer.optimize(insnList));
+		assertEquals(2, optimizer.getHits(Rule.PUSH_POP));
+		assertEquals(1, insnList.size());
+	}
+
+	@Test
+	public void storeLoadPairsAreOnlyRemovedWhenTheLocalIsUnused()
+	{
+		MethodNode method = new MethodNode(ACC_STATIC, "test", "(I)I", null, null);
+		method.maxLocals = 3;
+		method.instructions.add(new VarInsnNode(ILOAD, 0));
+		method.instructions.add(new VarInsnNode(ISTORE, 1));
+		method.instructions.add(new VarInsnNode(ILOAD, 1));
+		method.instructions.add(new VarInsnNode(ISTORE, 2));
+		method.instructions.add(new VarInsnNode(ILOAD, 2));
+		method.instructions.add(new VarInsnNode(ILOAD, 2));
+		method.instructions.add(new InsnNode(IADD));
+		method.instructions.add(new InsnNode(IRETURN));
+
+		PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.STORE_LOAD));
+		assertEquals(1, optimizer.optimize(method));
+		assertEquals(6, method.instructions.size());
+		assertEquals(ISTORE, method.instructions.getFirst().getNext().getOpcode());
+		assertEquals(2, ((VarInsnNode) method.instructions.getFirst().getNext()).var);
+	}
+
+	@Test
+	public void tryCatchBlocksAreNeverLeftEmpty() throws Exception
+	{
+		MethodNode method = new MethodNode(ACC_PUBLIC | ACC_STATIC, "test", "()V", null, null);
+		LabelNode start = new LabelNode();
+		LabelNode end = new LabelNode();
+		LabelNode handler = new LabelNode();
+		method.instructions.add(start);
+		method.instructions.add(new InsnNode(NOP));
+		method.instructions.add(end);
+		method.instructions.add(new InsnNode(NOP));
+		method.instructions.add(new InsnNode(RETURN));
+		method.instructions.add(handler);
+		method.instructions.add(new InsnNode(ATHROW));
+		method.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, "java/lang/Throwable"));
+
+		PeepholeOptimizer optimizer = new PeepholeOptimizer();
+		assertEquals(1, optimizer.optimize(method));
+		assertEquals(NOP, start.getNext().getOpcode());
+
+		ClassNode classNode = new ClassNode();
+		classNode.version = V1_6;
+		classNode.access = ACC_PUBLIC;
+		classNode.name = "a/PeepholeTarget";
+		classNode.superName = "java/lang/Object";
+		classNode.methods.add(method);
+		final byte[] bytes = ASMHelper.writeClassToBytes(classNode, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		Class<?> loaded = new ClassLoader(getClass().getClassLoader())
+		{
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException
+			{
+				return defineClass(name, bytes, 0, bytes.length);
+			}
+		}.loadClass("a.PeepholeTarget");
+		Method loadedMethod = loaded.getMethod("test");
+		loadedMethod.invoke(null);
+	}
+
+	@Test
+	public void methodTypeConstantsAreNotClasses()
+	{
+		InsnList insnList = new InsnList();
+		insnList.add(new LdcInsnNode(Type.getMethodType("()V")));
+		insnList.add(new TypeInsnNode(CHECKCAST, "java/lang/Class"));
+		insnList.add(new LdcInsnNode(Type.getObjectType("a/Target")));
+		insnList.add(new TypeInsnNode(CHECKCAST, "java/lang/Class"));
+
+		PeepholeOptimizer optimizer = new PeepholeOptimizer(EnumSet.of(Rule.REDUNDANT_CHECKCAST));
+		assertEquals(1, optimizer.optimize(insnList));
+		assertEquals(3, insnList.size());
+		assertEquals(CHECKCAST, insnList.get(1).getOpcode());
+	}
+}
@@ -0,0 +1,39 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import java.io.IOException;
+import org.junit.Test;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class TestStringPool
+{
+
+	@Test
+	public void equalStringsAreTheSameInstance()
+	{
+		String first = new String("net/minecraft/entity/Entity");
+		String second = new String("net/minecraft/entity/Entity");
+		assertNotSame(first, second);
+		assertSame(StringPool.intern(first), StringPool.intern(second));
+		assertNull(StringPool.intern(null));
+	}
+
+	@Test
+	public void classesReadByASMHelperShareNamesAndDescriptors() throws IOException
+	{
+		ClassNode first = ASMHelper.readClassFromBytes(ASMHelper.getClassBytes(ASMHelper.class.getName()));
+		ClassNode second = ASMHelper.readClassFromBytes(ASMHelper.getClassBytes(InsnComparator.class.getName()));
+		assertSame(first.superName, second.superName);
+
+		MethodNode firstConstructor = ASMHelper.findMethodNodeOfClass(first, "<init>", "()V");
+		MethodNode secondConstructor = ASMHelper.findMethodNodeOfClass(second, "<init>", "()V");
+		assertEquals(firstConstructor.desc, secondConstructor.desc);
+		assertSame(firstConstructor.name, secondConstructor.name);
+		assertSame(firstConstructor.desc, secondConstructor.desc);
+	}
+
+}
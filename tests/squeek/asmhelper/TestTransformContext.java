@@ -0,0 +1,170 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestTransformContext
+{
+	static
+	{
+		ObfHelper.setObfuscated(false);
+	}
+
+	private static InsnComparator createVarIgnoringComparator()
+	{
+		return new InsnComparator()
+		{
+			@Override
+			protected boolean intValuesMatch(int first, int second)
+			{
+				return true;
+			}
+		};
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void staticMethodsUseTheDefaultContext()
+	{
+		TransformContext defaultContext = TransformContext.getDefault();
+		assertFalse(defaultContext.isObfuscated());
+		assertSame(ClassHierarchy.getDefault(), defaultContext.getClassHierarchy());
+		assertSame(ASMHelper.insnComparator, defaultContext.getInsnComparator());
+		InsnComparator original = ASMHelper.insnComparator;
+		try
+		{
+			ASMHelper.insnComparator = createVarIgnoringComparator();
+			assertSame(ASMHelper.insnComparator, defaultContext.getInsnComparator());
+			assertTrue(ASMHelper.instructionsMatch(new VarInsnNode(Opcodes.ALOAD, 1), new VarInsnNode(Opcodes.ALOAD, 2)));
+		}
+		finally
+		{
+			ASMHelper.insnComparator = original;
+		}
+
+		long classesRead = defaultContext.getClassesRead();
+		ClassNode classNode = new ClassNode();
+		classNode.version = Opcodes.V1_6;
+		classNode.name = "a/Target";
+		classNode.superName = "java/lang/Object";
+		byte[] bytes = ASMHelper.writeClassToBytes(classNode, ClassWriter.COMPUTE_MAXS);
+		ASMHelper.readClassFromBytes(bytes);
+		assertEquals(classesRead + 1, defaultContext.getClassesRead());
+	}
+
+	@Test
+	public void contextsHaveIndependentSettings()
+	{
+		TransformContext obfuscated = new TransformContext(new ClassHierarchy(new ClassBytesProvider(null, 0)), TransformContext.FML_REMAPPER);
+		obfuscated.setObfuscated(true);
+		obfuscated.setInsnComparator(createVarIgnoringComparator());
+
+		assertTrue(obfuscated.isObfuscated());
+		assertFalse(ObfHelper.isObfuscated());
+		AbstractInsnNode first = new VarInsnNode(Opcodes.ALOAD, 1);
+		AbstractInsnNode second = new VarInsnNode(Opcodes.ALOAD, 2);
+		assertTrue(obfuscated.instructionsMatch(first, second));
+		assertFalse(ASMHelper.instructionsMatch(first, second));
+	}
+
+	@Test
+	public void searchesUseTheComparatorOfTheirContext() throws IOException
+	{
+		TransformContext context = new TransformContext(null, TransformContext.FML_REMAPPER);
+		context.setInsnComparator(createVarIgnoringComparator());
+
+		InsnList haystack = new InsnList();
+		haystack.add(new VarInsnNode(Opcodes.ALOAD, 2));
+		haystack.add(new InsnNode(Opcodes.ARETURN));
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(Opcodes.ALOAD, 1));
+
+		assertNull(ASMHelper.find(haystack, needle));
+		assertSame(haystack.getFirst(), context.find(haystack, needle));
+		assertTrue(context.checkForPatternAt(needle, haystack.getFirst()).size() > 0);
+		assertTrue(ClassSearch.findAll(haystack, needle).isEmpty());
+		assertEquals(1, ClassSearch.findAll(haystack, needle, context.getInsnComparator()).size());
+
+		InsnList changed = new InsnList();
+		changed.add(new VarInsnNode(Opcodes.ALOAD, 1));
+		changed.add(new InsnNode(Opcodes.ARETURN));
+		assertEquals(2, InsnListDiff.diff(haystack, changed, InsnListDiff.DEFAULT_CONTEXT, new StringWriter()));
+		assertEquals(0, InsnListDiff.diff(haystack, changed, InsnListDiff.DEFAULT_CONTEXT, context.getInsnComparator(), new StringWriter()));
+
+		InsnList replacement = new InsnList();
+		replacement.add(new InsnNode(Opcodes.ACONST_NULL));
+		assertEquals(1, context.findAndReplaceAll(haystack, needle, replacement));
+		assertEquals(Opcodes.ACONST_NULL, haystack.getFirst().getOpcode());
+	}
+
+	@Test
+	public void contextsCanHaveTheirOwnRemapper()
+	{
+		TransformContext context = new TransformContext(null, new IClassNameRemapper()
+		{
+			@Override
+			public String map(String obfName)
+			{
+				return obfName.equals("abc") ? "a/Target" : obfName;
+			}
+
+			@Override
+			public String unmap(String deobfName)
+			{
+				return deobfName.equals("a/Target") ? "abc" : deobfName;
+			}
+		});
+		context.setObfuscated(true);
+		assertEquals("a.Target", context.toDeobfClassName("abc"));
+		assertEquals("abc", context.getInternalClassName("a.Target"));
+		assertEquals("a.Target", ObfHelper.toDeobfClassName("a.Target"));
+	}
+
+	@Test
+	public void printingFromMultipleThreadsDoesNotMixOutput() throws InterruptedException
+	{
+		final TransformContext context = TransformContext.getDefault();
+		final AtomicInteger mismatches = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int var = i;
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					InsnList insnList = new InsnList();
+					insnList.add(new VarInsnNode(Opcodes.ALOAD, var));
+					insnList.add(new InsnNode(Opcodes.ARETURN));
+					String expected = context.getInsnListAsString(insnList);
+					for (int j = 0; j < 1000; j++)
+					{
+						if (!expected.equals(context.getInsnListAsString(insnList)))
+							mismatches.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertEquals(0, mismatches.get());
+	}
+}
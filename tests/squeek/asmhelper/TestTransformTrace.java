@@ -0,0 +1,110 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.objectweb.asm.Opcodes.*;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Test;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+public class TestTransformTrace
+{
+
+	@Test
+	public void findsAndReadsAreRecordedWhenEnabled() throws IOException
+	{
+		InsnList haystack = new InsnList();
+		new TestASMHelper().populateTestHaystack(haystack);
+		InsnList needle = new InsnList();
+		needle.add(new VarInsnNode(ALOAD, 0));
+		TransformTrace.registerPattern(needle, "aload 0");
+
+		TransformTrace.clear();
+		ASMHelper.find(haystack, needle);
+		assertEquals(0, TransformTrace.getEvents().size());
+
+		TransformTrace.setEnabled(true);
+		try
+		{
+			TransformTrace.setContext("a.Target", "method");
+			ASMHelper.find(haystack, needle);
+			InsnList missing = new InsnList();
+			missing.add(new InsnNode(MONITORENTER));
+			ASMHelper.find(haystack, missing);
+			TransformTrace.clearContext();
+			ASMHelper.readClassFromBytes(ASMHelper.getClassBytes(InsnComparator.class.getName()));
+		}
+		finally
+		{
+			TransformTrace.setEnabled(false);
+		}
+
+		List<TransformTrace.Event> events = TransformTrace.getEvents();
+		assertEquals(3, events.size());
+		assertEquals(TransformTrace.EventType.FIND, events.get(0).type);
+		assertEquals("a.Target", events.get(0).className);
+		assertEquals("method", events.get(0).methodName);
+		assertEquals(System.identityHashCode(needle), events.get(0).patternId);
+		assertEquals("aload 0", events.get(0).patternName);
+		assertEquals(haystack.indexOf(ASMHelper.find(haystack, needle)), events.get(0).offset);
+		assertNull(events.get(1).patternName);
+		assertEquals(-1, events.get(1).offset);
+		assertEquals(TransformTrace.EventType.READ, events.get(2).type);
+		assertEquals("squeek/asmhelper/InsnComparator", events.get(2).className);
+		assertNull(events.get(2).methodName);
+	}
+
+	@Test
+	public void onlyTheMostRecentEventsAreKept()
+	{
+		TransformTrace.setCapacity(4);
+		TransformTrace.setEnabled(true);
+		try
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				TransformTrace.recordClass(TransformTrace.EventType.WRITE, "a.Class" + i, System.nanoTime());
+			}
+		}
+		finally
+		{
+			TransformTrace.setEnabled(false);
+		}
+
+		List<TransformTrace.Event> events = TransformTrace.getEvents();
+		assertEquals(4, events.size());
+		assertEquals(6, events.get(0).sequence);
+		assertEquals("a.Class9", events.get(3).className);
+		TransformTrace.setCapacity(TransformTrace.DEFAULT_CAPACITY);
+	}
+
+	@Test
+	public void namesOfManyClassesAreKept()
+	{
+		TransformTrace.setCapacity(4096);
+		TransformTrace.setEnabled(true);
+		try
+		{
+			for (int i = 0; i < 3000; i++)
+			{
+				TransformTrace.recordClass(TransformTrace.EventType.READ, "a.Many" + i, System.nanoTime());
+			}
+		}
+		finally
+		{
+			TransformTrace.setEnabled(false);
+		}
+
+		List<TransformTrace.Event> events = TransformTrace.getEvents();
+		assertEquals(3000, events.size());
+		for (int i = 0; i < events.size(); i++)
+		{
+			assertEquals("a.Many" + i, events.get(i).className);
+		}
+		TransformTrace.setCapacity(TransformTrace.DEFAULT_CAPACITY);
+	}
+
+}
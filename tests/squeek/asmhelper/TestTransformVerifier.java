@@ -0,0 +1,123 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.objectweb.asm.Opcodes.*;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+public class TestTransformVerifier
+{
+	private static class TestHierarchy extends ClassHierarchy
+	{
+		TestHierarchy()
+		{
+			super(new ClassBytesProvider(null, 0));
+		}
+
+		@Override
+		public ClassInfo getClassInfo(String internalName)
+		{
+			if (internalName.equals("a/Base"))
+				return new ClassInfo("a/Base", "java/lang/Object", new String[0], ACC_PUBLIC);
+			if (internalName.equals("a/Child") || internalName.equals("a/Other"))
+				return new ClassInfo(internalName, "a/Base", new String[0], ACC_PUBLIC);
+			return null;
+		}
+	}
+
+	private static void addReturnArgumentMethod(ClassWriter classWriter, String name, String desc)
+	{
+		MethodVisitor mv = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, name, desc, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+	}
+
+	private static byte[] createTestClass()
+	{
+		ClassWriter classWriter = new ClassWriter(0);
+		classWriter.visit(V1_6, ACC_PUBLIC, "a/Test", null, "java/lang/Object", null);
+		addReturnArgumentMethod(classWriter, "widening", "(La/Child;)La/Base;");
+		addReturnArgumentMethod(classWriter, "unrelated", "(La/Other;)La/Child;");
+		addReturnArgumentMethod(classWriter, "missing", "(La/Missing;)La/Child;");
+
+		MethodVisitor mv = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, "underflow", "()I", null, null);
+		mv.visitCode();
+		mv.visitInsn(IADD);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(2, 0);
+		mv.visitEnd();
+
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	@Test
+	public void brokenMethodsAreReportedWithTheFailingInstruction()
+	{
+		TransformVerifier verifier = new TransformVerifier(new TestHierarchy(), 1, 1);
+		List<TransformVerifier.Failure> failures = verifier.verify("a.Test", createTestClass());
+		verifier.shutdown();
+
+		assertEquals(2, failures.size());
+		assertEquals("unrelated", failures.get(0).methodName);
+		assertEquals(1, failures.get(0).insnIndex);
+		assertEquals("underflow", failures.get(1).methodName);
+		assertEquals(0, failures.get(1).insnIndex);
+		assertTrue(failures.get(1).dump.contains("> 0"));
+	}
+
+	@Test
+	public void submittedClassesAreSampledAndVerifiedInTheBackground() throws InterruptedException
+	{
+		TransformVerifier verifier = new TransformVerifier(new TestHierarchy(), 2, 2);
+		byte[] testClass = createTestClass();
+		assertTrue(verifier.submit("a.Test", testClass));
+		assertFalse(verifier.submit("a.Test", testClass));
+		assertTrue(verifier.submit("a.Test", testClass));
+		verifier.shutdown();
+		assertTrue(verifier.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(2, verifier.getVerifiedCount());
+		assertEquals(4, verifier.getFailures().size());
+		assertFalse(verifier.submit("a.Test", testClass));
+	}
+
+	@Test
+	public void submitDoesNotQueueMoreClassesThanTheQueueCapacity() throws InterruptedException
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		TransformVerifier verifier = new TransformVerifier(new TestHierarchy()
+		{
+			@Override
+			public ClassInfo getClassInfo(String internalName)
+			{
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				return super.getClassInfo(internalName);
+			}
+		}, 1, 1, 1);
+		byte[] testClass = createTestClass();
+		assertTrue(verifier.submit("a.Test", testClass));
+		verifier.submit("a.Test", testClass);
+		// at most one class is being verified and one is queued
+		assertFalse(verifier.submit("a.Test", testClass));
+		release.countDown();
+		verifier.shutdown();
+		assertTrue(verifier.awaitTermination(10, TimeUnit.SECONDS));
+	}
+}
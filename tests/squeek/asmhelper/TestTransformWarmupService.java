@@ -0,0 +1,168 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.minecraft.launchwrapper.IClassTransformer;
+import org.junit.Test;
+
+public class TestTransformWarmupService
+{
+	private static final String CLASS_NAME = ASMHelper.class.getName();
+
+	private static class CountingTransformer implements IClassTransformer
+	{
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public byte[] transform(String name, String transformedName, byte[] basicClass)
+		{
+			calls.incrementAndGet();
+			byte[] transformed = Arrays.copyOf(basicClass, basicClass.length + 1);
+			transformed[basicClass.length] = 42;
+			return transformed;
+		}
+	}
+
+	@Test
+	public void warmedUpClassesAreOnlyTransformedOnce() throws IOException
+	{
+		CountingTransformer transformer = new CountingTransformer();
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(getClass().getClassLoader(), 0);
+		TransformWarmupService service = new TransformWarmupService(transformer, classBytesProvider, 2);
+		List<String[]> classNames = new ArrayList<String[]>();
+		classNames.add(new String[]{CLASS_NAME, CLASS_NAME});
+		service.warmUp(classNames);
+
+		byte[] bytes = classBytesProvider.getClassBytes(CLASS_NAME);
+		byte[] transformed = service.transform(CLASS_NAME, CLASS_NAME, bytes);
+		assertEquals(bytes.length + 1, transformed.length);
+		assertEquals(1, transformer.calls.get());
+		assertEquals(1, service.getHitCount());
+
+		// the result is only used once
+		service.transform(CLASS_NAME, CLASS_NAME, bytes);
+		assertEquals(2, transformer.calls.get());
+		assertEquals(1, service.getMissCount());
+		service.shutdown();
+	}
+
+	@Test
+	public void resultsAreNotUsedWhenTheInputBytesDiffer() throws IOException
+	{
+		CountingTransformer transformer = new CountingTransformer();
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(getClass().getClassLoader(), 0);
+		TransformWarmupService service = new TransformWarmupService(transformer, classBytesProvider, 1);
+		List<String[]> classNames = new ArrayList<String[]>();
+		classNames.add(new String[]{CLASS_NAME, CLASS_NAME});
+		service.warmUp(classNames);
+
+		byte[] bytes = classBytesProvider.getClassBytes(CLASS_NAME).clone();
+		bytes[bytes.length - 1]++;
+		byte[] transformed = service.transform(CLASS_NAME, CLASS_NAME, bytes);
+		assertEquals(bytes[bytes.length - 1], transformed[bytes.length - 1]);
+		assertEquals(0, service.getHitCount());
+		assertEquals(1, service.getMissCount());
+		service.shutdown();
+	}
+
+	@Test
+	public void classesChangedBeforeReachingTheServiceAreNotWarmedUp() throws IOException, InterruptedException
+	{
+		CountingTransformer transformer = new CountingTransformer();
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(getClass().getClassLoader(), 0);
+		byte[] bytes = classBytesProvider.getClassBytes(CLASS_NAME).clone();
+		bytes[bytes.length - 1]++;
+
+		// record the bytes the class is actually loaded with, as changed by an earlier transformer
+		TransformWarmupService recorder = new TransformWarmupService(transformer, classBytesProvider, 1);
+		recorder.startRecording();
+		recorder.transform(CLASS_NAME, CLASS_NAME, bytes);
+		recorder.shutdown();
+		List<String[]> classNames = recorder.getLoadedClasses();
+		assertEquals(Long.toHexString(TransformWarmupService.hash(bytes)), classNames.get(0)[2]);
+
+		transformer.calls.set(0);
+		TransformWarmupService service = new TransformWarmupService(transformer, classBytesProvider, 1);
+		service.warmUp(classNames);
+		for (int i = 0; i < 100 && service.getMismatchCount() == 0; i++)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(1, service.getMismatchCount());
+		assertEquals(0, transformer.calls.get());
+
+		service.transform(CLASS_NAME, CLASS_NAME, bytes);
+		assertEquals(0, service.getHitCount());
+		assertEquals(1, service.getMissCount());
+		assertEquals(1, transformer.calls.get());
+		service.shutdown();
+	}
+
+	@Test
+	public void resultsOfClassesThatAreNotLoadedAreDiscarded() throws IOException, InterruptedException
+	{
+		CountingTransformer transformer = new CountingTransformer();
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(getClass().getClassLoader(), 0);
+		TransformWarmupService service = new TransformWarmupService(transformer, classBytesProvider, 1);
+		service.setLoadWindow(0);
+		List<String[]> classNames = new ArrayList<String[]>();
+		classNames.add(new String[]{CLASS_NAME, CLASS_NAME});
+		service.warmUp(classNames);
+
+		for (int i = 0; i < 10000 && service.getUnusedCount() == 0; i++)
+		{
+			service.transform("abc", "a.Other" + i, new byte[0]);
+			if (i % 64 == 0)
+				Thread.sleep(1);
+		}
+		assertEquals(1, service.getUnusedCount());
+
+		service.transform(CLASS_NAME, CLASS_NAME, classBytesProvider.getClassBytes(CLASS_NAME));
+		assertEquals(0, service.getHitCount());
+		service.shutdown();
+	}
+
+	@Test
+	public void unusedResultsCanBeDiscarded() throws IOException
+	{
+		CountingTransformer transformer = new CountingTransformer();
+		ClassBytesProvider classBytesProvider = new ClassBytesProvider(getClass().getClassLoader(), 0);
+		TransformWarmupService service = new TransformWarmupService(transformer, classBytesProvider, 1);
+		List<String[]> classNames = new ArrayList<String[]>();
+		classNames.add(new String[]{CLASS_NAME, CLASS_NAME});
+		service.warmUp(classNames);
+		service.discardUnusedResults();
+		assertEquals(1, service.getUnusedCount());
+
+		service.transform(CLASS_NAME, CLASS_NAME, classBytesProvider.getClassBytes(CLASS_NAME));
+		assertEquals(0, service.getHitCount());
+		assertEquals(1, service.getMissCount());
+		service.shutdown();
+	}
+
+	@Test
+	public void loadedClassesCanBeSavedAndReloaded() throws IOException
+	{
+		TransformWarmupService service = new TransformWarmupService(new CountingTransformer(), new ClassBytesProvider(null, 0), 1);
+		service.startRecording();
+		service.transform("abc", "net.minecraft.world.World", new byte[0]);
+		service.transform("abd", "net.minecraft.entity.Entity", new byte[0]);
+		File file = File.createTempFile("asmhelper", ".txt");
+		file.deleteOnExit();
+		service.saveLoadedClasses(file);
+		service.shutdown();
+
+		List<String[]> classNames = TransformWarmupService.loadClassList(file);
+		assertEquals(2, classNames.size());
+		String emptyHash = Long.toHexString(TransformWarmupService.hash(new byte[0]));
+		assertArrayEquals(new String[]{"abc", "net.minecraft.world.World", emptyHash}, classNames.get(0));
+		assertArrayEquals(new String[]{"abd", "net.minecraft.entity.Entity", emptyHash}, classNames.get(1));
+	}
+
+}
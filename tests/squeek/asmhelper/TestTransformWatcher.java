@@ -0,0 +1,154 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import net.minecraft.launchwrapper.IClassTransformer;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+
+public class TestTransformWatcher
+{
+	static
+	{
+		ObfHelper.setObfuscated(false);
+	}
+
+	private static class CountingTransformer implements IClassTransformer
+	{
+		int transformed = 0;
+
+		@Override
+		public byte[] transform(String name, String transformedName, byte[] bytes)
+		{
+			transformed++;
+			if (!name.equals("a.Target"))
+				return bytes;
+			ClassNode classNode = ASMHelper.readClassFromBytes(bytes);
+			classNode.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, "added", "I", null, null));
+			return ASMHelper.writeClassToBytes(classNode, ClassWriter.COMPUTE_MAXS);
+		}
+	}
+
+	@Test
+	public void onlyChangedClassesAndTheirDependentsAreTransformedAgain() throws IOException
+	{
+		File inputDir = createTempDir("input");
+		File outputDir = createTempDir("output");
+		writeClass(inputDir, "a/Base", "java/lang/Object", 1000);
+		writeClass(inputDir, "a/Target", "a/Base", 1000);
+		writeClass(inputDir, "a/Other", "java/lang/Object", 1000);
+
+		CountingTransformer transformer = new CountingTransformer();
+		TransformWatcher watcher = new TransformWatcher(transformer, inputDir, outputDir);
+		assertEquals(3, watcher.poll());
+		assertEquals(3, transformer.transformed);
+		assertTrue(new File(outputDir, "a/Other.class").exists());
+		assertEquals(1, watcher.getTouchedClasses().size());
+		assertTrue(watcher.getTouchedClasses().contains("a/Target"));
+		assertTrue(watcher.getDependents("a/Base").contains("a/Target"));
+		assertFalse(watcher.getDependents("a/Base").contains("a/Other"));
+
+		ClassNode output = ASMHelper.readClassFromBytes(readFile(new File(outputDir, "a/Target.class")));
+		assertEquals(1, output.fields.size());
+
+		assertEquals(0, watcher.poll());
+
+		writeClass(inputDir, "a/Base", "java/lang/Object", 2000);
+		assertEquals(2, watcher.poll());
+		assertEquals(5, transformer.transformed);
+
+		new File(inputDir, "a/Other.class").delete();
+		assertEquals(1, watcher.poll());
+		assertFalse(new File(outputDir, "a/Other.class").exists());
+	}
+
+	@Test
+	public void classesThatFailToTransformAreRetriedOnTheNextPoll() throws IOException
+	{
+		File inputDir = createTempDir("input");
+		File outputDir = createTempDir("output");
+		writeClass(inputDir, "a/Base", "java/lang/Object", 1000);
+		writeClass(inputDir, "a/Target", "a/Base", 1000);
+		writeClass(inputDir, "a/Other", "java/lang/Object", 1000);
+
+		final boolean[] broken = new boolean[]{true};
+		CountingTransformer transformer = new CountingTransformer()
+		{
+			@Override
+			public byte[] transform(String name, String transformedName, byte[] bytes)
+			{
+				if (broken[0] && name.equals("a.Target"))
+					throw new RuntimeException("transformer is broken");
+				return super.transform(name, transformedName, bytes);
+			}
+		};
+		TransformWatcher watcher = new TransformWatcher(transformer, inputDir, outputDir);
+		assertEquals(2, watcher.poll());
+		assertTrue(new File(outputDir, "a/Base.class").exists());
+		assertTrue(new File(outputDir, "a/Other.class").exists());
+		assertFalse(new File(outputDir, "a/Target.class").exists());
+		assertEquals(1, watcher.getPendingClasses().size());
+		assertTrue(watcher.getPendingClasses().contains("a/Target"));
+
+		assertEquals(0, watcher.poll());
+		broken[0] = false;
+		assertEquals(1, watcher.poll());
+		assertTrue(new File(outputDir, "a/Target.class").exists());
+		assertTrue(watcher.getPendingClasses().isEmpty());
+		assertTrue(watcher.getTouchedClasses().contains("a/Target"));
+	}
+
+	private static File createTempDir(String prefix) throws IOException
+	{
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	private static byte[] readFile(File file) throws IOException
+	{
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			inputStream.readFully(bytes);
+		}
+		finally
+		{
+			inputStream.close();
+		}
+		return bytes;
+	}
+
+	private static void writeClass(File dir, String name, String superName, long lastModified) throws IOException
+	{
+		ClassWriter classWriter = new ClassWriter(0);
+		classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, superName, null);
+		classWriter.visitEnd();
+
+		File file = new File(dir, name + ".class");
+		file.getParentFile().mkdirs();
+		FileOutputStream outputStream = new FileOutputStream(file);
+		try
+		{
+			outputStream.write(classWriter.toByteArray());
+		}
+		finally
+		{
+			outputStream.close();
+		}
+		file.setLastModified(lastModified);
+	}
+
+}
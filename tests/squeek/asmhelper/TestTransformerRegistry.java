@@ -0,0 +1,194 @@
+package squeek.asmhelper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.LineNumberNode;
+
+public class TestTransformerRegistry
+{
+	static
+	{
+		ObfHelper.setObfuscated(false);
+	}
+
+	private static class RecordingTransformer implements IClassNodeTransformer
+	{
+		final String[] targetClassNames;
+		final boolean modify;
+		final List<ClassNode> received = new ArrayList<ClassNode>();
+
+		RecordingTransformer(boolean modify, String... targetClassNames)
+		{
+			this.modify = modify;
+			this.targetClassNames = targetClassNames;
+		}
+
+		@Override
+		public String[] getTargetClassNames()
+		{
+			return targetClassNames;
+		}
+
+		@Override
+		public boolean transform(String name, String transformedName, ClassNode classNode)
+		{
+			received.add(classNode);
+			if (modify)
+				classNode.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, "added" + classNode.fields.size(), "I", null, null));
+			return modify;
+		}
+	}
+
+	@Test
+	public void transformersTargetingTheSameClassShareOneClassNode()
+	{
+		TransformerRegistry registry = new TransformerRegistry();
+		RecordingTransformer first = new RecordingTransformer(true, "a.Target");
+		RecordingTransformer second = new RecordingTransformer(true, "a/Target", "a.Other");
+		registry.register(first);
+		registry.register(second);
+
+		byte[] transformed = registry.transform("a.Target", "a.Target", createClass("a/Target"));
+		assertEquals(1, first.received.size());
+		assertEquals(1, second.received.size());
+		assertSame(first.received.get(0), second.received.get(0));
+
+		ClassNode classNode = ASMHelper.readClassFromBytes(transformed);
+		assertEquals(2, classNode.fields.size());
+	}
+
+	@Test
+	public void untargetedAndUnmodifiedClassesAreReturnedAsIs()
+	{
+		TransformerRegistry registry = new TransformerRegistry();
+		registry.register(new RecordingTransformer(false, "a.Target"));
+
+		byte[] untargeted = createClass("a/Untargeted");
+		assertSame(untargeted, registry.transform("a.Untargeted", "a.Untargeted", untargeted));
+		byte[] unmodified = createClass("a/Target");
+		assertSame(unmodified, registry.transform("a.Target", "a.Target", unmodified));
+		assertNull(registry.transform("a.Missing", "a.Missing", null));
+		assertNull(registry.getTransformers("a.Untargeted"));
+		assertEquals(1, registry.getTransformers("a.Target").length);
+	}
+
+	@Test
+	public void transformersCanNotBeRegisteredAfterTheFirstTransform()
+	{
+		TransformerRegistry registry = new TransformerRegistry();
+		registry.transform("a.Target", "a.Target", createClass("a/Target"));
+		boolean threw = false;
+		try
+		{
+			registry.register(new RecordingTransformer(false, "a.Target"));
+		}
+		catch (IllegalStateException e)
+		{
+			threw = true;
+		}
+		assertTrue(threw);
+	}
+
+	private static class ReadNeedsTransformer extends RecordingTransformer implements IClassReadNeeds
+	{
+		final int readNeeds;
+
+		ReadNeedsTransformer(int readNeeds, String... targetClassNames)
+		{
+			super(false, targetClassNames);
+			this.readNeeds = readNeeds;
+		}
+
+		@Override
+		public int getReadNeeds()
+		{
+			return readNeeds;
+		}
+	}
+
+	@Test
+	public void readFlagsOnlySkipWhatNoTransformerNeeds()
+	{
+		int computeFrames = ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES;
+		assertEquals(0, TransformerRegistry.getReadFlags(IClassReadNeeds.NEEDS_EVERYTHING, computeFrames));
+		assertEquals(ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES, TransformerRegistry.getReadFlags(IClassReadNeeds.NEEDS_NOTHING, computeFrames));
+		assertEquals(ClassReader.SKIP_DEBUG, TransformerRegistry.getReadFlags(IClassReadNeeds.NEEDS_NOTHING, ClassWriter.COMPUTE_MAXS));
+		assertEquals(ClassReader.SKIP_FRAMES, TransformerRegistry.getReadFlags(IClassReadNeeds.NEEDS_LOCAL_VARIABLES, computeFrames));
+		assertEquals(ClassReader.SKIP_DEBUG | ClassReader.EXPAND_FRAMES, TransformerRegistry.getReadFlags(IClassReadNeeds.NEEDS_EXPANDED_FRAMES, computeFrames));
+
+		TransformerRegistry registry = new TransformerRegistry();
+		registry.setStripDebugInfo(true);
+		ReadNeedsTransformer needsNothing = new ReadNeedsTransformer(IClassReadNeeds.NEEDS_NOTHING, "a.Target", "a.Other");
+		registry.register(needsNothing);
+		registry.register(new RecordingTransformer(false, "a.Other"));
+		registry.transform("a.Target", "a.Target", createClass("a/Target"));
+		registry.transform("a.Other", "a.Other", createClass("a/Other"));
+		assertNull(needsNothing.received.get(0).sourceFile);
+		assertEquals("Test.java", needsNothing.received.get(1).sourceFile);
+
+		TransformerRegistry keepDebugRegistry = new TransformerRegistry();
+		keepDebugRegistry.setStripDebugInfo(true);
+		ReadNeedsTransformer alsoNeedsNothing = new ReadNeedsTransformer(IClassReadNeeds.NEEDS_NOTHING, "a.Target");
+		keepDebugRegistry.register(alsoNeedsNothing);
+		keepDebugRegistry.requireReadNeeds(IClassReadNeeds.NEEDS_LINE_NUMBERS);
+		keepDebugRegistry.transform("a.Target", "a.Target", createClass("a/Target"));
+		assertEquals("Test.java", alsoNeedsNothing.received.get(0).sourceFile);
+	}
+
+	@Test
+	public void lineNumbersAreKeptByDefault()
+	{
+		TransformerRegistry registry = new TransformerRegistry(ClassWriter.COMPUTE_MAXS);
+		registry.register(new ReadNeedsTransformer(IClassReadNeeds.NEEDS_NOTHING, "a.Target")
+		{
+			@Override
+			public boolean transform(String name, String transformedName, ClassNode classNode)
+			{
+				classNode.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, "added", "I", null, null));
+				return true;
+			}
+		});
+
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "a/Target", null, "java/lang/Object", null);
+		classWriter.visitSource("Test.java", null);
+		MethodVisitor methodVisitor = classWriter.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+		methodVisitor.visitCode();
+		Label start = new Label();
+		methodVisitor.visitLabel(start);
+		methodVisitor.visitLineNumber(42, start);
+		methodVisitor.visitInsn(Opcodes.RETURN);
+		methodVisitor.visitMaxs(0, 0);
+		methodVisitor.visitEnd();
+		classWriter.visitEnd();
+
+		ClassNode transformed = ASMHelper.readClassFromBytes(registry.transform("a.Target", "a.Target", classWriter.toByteArray()));
+		assertEquals(1, transformed.fields.size());
+		assertEquals("Test.java", transformed.sourceFile);
+		LineNumberNode lineNumber = (LineNumberNode) ASMHelper.getOrFindInstructionOfType(transformed.methods.get(0).instructions.getFirst(), AbstractInsnNode.LINE);
+		assertEquals(42, lineNumber.line);
+	}
+
+	private static byte[] createClass(String name)
+	{
+		ClassWriter classWriter = new ClassWriter(0);
+		classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+		classWriter.visitSource("Test.java", null);
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+}